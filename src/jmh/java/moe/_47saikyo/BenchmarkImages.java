@@ -0,0 +1,80 @@
+package moe._47saikyo;
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 性能测试使用的图像，包括项目自带的res/knowledge.bmp和三种合成图像：<br/>
+ * noise——随机噪声，高频分量多，熵编码压力最大<br/>
+ * gradient——平滑渐变，AC系数几乎全为0<br/>
+ * text——白底黑字，大量平坦块夹杂锐利边缘
+ */
+final class BenchmarkImages {
+    static final int width=1024;
+    static final int height=768;
+
+    private BenchmarkImages(){}
+
+    /**
+     * 按名称获取测试图像
+     * @param name knowledge、noise、gradient或text
+     * @return TYPE_3BYTE_BGR格式的图像
+     * @throws IOException 读取res/knowledge.bmp失败
+     */
+    static BufferedImage load(String name) throws IOException {
+        switch (name){
+            case "knowledge":
+                //以项目根目录为工作目录运行，也可以通过-Dbench.res指定res目录
+                return ImageIO.read(new File(System.getProperty("bench.res","res"),"knowledge.bmp"));
+            case "noise":
+                return noise();
+            case "gradient":
+                return gradient();
+            case "text":
+                return text();
+            default:
+                throw new IllegalArgumentException("unknown image: "+name);
+        }
+    }
+
+    private static BufferedImage noise(){
+        BufferedImage image=new BufferedImage(width,height,BufferedImage.TYPE_3BYTE_BGR);
+        Random random=new Random(47);
+        for (int y=0;y<height;y++){
+            for (int x=0;x<width;x++){
+                image.setRGB(x,y,random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage gradient(){
+        BufferedImage image=new BufferedImage(width,height,BufferedImage.TYPE_3BYTE_BGR);
+        for (int y=0;y<height;y++){
+            for (int x=0;x<width;x++){
+                int r=x*255/width;
+                int g=y*255/height;
+                int b=(x+y)*255/(width+height);
+                image.setRGB(x,y,(r<<16)|(g<<8)|b);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage text(){
+        BufferedImage image=new BufferedImage(width,height,BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics=image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0,0,width,height);
+        graphics.setColor(Color.BLACK);
+        graphics.setFont(new Font(Font.SANS_SERIF,Font.PLAIN,18));
+        for (int y=24;y<height;y+=24){
+            graphics.drawString("JPEG Compressor Copyright 2023 Smile_slime_47 0123456789 The quick brown fox",8,y);
+        }
+        graphics.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,52 @@
+package moe._47saikyo;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整压缩过程{@link JpegCompressor#doCompress()}的基准测试<br/>
+ * 图像在setup中预先解码，测试时间不包含ImageIO的读取；
+ * 结果为每秒压缩的图像数，{@link Throughput#bytes}记录了处理的原始RGB字节数，其速率（bytes/s）除以10^6即为MB/s
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(value=1,jvmArgsAppend="--add-modules=jdk.incubator.vector")
+public class CompressBenchmark {
+    @Param({"knowledge","noise","gradient","text"})
+    public String image;
+
+    @Param({"serial","parallel"})
+    public String mode;
+
+    private BufferedImage source;
+
+    /**
+     * 吞吐量计数器
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        source=BenchmarkImages.load(image);
+    }
+
+    @Benchmark
+    public void doCompress(Throughput throughput) throws IOException {
+        JpegCompressor compressor=new JpegCompressor(source,OutputStream.nullOutputStream());
+        if(mode.equals("parallel")){
+            compressor.setParallel(true);
+        }
+        compressor.doCompress();
+        throughput.bytes+=(long) source.getWidth()*source.getHeight()*3;
+    }
+}
@@ -0,0 +1,162 @@
+package moe._47saikyo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各编码阶段的微基准测试，每次调用处理{@link #blockCount}个块，结果为ns/block（VLI为ns/系数）<br/>
+ * 测试数据取自图像左上角的若干MCU，在setup中预先完成前一阶段的计算
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(value=1,jvmArgsAppend="--add-modules=jdk.incubator.vector")
+public class StageBenchmark {
+    private static final int MCUCount=64;
+    private static final int blockCount=MCUCount*6;
+
+    @Param({"knowledge","noise","gradient","text"})
+    public String image;
+
+    private RasterReader    raster;
+    private int             MCUsPerRow;
+    private ColorConverter  tableConverter;
+    private ColorConverter  floatConverter;
+    private DCT             fastDCT;
+    private DCT             referenceDCT;
+    private EntropyEncoder  entropy;
+    private int[]           pixels;
+    private float[]         blocks;
+    private float[][]       samples;        //每个MCU转换后的6个块
+    private float[][]       transformed;    //每个块未量化的频域系数，用于DCT.quantize
+    private int[][]         quantized;      //每个块的量化结果
+    private int[][][]       quantized2D;    //二维形式的量化结果，用于zigzagScan
+    private int[]           coefficients;   //所有块的量化系数，用于VLI
+    private int[]           out;
+
+    @Setup
+    public void setup() throws IOException {
+        BufferedImage source=BenchmarkImages.load(image);
+        raster=new RasterReader(source);
+        tableConverter=new TableColorConverter();
+        floatConverter=new FloatColorConverter();
+        fastDCT=new DCT(DCT.engine.fast);
+        referenceDCT=new DCT(DCT.engine.reference);
+        entropy=new EntropyEncoder(OutputStream.nullOutputStream());
+        pixels=new int[256];
+        blocks=new float[6*64];
+        out=new int[64];
+
+        samples=new float[MCUCount][6*64];
+        transformed=new float[blockCount][64];
+        quantized=new int[blockCount][64];
+        quantized2D=new int[blockCount][8][8];
+        coefficients=new int[blockCount*64];
+        MCUsPerRow=(source.getWidth()+15)/16;
+        for (int m=0;m<MCUCount;m++){
+            raster.readBlock((m%MCUsPerRow)*16,(m/MCUsPerRow)*16,16,16,pixels);
+            tableConverter.convertMCU(pixels,samples[m]);
+            for (int b=0;b<6;b++){
+                int index=m*6+b;
+                fastDCT.transform(samples[m],b*64,b<4?DCT.component.luminance:DCT.component.chrominance,quantized[index]);
+                for (int i=0;i<64;i++){
+                    quantized2D[index][i/8][i%8]=quantized[index][i];
+                    coefficients[index*64+i]=quantized[index][i];
+                }
+                fastDCT.forwardTransform(samples[m],b*64,transformed[index],0);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void readBlock(Blackhole blackhole){
+        for (int m=0;m<MCUCount;m++){
+            raster.readBlock((m%MCUsPerRow)*16,(m/MCUsPerRow)*16,16,16,pixels);
+        }
+        blackhole.consume(pixels);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void colorTable(Blackhole blackhole){
+        for (int m=0;m<MCUCount;m++){
+            raster.readBlock((m%MCUsPerRow)*16,(m/MCUsPerRow)*16,16,16,pixels);
+            tableConverter.convertMCU(pixels,blocks);
+        }
+        blackhole.consume(blocks);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void colorFloat(Blackhole blackhole){
+        for (int m=0;m<MCUCount;m++){
+            raster.readBlock((m%MCUsPerRow)*16,(m/MCUsPerRow)*16,16,16,pixels);
+            floatConverter.convertMCU(pixels,blocks);
+        }
+        blackhole.consume(blocks);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void forwardDCTFast(Blackhole blackhole){
+        for (int m=0;m<MCUCount;m++){
+            for (int b=0;b<6;b++){
+                fastDCT.transform(samples[m],b*64,b<4?DCT.component.luminance:DCT.component.chrominance,out);
+            }
+        }
+        blackhole.consume(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void forwardDCTReference(Blackhole blackhole){
+        for (int m=0;m<MCUCount;m++){
+            for (int b=0;b<6;b++){
+                referenceDCT.transform(samples[m],b*64,b<4?DCT.component.luminance:DCT.component.chrominance,out);
+            }
+        }
+        blackhole.consume(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void quantize(Blackhole blackhole){
+        for (int i=0;i<blockCount;i++){
+            fastDCT.quantize(transformed[i],0,i%6<4?DCT.component.luminance:DCT.component.chrominance,out);
+        }
+        blackhole.consume(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void zigzagScan(Blackhole blackhole){
+        for (int i=0;i<blockCount;i++){
+            blackhole.consume(EntropyEncoder.zigzagScan(quantized2D[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount)
+    public void writeHuffmanBits() throws IOException {
+        for (int i=0;i<blockCount;i++){
+            entropy.encodeBlock(quantized[i],i%6<4?EntropyEncoder.component.Y:(i%6==4?EntropyEncoder.component.Cb:EntropyEncoder.component.Cr));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(blockCount*64)
+    public int VLI() throws IOException {
+        int sum=0;
+        for (int coefficient:coefficients){
+            sum+=entropy.VLI(coefficient,false);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,358 @@
+package moe._47saikyo;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 批量JPEG编码器，将多张图像提交到线程池中并发编码，并统计每张图像及整批的吞吐量<br/>
+ * 量化表（{@link QuantumTable}）和霍夫曼表（{@link HuffmanTable}）均为不可变对象，所有工作线程共享同一份，
+ * baseline编码时每个工作线程复用自己的{@link EncoderSession}<br/>
+ * 使用方式：通过add系列方法加入输入和输出，然后调用{@link #run()}，所有任务完成后返回{@link Report}
+ */
+public class BatchCompressor implements AutoCloseable {
+    private final ExecutorService   executor;                   //执行编码任务的线程池
+    private final boolean           ownsExecutor;               //线程池是否由本类创建，创建的线程池在close时关闭
+    private final List<Job>         jobs=new ArrayList<>();     //待编码的任务
+    private int                     quality=QuantumTable.defaultQuality;    //压缩质量
+    private boolean                 optimizeHuffman=false;      //是否使用优化的霍夫曼表
+    private boolean                 progressive=false;          //是否使用渐进式编码
+    private String                  comment=null;               //图片注释，null时使用默认注释
+
+    /**
+     * 使用调用方提供的线程池，{@link #close()}时不会关闭该线程池
+     * @param executor 执行编码任务的线程池
+     */
+    public BatchCompressor(ExecutorService executor){
+        this(executor,false);
+    }
+
+    /**
+     * 使用固定大小的平台线程池
+     * @param threads 线程数量
+     */
+    public BatchCompressor(int threads){
+        this(Executors.newFixedThreadPool(threads),true);
+    }
+
+    private BatchCompressor(ExecutorService executor,boolean ownsExecutor){
+        this.executor=executor;
+        this.ownsExecutor=ownsExecutor;
+    }
+
+    /**
+     * 每个任务使用一个虚拟线程，适合输入输出为文件或网络流、大量时间花在IO上的情况<br/>
+     * 项目按JDK 19编译，虚拟线程池在运行时通过反射获取：JDK 21及以上可直接使用，JDK 19/20上需要以--enable-preview运行
+     * @return 批量编码器
+     * @throws UnsupportedOperationException 当前运行环境不支持虚拟线程
+     */
+    public static BatchCompressor withVirtualThreads(){
+        ExecutorService executor;
+        try {
+            executor=(ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (NoSuchMethodException|IllegalAccessException e){
+            throw new UnsupportedOperationException("virtual threads require JDK 21, or JDK 19/20 with --enable-preview",e);
+        }catch (InvocationTargetException e){
+            //JDK 19/20未开启预览特性时，预览API在调用时抛出UnsupportedOperationException
+            throw new UnsupportedOperationException("virtual threads require JDK 21, or JDK 19/20 with --enable-preview",e.getCause());
+        }
+        return new BatchCompressor(executor,true);
+    }
+
+    /**
+     * 设置所有图像的压缩质量
+     * @param quality 压缩质量1~100
+     * @throws IllegalArgumentException 质量超出1~100
+     */
+    public void setQuality(int quality){
+        if(quality<1||quality>100){
+            throw new IllegalArgumentException("quality must be between 1 and 100");
+        }
+        this.quality=quality;
+    }
+
+    /**
+     * 设置是否使用优化的霍夫曼表，见{@link JpegCompressor#setOptimizeHuffman(boolean)}
+     * @param optimize 是否使用优化的霍夫曼表
+     */
+    public void setOptimizeHuffman(boolean optimize){
+        optimizeHuffman=optimize;
+    }
+
+    /**
+     * 设置是否使用渐进式编码，见{@link JpegCompressor#setProgressive(boolean)}
+     * @param progressive 是否使用渐进式编码
+     */
+    public void setProgressive(boolean progressive){
+        this.progressive=progressive;
+    }
+
+    /**
+     * 设置所有图像的注释
+     * @param comment 图片注释内容
+     */
+    public void setComment(String comment){
+        this.comment=comment;
+    }
+
+    /**
+     * 加入一个文件编码任务，输出文件在任务执行时才创建
+     * @param input 输入图像文件
+     * @param output 输出JPEG文件
+     */
+    public void add(File input,File output){
+        jobs.add(new Job(input.getPath(),()->ImageIO.read(input),()->new FileOutputStream(output),true));
+    }
+
+    /**
+     * 加入一个流编码任务，输入流在解码后关闭，输出流由调用方关闭
+     * @param name 任务名称，用于报告
+     * @param input 图像输入流
+     * @param output 编码器的outputStream
+     */
+    public void add(String name,InputStream input,OutputStream output){
+        jobs.add(new Job(name,()->{
+            try (InputStream in=input){
+                return ImageIO.read(in);
+            }
+        },()->output,false));
+    }
+
+    /**
+     * 加入一个已解码图像的编码任务，输出流由调用方关闭
+     * @param name 任务名称，用于报告
+     * @param image 已解码的图像
+     * @param output 编码器的outputStream
+     */
+    public void add(String name,BufferedImage image,OutputStream output){
+        jobs.add(new Job(name,()->image,()->output,false));
+    }
+
+    /**
+     * 将已加入的所有任务提交到线程池并等待完成，任务列表随后清空<br/>
+     * 单张图像失败不影响其他图像，异常记录在对应的{@link Result#error}中
+     * @return 每张图像及整批的统计结果
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public Report run() throws InterruptedException {
+        List<Future<Result>> futures=new ArrayList<>(jobs.size());
+        long start=System.nanoTime();
+        for (Job job:jobs){
+            futures.add(executor.submit(()->compress(job)));
+        }
+        List<Result> results=new ArrayList<>(futures.size());
+        for (int i=0;i<futures.size();i++){
+            try {
+                results.add(futures.get(i).get());
+            }catch (ExecutionException e){
+                //compress内部已捕获异常，这里只可能是Error
+                results.add(new Result(jobs.get(i).name,0,0,0,0,0,e.getCause()));
+            }
+        }
+        long wallNanos=System.nanoTime()-start;
+        jobs.clear();
+        return new Report(results,wallNanos);
+    }
+
+    /**
+     * 编码单张图像，分别计时解码和编码两个阶段
+     * @param job 编码任务
+     * @return 统计结果
+     */
+    private Result compress(Job job){
+        long start=System.nanoTime();
+        long decodeNanos=0;
+        BufferedImage image=null;
+        try {
+            image=job.source.read();
+            if(image==null){
+                throw new IOException("unsupported image format");
+            }
+            decodeNanos=System.nanoTime()-start;
+
+            CountingOutputStream output=new CountingOutputStream(job.sink.open());
+            try {
+                if(optimizeHuffman||progressive){
+                    JpegCompressor compressor=new JpegCompressor(image,output);
+                    compressor.setQuality(quality);
+                    compressor.setOptimizeHuffman(optimizeHuffman);
+                    compressor.setProgressive(progressive);
+                    if(comment!=null){
+                        compressor.setComment(comment);
+                    }
+                    compressor.doCompress();
+                }else{
+                    //baseline编码复用工作线程各自的会话
+                    EncoderSession session=EncoderSession.forCurrentThread();
+                    session.setQuality(quality);
+                    session.setComment(comment);
+                    session.encode(image,output);
+                }
+            }finally {
+                if(job.closeOutput){
+                    output.close();
+                }
+            }
+            long encodeNanos=System.nanoTime()-start-decodeNanos;
+            return new Result(job.name,image.getWidth(),image.getHeight(),output.count,decodeNanos,encodeNanos,null);
+        }catch (Exception e){
+            int width=image==null?0:image.getWidth();
+            int height=image==null?0:image.getHeight();
+            return new Result(job.name,width,height,0,decodeNanos,System.nanoTime()-start-decodeNanos,e);
+        }
+    }
+
+    /**
+     * 关闭由本类创建的线程池
+     */
+    @Override
+    public void close(){
+        if(ownsExecutor){
+            executor.shutdown();
+        }
+    }
+
+    private interface ImageSource {
+        BufferedImage read() throws IOException;
+    }
+
+    private interface OutputSink {
+        OutputStream open() throws IOException;
+    }
+
+    /**
+     * 一个编码任务
+     */
+    private static final class Job {
+        final String        name;
+        final ImageSource   source;
+        final OutputSink    sink;
+        final boolean       closeOutput;
+
+        Job(String name,ImageSource source,OutputSink sink,boolean closeOutput){
+            this.name=name;
+            this.source=source;
+            this.sink=sink;
+            this.closeOutput=closeOutput;
+        }
+    }
+
+    /**
+     * 统计写出字节数的输出流
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count=0;
+
+        CountingOutputStream(OutputStream output){
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) throws IOException {
+            out.write(b,off,len);
+            count+=len;
+        }
+    }
+
+    /**
+     * 单张图像的统计结果
+     */
+    public static final class Result {
+        public final String     name;               //任务名称
+        public final int        width;              //图像宽度
+        public final int        height;             //图像高度
+        public final long       outputBytes;        //输出的JPEG字节数
+        public final long       decodeNanos;        //解码输入图像的耗时
+        public final long       encodeNanos;        //JPEG编码的耗时
+        public final Throwable  error;              //失败原因，成功时为null
+
+        Result(String name,int width,int height,long outputBytes,long decodeNanos,long encodeNanos,Throwable error){
+            this.name=name;
+            this.width=width;
+            this.height=height;
+            this.outputBytes=outputBytes;
+            this.decodeNanos=decodeNanos;
+            this.encodeNanos=encodeNanos;
+            this.error=error;
+        }
+
+        /**
+         * 编码吞吐量
+         * @return 每秒编码的百万像素数
+         */
+        public double megapixelsPerSecond(){
+            return encodeNanos==0?0:(double) width*height*1e3/encodeNanos;
+        }
+
+        @Override
+        public String toString(){
+            if(error!=null){
+                return String.format("%s: failed (%s)",name,error);
+            }
+            return String.format("%s: %dx%d, %d bytes, decode %.1fms, encode %.1fms, %.1f MP/s",
+                    name,width,height,outputBytes,decodeNanos/1e6,encodeNanos/1e6,megapixelsPerSecond());
+        }
+    }
+
+    /**
+     * 整批的统计结果
+     */
+    public static final class Report {
+        public final List<Result>   results;        //按加入顺序排列的单张结果
+        public final long           wallNanos;      //整批的墙钟耗时
+        public final int            succeeded;      //成功的图像数量
+        public final int            failed;         //失败的图像数量
+        public final long           pixels;         //成功编码的总像素数
+        public final long           outputBytes;    //输出的总字节数
+
+        Report(List<Result> results,long wallNanos){
+            this.results=Collections.unmodifiableList(results);
+            this.wallNanos=wallNanos;
+            int ok=0;
+            long pixelSum=0,byteSum=0;
+            for (Result result:results){
+                if(result.error==null){
+                    ok++;
+                    pixelSum+=(long) result.width*result.height;
+                    byteSum+=result.outputBytes;
+                }
+            }
+            succeeded=ok;
+            failed=results.size()-ok;
+            pixels=pixelSum;
+            outputBytes=byteSum;
+        }
+
+        /**
+         * 整批吞吐量
+         * @return 每秒完成的图像数量
+         */
+        public double imagesPerSecond(){
+            return wallNanos==0?0:succeeded*1e9/wallNanos;
+        }
+
+        /**
+         * 整批吞吐量
+         * @return 每秒编码的百万像素数（含解码时间）
+         */
+        public double megapixelsPerSecond(){
+            return wallNanos==0?0:pixels*1e3/wallNanos;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d images (%d failed) in %.1fms, %d bytes, %.1f images/s, %.1f MP/s",
+                    results.size(),failed,wallNanos/1e6,outputBytes,imagesPerSecond(),megapixelsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package moe._47saikyo;
+
+/**
+ * 熵编码数据的比特读取器，{@link BitWriter}的逆过程<br/>
+ * 按字节从数据中补充64位的比特寄存器，同时去除0xFF后填充的0x00；遇到标记时不再前进，
+ * 之后按IJG libjpeg的做法补0，由调用方根据重启间隔处理标记
+ */
+final class BitReader {
+    private final byte[]    data;                   //整个JPEG文件的数据
+    private int             position;               //下一个读入的字节位置
+    private final int       end;                    //熵编码数据的结束位置
+    private long            bitBuffer=0;            //比特寄存器，有效数据靠左对齐
+    private int             bitCount=0;             //比特寄存器中的有效位数
+
+    /**
+     * 初始化比特读取器
+     * @param data 整个JPEG文件的数据
+     * @param start 熵编码数据的起始位置
+     * @param end 熵编码数据的结束位置，即其后第一个标记的位置
+     */
+    BitReader(byte[] data,int start,int end){
+        this.data=data;
+        position=start;
+        this.end=end;
+    }
+
+    /**
+     * 补充比特寄存器直到不少于57位，到达数据末尾或标记后补0
+     */
+    private void fill(){
+        while (bitCount<=56){
+            int b=0;
+            if(position<end){
+                b=data[position]&0xFF;
+                if(b==0xFF){
+                    //0xFF00为填充后的0xFF，其他情况为标记，停在标记处
+                    if(position+1<end&&data[position+1]==0){
+                        position+=2;
+                    }else{
+                        b=0;
+                        position=end;
+                    }
+                }else{
+                    position++;
+                }
+            }
+            bitBuffer|=(long) b<<(56-bitCount);
+            bitCount+=8;
+        }
+    }
+
+    /**
+     * 查看接下来的若干位，不移动读取位置
+     * @param length 位数，最多32位
+     * @return 右对齐的比特
+     */
+    int peek(int length){
+        if(bitCount<length){
+            fill();
+        }
+        return (int) (bitBuffer>>>(64-length));
+    }
+
+    /**
+     * 跳过若干位，调用前应已通过{@link #peek(int)}确保寄存器中有足够的位数
+     * @param length 位数
+     */
+    void skip(int length){
+        bitBuffer<<=length;
+        bitCount-=length;
+    }
+
+    /**
+     * 读取一个VLI码并还原为系数值
+     * @param size VLI位深，0~15
+     * @return 系数值，位深为0时返回0
+     */
+    int receiveExtend(int size){
+        if(size==0){
+            return 0;
+        }
+        int value=peek(size);
+        skip(size);
+        //最高位为0时为负数，原值为码值-(2^size-1)
+        return value<(1<<(size-1))?value-(1<<size)+1:value;
+    }
+}
@@ -0,0 +1,123 @@
+package moe._47saikyo;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 熵编码数据的比特输出器<br/>
+ * 码字先累积在64位的比特寄存器中，凑满32位后整字写入本地字节缓冲区，缓冲区写满后再整块写入输出流，
+ * 同时在写入缓冲区时完成0xFF后补0x00的字节填充
+ */
+class BitWriter {
+    private OutputStream    output;                 //输出流
+    private long            bitBuffer=0;            //比特寄存器，有效数据靠右对齐
+    private int             bitCount=0;             //比特寄存器中的有效位数
+    private final byte[]    buffer;                 //本地字节缓冲区
+    private int             position=0;             //缓冲区写指针
+    private static final int bufferSize=4096;       //缓冲区大小
+
+    /**
+     * 初始化比特输出器
+     * @param output 熵编码数据的输出流
+     */
+    public BitWriter(OutputStream output){
+        this.output=output;
+        //每次整字写入最多产生8个字节（4字节各自填充0x00），预留余量
+        buffer=new byte[bufferSize+8];
+    }
+
+    /**
+     * 修改输出流，修改前应先调用{@link #flush()}
+     * @param output 熵编码数据的输出流
+     */
+    public void setOutput(OutputStream output){
+        this.output=output;
+    }
+
+    /**
+     * 丢弃比特寄存器和缓冲区中尚未写出的数据，用于开始编码下一张图像
+     */
+    public void reset(){
+        bitBuffer=0;
+        bitCount=0;
+        position=0;
+    }
+
+    /**
+     * 写入一个码字，单次最多写入32位
+     * @param code 码字，取低length位
+     * @param length 码长
+     * @throws IOException IO异常
+     */
+    public void writeBits(int code,int length) throws IOException {
+        if(length==0){
+            return;
+        }
+        bitBuffer=(bitBuffer<<length)|(code&((1L<<length)-1));
+        bitCount+=length;
+        if(bitCount>=32){
+            bitCount-=32;
+            emitWord((int) (bitBuffer>>>bitCount));
+        }
+    }
+
+    /**
+     * 将一个32位字按大端序写入缓冲区<br/>
+     * 通过位运算判断4个字节中是否存在0xFF，不存在时直接整字写入，存在时才逐字节填充0x00
+     * @param word 待写入的32位字
+     * @throws IOException IO异常
+     */
+    private void emitWord(int word) throws IOException {
+        int inverse=~word;
+        //inverse中存在0字节即word中存在0xFF字节
+        if(((inverse-0x01010101)&~inverse&0x80808080)==0){
+            buffer[position++]=(byte) (word>>>24);
+            buffer[position++]=(byte) (word>>>16);
+            buffer[position++]=(byte) (word>>>8);
+            buffer[position++]=(byte) word;
+        }else{
+            for (int shift=24;shift>=0;shift-=8){
+                emitByte((byte) (word>>>shift));
+            }
+        }
+        if(position>=bufferSize){
+            flushBuffer();
+        }
+    }
+
+    /**
+     * 将一个字节写入缓冲区，写入0xFF时再写入0x00防止误读为标志位
+     * @param data 一字节数据
+     */
+    private void emitByte(byte data){
+        buffer[position++]=data;
+        if(data==(byte) 0xFF){
+            buffer[position++]=0x00;
+        }
+    }
+
+    /**
+     * 将缓冲区中的数据整块写入输出流
+     * @throws IOException IO异常
+     */
+    private void flushBuffer() throws IOException {
+        output.write(buffer,0,position);
+        position=0;
+    }
+
+    /**
+     * flush，将比特寄存器中剩余的数据写出，不足一字节的部分按标准以1补齐，然后将缓冲区写入输出流
+     * @throws IOException IO异常
+     */
+    public void flush() throws IOException {
+        while (bitCount>=8){
+            bitCount-=8;
+            emitByte((byte) (bitBuffer>>>bitCount));
+        }
+        if(bitCount>0){
+            emitByte((byte) ((bitBuffer<<(8-bitCount))|((1<<(8-bitCount))-1)));
+            bitCount=0;
+        }
+        bitBuffer=0;
+        flushBuffer();
+    }
+}
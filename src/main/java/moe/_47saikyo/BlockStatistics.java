@@ -0,0 +1,83 @@
+package moe._47saikyo;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次压缩中DCT块处理的统计，由{@link JpegCompressor#getBlockStatistics()}获取<br/>
+ * 每个DCT处理器注册一组独立的计数器，只在自己的线程中累加，读取时再求和，编码过程中不需要同步；
+ * 应在压缩完成后读取<br/>
+ * 优化霍夫曼表的两遍编码中每个块计两次
+ */
+public final class BlockStatistics {
+    static final int blocks=0;          //经过DCT的块数量
+    static final int flatBlocks=1;      //走平坦块捷径的块数量
+    static final int lookups=2;         //查询缓存的次数
+    static final int hits=3;            //命中缓存的次数
+    private static final int counterCount=4;
+
+    private final List<long[]> counters=new ArrayList<>();     //各DCT处理器的计数器
+
+    /**
+     * 为一个DCT处理器注册一组计数器
+     * @return 按{@link #blocks}等下标排列的计数器
+     */
+    synchronized long[] register(){
+        long[] counter=new long[counterCount];
+        counters.add(counter);
+        return counter;
+    }
+
+    /**
+     * 对所有DCT处理器的某个计数求和
+     * @param index 计数下标
+     * @return 总数
+     */
+    private synchronized long sum(int index){
+        long total=0;
+        for (long[] counter:counters){
+            total+=counter[index];
+        }
+        return total;
+    }
+
+    /**
+     * 获取经过DCT的块数量
+     * @return 块数量
+     */
+    public long getBlocks(){
+        return sum(blocks);
+    }
+
+    /**
+     * 获取所有样本都相同、直接输出只有DC系数的量化结果而不进行变换的块数量
+     * @return 平坦块数量
+     */
+    public long getFlatBlocks(){
+        return sum(flatBlocks);
+    }
+
+    /**
+     * 获取查询块结果缓存的次数，缓存因命中率过低而关闭后不再查询
+     * @return 查询次数
+     */
+    public long getCacheLookups(){
+        return sum(lookups);
+    }
+
+    /**
+     * 获取命中块结果缓存、直接复制量化结果的块数量
+     * @return 命中次数
+     */
+    public long getCacheHits(){
+        return sum(hits);
+    }
+
+    /**
+     * 获取块结果缓存的命中率
+     * @return 命中次数/查询次数，未查询时为0
+     */
+    public double getHitRate(){
+        long lookupCount=getCacheLookups();
+        return lookupCount==0?0:(double) getCacheHits()/lookupCount;
+    }
+}
@@ -0,0 +1,96 @@
+package moe._47saikyo;
+
+/**
+ * 整幅图像的量化系数缓冲，各通道的系数分别按块平铺存储，每个块的64个系数按zigzag顺序排列<br/>
+ * 块网格按MCU补全，即包含补全区域的块；{@link #widthInBlocks}和{@link #heightInBlocks}为按通道实际尺寸计算的块数，
+ * 非交错扫描只编码这部分块
+ */
+final class CoefficientBuffer {
+    public static final int blockSize=64;           //块中的系数数量
+
+    public final int        imageWidth;             //图像宽度
+    public final int        imageHeight;            //图像高度
+    public final int        componentCount;         //通道数量
+    public final int[]      horizontalSampling;     //各通道的水平采样系数
+    public final int[]      verticalSampling;       //各通道的垂直采样系数
+    public final int        MCUsPerRow;             //每行的MCU数量
+    public final int        MCURows;                //MCU行数
+    public final int        MCUWidth;               //MCU的像素宽度
+    public final int        MCUHeight;              //MCU的像素高度
+    public final int[]      blocksPerRow;           //各通道按MCU补全后每行的块数
+    public final int[]      blockRows;              //各通道按MCU补全后的块行数
+    public final int[]      widthInBlocks;          //各通道按实际尺寸计算的每行块数
+    public final int[]      heightInBlocks;         //各通道按实际尺寸计算的块行数
+    public final short[][]  coefficients;           //各通道的量化系数，块内按zigzag顺序排列
+
+    /**
+     * 按给定的采样系数初始化系数缓冲
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param horizontalSampling 各通道的水平采样系数
+     * @param verticalSampling 各通道的垂直采样系数
+     */
+    CoefficientBuffer(int width,int height,int[] horizontalSampling,int[] verticalSampling){
+        imageWidth=width;
+        imageHeight=height;
+        componentCount=horizontalSampling.length;
+        this.horizontalSampling=horizontalSampling;
+        this.verticalSampling=verticalSampling;
+        int maxH=0,maxV=0;
+        for (int c=0;c<componentCount;c++){
+            maxH=Math.max(maxH,horizontalSampling[c]);
+            maxV=Math.max(maxV,verticalSampling[c]);
+        }
+        MCUWidth=maxH*8;
+        MCUHeight=maxV*8;
+        MCUsPerRow=(width+MCUWidth-1)/MCUWidth;
+        MCURows=(height+MCUHeight-1)/MCUHeight;
+
+        blocksPerRow=new int[componentCount];
+        blockRows=new int[componentCount];
+        widthInBlocks=new int[componentCount];
+        heightInBlocks=new int[componentCount];
+        coefficients=new short[componentCount][];
+        for (int c=0;c<componentCount;c++){
+            blocksPerRow[c]=MCUsPerRow*horizontalSampling[c];
+            blockRows[c]=MCURows*verticalSampling[c];
+            //通道尺寸为ceil(图像尺寸*采样系数/最大采样系数)
+            int componentWidth=(width*horizontalSampling[c]+maxH-1)/maxH;
+            int componentHeight=(height*verticalSampling[c]+maxV-1)/maxV;
+            widthInBlocks[c]=(componentWidth+7)/8;
+            heightInBlocks[c]=(componentHeight+7)/8;
+            coefficients[c]=new short[blocksPerRow[c]*blockRows[c]*blockSize];
+        }
+    }
+
+    /**
+     * 按本编码器使用的YCbCr 4:2:0采样初始化系数缓冲
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @return 系数缓冲
+     */
+    static CoefficientBuffer forYCbCr420(int width,int height){
+        return new CoefficientBuffer(width,height,new int[]{2,1,1},new int[]{2,1,1});
+    }
+
+    /**
+     * 按单通道灰度初始化系数缓冲，每个MCU只有一个8x8的Y块
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @return 系数缓冲
+     */
+    static CoefficientBuffer forGrayscale(int width,int height){
+        return new CoefficientBuffer(width,height,new int[]{1},new int[]{1});
+    }
+
+    /**
+     * 获取某个块的首个系数在{@link #coefficients}中的下标
+     * @param component 通道序号
+     * @param blockRow 块所在行
+     * @param blockColumn 块所在列
+     * @return 下标
+     */
+    int offset(int component,int blockRow,int blockColumn){
+        return (blockRow*blocksPerRow[component]+blockColumn)*blockSize;
+    }
+}
@@ -0,0 +1,232 @@
+package moe._47saikyo;
+import java.util.Arrays;
+
+/**
+ * 系数域的无损几何变换，直接重排量化系数而不解码像素（与IJG jpegtran的做法一致）<br/>
+ * 8x8块的DCT基函数在翻转时只改变奇数频率的符号，转置时交换水平与垂直频率，
+ * 因此水平翻转为块列逆序并对奇数列频率取反，垂直翻转为块行逆序并对奇数行频率取反，转置为块网格和块内系数同时转置；
+ * 旋转由翻转和转置组合得到<br/>
+ * 翻转后不完整的边缘MCU会移到图像的起始边，无法在MCU网格中表示，因此翻转方向上的尺寸裁掉不完整的MCU（即jpegtran的-trim）
+ */
+final class CoefficientTransform {
+    private static final int blockSize=CoefficientBuffer.blockSize;
+
+    //zigzag序号i对应的频率转置后的zigzag序号
+    private static final int[] transposeIndex=new int[blockSize];
+    //zigzag序号i对应的水平频率是否为奇数
+    private static final boolean[] oddColumn=new boolean[blockSize];
+    //zigzag序号i对应的垂直频率是否为奇数
+    private static final boolean[] oddRow=new boolean[blockSize];
+
+    static {
+        int[] zigzagOf=new int[blockSize];
+        for (int i=0;i<blockSize;i++){
+            zigzagOf[EntropyEncoder.zigzagIndex[i]]=i;
+        }
+        for (int i=0;i<blockSize;i++){
+            int index=EntropyEncoder.zigzagIndex[i];
+            int v=index/8;
+            int u=index%8;
+            transposeIndex[i]=zigzagOf[u*8+v];
+            oddColumn[i]=(u&1)==1;
+            oddRow[i]=(v&1)==1;
+        }
+    }
+
+    private CoefficientTransform(){
+    }
+
+    /**
+     * 水平翻转，宽度裁掉不完整的MCU
+     * @param source 源系数
+     * @return 翻转后的系数
+     */
+    static CoefficientBuffer flipHorizontal(CoefficientBuffer source){
+        int width=source.imageWidth/source.MCUWidth*source.MCUWidth;
+        if(width==0){
+            throw new IllegalArgumentException("image is narrower than one MCU and cannot be flipped horizontally");
+        }
+        CoefficientBuffer target=new CoefficientBuffer(width,source.imageHeight,source.horizontalSampling,source.verticalSampling);
+        for (int c=0;c<target.componentCount;c++){
+            int columns=target.blocksPerRow[c];
+            for (int row=0;row<target.blockRows[c];row++){
+                for (int column=0;column<columns;column++){
+                    copyNegated(source.coefficients[c],source.offset(c,row,columns-1-column),
+                            target.coefficients[c],target.offset(c,row,column),oddColumn);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 垂直翻转，高度裁掉不完整的MCU
+     * @param source 源系数
+     * @return 翻转后的系数
+     */
+    static CoefficientBuffer flipVertical(CoefficientBuffer source){
+        int height=source.imageHeight/source.MCUHeight*source.MCUHeight;
+        if(height==0){
+            throw new IllegalArgumentException("image is shorter than one MCU and cannot be flipped vertically");
+        }
+        CoefficientBuffer target=new CoefficientBuffer(source.imageWidth,height,source.horizontalSampling,source.verticalSampling);
+        for (int c=0;c<target.componentCount;c++){
+            int rows=target.blockRows[c];
+            for (int row=0;row<rows;row++){
+                for (int column=0;column<target.blocksPerRow[c];column++){
+                    copyNegated(source.coefficients[c],source.offset(c,rows-1-row,column),
+                            target.coefficients[c],target.offset(c,row,column),oddRow);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 沿主对角线转置，宽高和各通道的水平/垂直采样系数互换，不需要裁剪<br/>
+     * 块内系数的频率随之转置，量化表需同样经过{@link #transposeTable(int[])}转置
+     * @param source 源系数
+     * @return 转置后的系数
+     */
+    static CoefficientBuffer transpose(CoefficientBuffer source){
+        CoefficientBuffer target=new CoefficientBuffer(source.imageHeight,source.imageWidth,source.verticalSampling,source.horizontalSampling);
+        for (int c=0;c<target.componentCount;c++){
+            short[] from=source.coefficients[c];
+            short[] to=target.coefficients[c];
+            for (int row=0;row<target.blockRows[c];row++){
+                for (int column=0;column<target.blocksPerRow[c];column++){
+                    int p=source.offset(c,column,row);
+                    int q=target.offset(c,row,column);
+                    for (int i=0;i<blockSize;i++){
+                        to[q+transposeIndex[i]]=from[p+i];
+                    }
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 转置按zigzag顺序排列的量化表
+     * @param table 量化表
+     * @return 转置后的量化表
+     */
+    static int[] transposeTable(int[] table){
+        int[] transposed=new int[blockSize];
+        for (int i=0;i<blockSize;i++){
+            transposed[transposeIndex[i]]=table[i];
+        }
+        return transposed;
+    }
+
+    /**
+     * 按MCU边界裁剪，起点必须位于MCU边界上，宽高可以任意
+     * @param source 源系数
+     * @param x 裁剪区域左上角的横坐标，须为MCU宽度的整数倍
+     * @param y 裁剪区域左上角的纵坐标，须为MCU高度的整数倍
+     * @param width 裁剪区域宽度
+     * @param height 裁剪区域高度
+     * @return 裁剪后的系数
+     */
+    static CoefficientBuffer crop(CoefficientBuffer source,int x,int y,int width,int height){
+        if(x%source.MCUWidth!=0||y%source.MCUHeight!=0){
+            throw new IllegalArgumentException("crop origin must lie on an MCU boundary ("+source.MCUWidth+"x"+source.MCUHeight+")");
+        }
+        if(x<0||y<0||width<=0||height<=0||x+width>source.imageWidth||y+height>source.imageHeight){
+            throw new IllegalArgumentException("crop region must lie inside the image");
+        }
+        CoefficientBuffer target=new CoefficientBuffer(width,height,source.horizontalSampling,source.verticalSampling);
+        copyBlocks(source,target,x/source.MCUWidth,y/source.MCUHeight);
+        return target;
+    }
+
+    /**
+     * 将多个图块按行优先拼接为一张图像，所有图块的通道数和采样系数必须相同；
+     * 同一列的图块宽度相同，同一行的图块高度相同，除最后一列和最后一行外图块尺寸须为MCU的整数倍
+     * @param tiles 按行优先排列的图块
+     * @param columns 每行的图块数量
+     * @return 拼接后的系数
+     */
+    static CoefficientBuffer stitch(CoefficientBuffer[] tiles,int columns){
+        if(columns<=0||tiles.length==0||tiles.length%columns!=0){
+            throw new IllegalArgumentException("tile count must be a positive multiple of the column count");
+        }
+        int rows=tiles.length/columns;
+        CoefficientBuffer first=tiles[0];
+        int width=0;
+        int height=0;
+        for (int column=0;column<columns;column++){
+            width+=tiles[column].imageWidth;
+        }
+        for (int row=0;row<rows;row++){
+            height+=tiles[row*columns].imageHeight;
+        }
+        for (int row=0;row<rows;row++){
+            for (int column=0;column<columns;column++){
+                CoefficientBuffer tile=tiles[row*columns+column];
+                if(!Arrays.equals(tile.horizontalSampling,first.horizontalSampling)||!Arrays.equals(tile.verticalSampling,first.verticalSampling)){
+                    throw new IllegalArgumentException("all tiles must have the same components and sampling factors");
+                }
+                if(tile.imageWidth!=tiles[column].imageWidth||tile.imageHeight!=tiles[row*columns].imageHeight){
+                    throw new IllegalArgumentException("tiles in the same column must have the same width and tiles in the same row the same height");
+                }
+                if((column<columns-1&&tile.imageWidth%tile.MCUWidth!=0)||(row<rows-1&&tile.imageHeight%tile.MCUHeight!=0)){
+                    throw new IllegalArgumentException("inner tile sizes must be multiples of the MCU size ("+tile.MCUWidth+"x"+tile.MCUHeight+")");
+                }
+            }
+        }
+        if(width>0xFFFF||height>0xFFFF){
+            throw new IllegalArgumentException("stitched image size must not exceed 65535");
+        }
+        CoefficientBuffer target=new CoefficientBuffer(width,height,first.horizontalSampling,first.verticalSampling);
+        int MCURow=0;
+        for (int row=0;row<rows;row++){
+            int MCUColumn=0;
+            for (int column=0;column<columns;column++){
+                CoefficientBuffer tile=tiles[row*columns+column];
+                copyBlocks(tile,target,-MCUColumn,-MCURow);
+                MCUColumn+=tile.MCUsPerRow;
+            }
+            MCURow+=tiles[row*columns].MCURows;
+        }
+        return target;
+    }
+
+    /**
+     * 按MCU偏移复制块：目标中的块(行,列)取自源中的块(行+偏移,列+偏移)，超出源或目标网格的块跳过
+     * @param source 源系数
+     * @param target 目标系数
+     * @param MCUColumn 源相对目标的MCU列偏移
+     * @param MCURow 源相对目标的MCU行偏移
+     */
+    private static void copyBlocks(CoefficientBuffer source,CoefficientBuffer target,int MCUColumn,int MCURow){
+        for (int c=0;c<target.componentCount;c++){
+            int columnOffset=MCUColumn*source.horizontalSampling[c];
+            int rowOffset=MCURow*source.verticalSampling[c];
+            int firstColumn=Math.max(0,-columnOffset);
+            int lastColumn=Math.min(target.blocksPerRow[c],source.blocksPerRow[c]-columnOffset);
+            if(lastColumn<=firstColumn){
+                continue;
+            }
+            for (int row=Math.max(0,-rowOffset);row<target.blockRows[c]&&row+rowOffset<source.blockRows[c];row++){
+                System.arraycopy(source.coefficients[c],source.offset(c,row+rowOffset,firstColumn+columnOffset),
+                        target.coefficients[c],target.offset(c,row,firstColumn),(lastColumn-firstColumn)*blockSize);
+            }
+        }
+    }
+
+    /**
+     * 复制一个块，并对指定频率的系数取反
+     * @param from 源系数数组
+     * @param p 源块的首个系数下标
+     * @param to 目标系数数组
+     * @param q 目标块的首个系数下标
+     * @param negate 各zigzag序号是否取反
+     */
+    private static void copyNegated(short[] from,int p,short[] to,int q,boolean[] negate){
+        for (int i=0;i<blockSize;i++){
+            short value=from[p+i];
+            to[q+i]=negate[i]?(short) -value:value;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package moe._47saikyo;
+
+/**
+ * 色彩空间转换阶段，负责将一个MCU的RGB像素转换为YCbCr通道数据并完成4:2:0色度抽样<br/>
+ * 可通过{@link JpegCompressor#setColorConverter(ColorConverter)}替换默认实现，实现类需保证线程安全以支持并行编码
+ */
+public interface ColorConverter {
+    /**
+     * 转换一个16x16的MCU
+     * @param pixels 按行存储的256个0xRRGGBB格式像素
+     * @param blocks 长度为6*64的输出数组，依次为Y1、Y2、Y3、Y4、Cb、Cr，每块按行平铺，取值范围0~255
+     */
+    void convertMCU(int[] pixels,float[] blocks);
+}
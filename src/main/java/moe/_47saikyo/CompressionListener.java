@@ -0,0 +1,38 @@
+package moe._47saikyo;
+
+/**
+ * 压缩过程的分阶段统计回调，通过{@link JpegCompressor#setCompressionListener(CompressionListener)}注册<br/>
+ * 未注册回调且JFR未开启对应事件时不进行任何统计；开启后每张图像压缩完成时先按阶段依次回调{@link #stageCompleted}，
+ * 再回调一次{@link #imageCompleted}。回调在调用{@link JpegCompressor#doCompress()}的线程中执行
+ */
+public interface CompressionListener {
+    /**
+     * 压缩阶段，色彩空间转换、DCT和熵编码在每个MCU中交替进行，统计值为所有MCU的累计
+     */
+    enum stage {
+        optimize,       //优化霍夫曼表的频率统计遍历，包含该遍中的色彩空间转换和DCT
+        header,         //写入文件头
+        color,          //读取像素、色彩空间转换和色度抽样
+        DCT,            //正变换DCT和量化
+        entropy,        //熵编码，渐进式编码时为所有扫描的输出
+        flush           //补齐末尾字节并写入文件尾
+    }
+
+    /**
+     * 一个阶段的统计结果
+     * @param name 阶段
+     * @param nanos 累计耗时，并行编码时为各线程耗时之和
+     * @param allocatedBytes 累计分配的堆内存字节数，JVM不支持统计时为-1
+     */
+    void stageCompleted(stage name,long nanos,long allocatedBytes);
+
+    /**
+     * 整张图像的统计结果
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param nanos doCompress的墙钟耗时
+     * @param allocatedBytes 调用线程分配的堆内存字节数，见{@link JpegCompressor#getAllocatedBytes()}
+     */
+    default void imageCompleted(int width,int height,long nanos,long allocatedBytes){
+    }
+}
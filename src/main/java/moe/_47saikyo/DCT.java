@@ -0,0 +1,568 @@
+package moe._47saikyo;
+import java.util.Arrays;
+
+/**
+ * 离散余弦变换及量化类
+ */
+class DCT{
+    private final float[]   workspace=new float[64];                            //平铺的8x8工作区，编码过程中反复使用
+    private final float[]   transposed=new float[64];                           //向量化实现的转置工作区
+    private final int       blockLength=8;                                      //块大小
+    private final double    DCConstant_uv=((double)1/Math.sqrt(blockLength));   //DC的公式系数
+    private final double    ACConstant_uv=(Math.sqrt(2)/Math.sqrt(blockLength));//AC的公式系数
+    private final engine    dctEngine;                                          //正变换DCT的实现方式
+    private final QuantumTable quantumTable;                                    //按压缩质量缩放后的量化表
+    private BlockStatistics statistics;                                         //注册了计数器的块统计，可为null
+    private long[]          counters=new long[4];                               //本处理器的块计数，下标见BlockStatistics
+    private boolean         shortcuts=true;                                     //是否启用平坦块捷径和块结果缓存
+    private boolean         memoEnabled=true;                                   //块结果缓存是否仍在使用，命中率过低时关闭
+    private float[]         memoSamples;                                        //缓存的样本，每项64位
+    private int[]           memoResults;                                        //缓存的量化结果，每项64位
+    private int[]           memoTags;                                           //缓存项的通道，0为空，否则为通道序号+1
+    private int             windowLookups;                                      //本统计窗口内的查询次数
+    private int             windowHits;                                         //本统计窗口内的命中次数
+    private static final int memoCapacity=64;                                   //块结果缓存的项数，直接映射
+    private static final int memoWindow=1024;                                   //命中率统计窗口的查询次数
+    private static final int memoMinHitRatio=32;                                //窗口内命中不足1/32时关闭缓存
+    public  enum            component{luminance, chrominance};                  //通道
+    public  enum            engine{reference, fast};                            //DCT实现：按定义式计算的参考实现/AAN快速实现
+
+    //JPEG标准提供的灰度量化表，对应质量50
+    public static final int[][]   quantum_luminance={
+            {16,11,10,16,24,40,51,61},
+            {12,12,14,19,26,58,60,55},
+            {14,13,16,24,40,57,69,56},
+            {14,17,22,29,51,87,80,62},
+            {18,22,37,56,68,109,103,77},
+            {24,35,55,64,81,104,113,92},
+            {49,64,78,87,103,121,120,101},
+            {72,92,95,98,112,100,103,99}
+    };
+    //JPEG标准提供的色度量化表，对应质量50
+    public static final int[][]   quantum_chrominance={
+            {17,18,24,47,99,99,99,99},
+            {18,21,26,66,99,99,99,99},
+            {24,26,56,99,99,99,99,99},
+            {47,66,99,99,99,99,99,99},
+            {99,99,99,99,99,99,99,99},
+            {99,99,99,99,99,99,99,99},
+            {99,99,99,99,99,99,99,99},
+            {99,99,99,99,99,99,99,99}
+    };
+
+    //参考实现使用的余弦表，cosTable[u*8+x]=cos((2x+1)uπ/16)
+    private static final double[] cosTable=initCosTable();
+
+    /**
+     * 默认使用AAN快速DCT
+     */
+    public DCT(){
+        this(engine.fast);
+    }
+
+    /**
+     * 指定正变换DCT的实现方式
+     * @param dctEngine reference为按定义式计算的O(N^4)参考实现，用于校验输出；fast为行列分离的AAN快速实现
+     */
+    public DCT(engine dctEngine){
+        this(dctEngine,QuantumTable.forQuality(QuantumTable.defaultQuality));
+    }
+
+    /**
+     * 指定正变换DCT的实现方式和量化表
+     * @param dctEngine DCT实现方式
+     * @param quantumTable 量化表，由{@link QuantumTable#forQuality(int)}获取
+     */
+    public DCT(engine dctEngine,QuantumTable quantumTable){
+        this.dctEngine=dctEngine;
+        this.quantumTable=quantumTable;
+    }
+
+    /**
+     * 创建使用相同实现方式、量化表、捷径设置和块统计的DCT处理器，用于并行任务，各处理器的缓存相互独立
+     * @return 新的DCT处理器
+     */
+    DCT fork(){
+        DCT copy=new DCT(dctEngine,quantumTable);
+        copy.shortcuts=shortcuts;
+        copy.setStatistics(statistics);
+        return copy;
+    }
+
+    /**
+     * 设置块统计，同时重新启用块结果缓存，用于开始一次新的压缩；已缓存的结果与量化表对应，仍然有效
+     * @param statistics 块统计，null为不统计
+     */
+    void setStatistics(BlockStatistics statistics){
+        this.statistics=statistics;
+        counters=statistics==null?new long[4]:statistics.register();
+        memoEnabled=true;
+        windowLookups=windowHits=0;
+    }
+
+    /**
+     * 设置是否启用平坦块捷径和块结果缓存，两者的输出与完整计算一致，关闭后每个块都完整地进行变换
+     * @param shortcuts 是否启用
+     */
+    void setShortcuts(boolean shortcuts){
+        this.shortcuts=shortcuts;
+    }
+
+    /**
+     * 获取正变换DCT的实现方式
+     * @return DCT实现方式
+     */
+    public engine getEngine(){
+        return dctEngine;
+    }
+
+    /**
+     * 获取量化表
+     * @return 量化表
+     */
+    public QuantumTable getQuantumTable(){
+        return quantumTable;
+    }
+
+    /**
+     * 预先计算参考实现用到的64个余弦值
+     * @return 按u*8+x平铺的余弦表
+     */
+    private static double[] initCosTable(){
+        double[] table=new double[64];
+        for (int u=0;u<8;u++){
+            for (int x=0;x<8;x++){
+                table[u*8+x]=Math.cos(u*Math.PI*((2*x)+1)/(2*8));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 对平铺存储的一个8x8块进行正变换DCT和量化，结果写入out<br/>
+     * 启用捷径时，fast模式下64个样本都相同的平坦块只有DC系数，AAN对这类块的所有中间结果都是精确的，
+     * 因此直接由样本值算出DC即可；其余块先查询按通道和样本直接映射的块结果缓存，命中时复制之前的量化结果，
+     * 缓存在每{@link #memoWindow}次查询中命中不足1/{@link #memoMinHitRatio}时关闭，自然图像上只留下很小的开销。
+     * 两种捷径的结果都与完整计算逐位一致
+     * @param samples 平铺存储的YCbCr通道数据，范围0~255
+     * @param offset 该块在samples中的起始下标
+     * @param channel_type 通道类型，分为luminance和chrominance
+     * @param out 按行平铺的64位量化结果
+     */
+    void transform(float[] samples,int offset,component channel_type,int[] out){
+        counters[BlockStatistics.blocks]++;
+        if(!shortcuts){
+            compute(samples,offset,channel_type,out);
+            return;
+        }
+        if(dctEngine==engine.fast&&isFlat(samples,offset)){
+            counters[BlockStatistics.flatBlocks]++;
+            Arrays.fill(out,0);
+            //行列两次AAN后DC为64倍的样本值
+            out[0]=Math.round((samples[offset]-128)*64*quantumTable.getAAN(channel_type)[0]);
+            return;
+        }
+        if(!memoEnabled){
+            compute(samples,offset,channel_type,out);
+            return;
+        }
+        if(memoSamples==null){
+            memoSamples=new float[memoCapacity*64];
+            memoResults=new int[memoCapacity*64];
+            memoTags=new int[memoCapacity];
+        }
+        int tag=channel_type.ordinal()+1;
+        int slot=memoSlot(samples,offset,tag);
+        counters[BlockStatistics.lookups]++;
+        windowLookups++;
+        if(memoTags[slot]==tag&&Arrays.equals(memoSamples,slot*64,slot*64+64,samples,offset,offset+64)){
+            counters[BlockStatistics.hits]++;
+            windowHits++;
+            System.arraycopy(memoResults,slot*64,out,0,64);
+        }else{
+            compute(samples,offset,channel_type,out);
+            memoTags[slot]=tag;
+            System.arraycopy(samples,offset,memoSamples,slot*64,64);
+            System.arraycopy(out,0,memoResults,slot*64,64);
+        }
+        if(windowLookups==memoWindow){
+            memoEnabled=windowHits*memoMinHitRatio>=windowLookups;
+            windowLookups=windowHits=0;
+        }
+    }
+
+    /**
+     * 判断一个块的64个样本是否都相同
+     * @param samples 平铺存储的YCbCr通道数据
+     * @param offset 该块在samples中的起始下标
+     * @return 是否为平坦块
+     */
+    private static boolean isFlat(float[] samples,int offset){
+        float first=samples[offset];
+        for (int i=1;i<64;i++){
+            if(samples[offset+i]!=first){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 由对角线上的8个样本和通道计算块在缓存中的位置，命中时再完整比较64个样本
+     * @param samples 平铺存储的YCbCr通道数据
+     * @param offset 该块在samples中的起始下标
+     * @param tag 通道序号+1
+     * @return 缓存项下标
+     */
+    private static int memoSlot(float[] samples,int offset,int tag){
+        int hash=tag;
+        for (int i=0;i<64;i+=9){
+            hash=hash*31+Float.floatToRawIntBits(samples[offset+i]);
+        }
+        hash^=hash>>>16;
+        hash^=hash>>>8;
+        return hash&(memoCapacity-1);
+    }
+
+    /**
+     * 对一个块完整地进行正变换DCT和量化，整个过程只使用{@link #workspace}，不产生新对象<br/>
+     * fast模式下若{@link VectorSupport#enabled}，改由{@link VectorKernels#forwardDCT}完成，结果与标量实现一致
+     * @param samples 平铺存储的YCbCr通道数据，范围0~255
+     * @param offset 该块在samples中的起始下标
+     * @param channel_type 通道类型，分为luminance和chrominance
+     * @param out 按行平铺的64位量化结果
+     */
+    private void compute(float[] samples,int offset,component channel_type,int[] out){
+        if(dctEngine==engine.fast&&VectorSupport.enabled){
+            VectorKernels.forwardDCT(samples,offset,quantumTable.getAAN(channel_type),workspace,transposed,out);
+            return;
+        }
+        int i;
+        for (i=0;i<64;i++){
+            workspace[i]=samples[offset+i]-128;
+        }
+        if(dctEngine==engine.fast){
+            AAN(workspace);
+            float[] divisors=quantumTable.getAAN(channel_type);
+            for (i=0;i<64;i++){
+                out[i]=Math.round(workspace[i]*divisors[i]);
+            }
+        }else{
+            int[][] quantum=quantumTable.get(channel_type);
+            double constant_2,constant_3;
+            for(int v=0;v<blockLength;v++){
+                for(int u=0;u<blockLength;u++){
+                    constant_2=(u==0?DCConstant_uv:ACConstant_uv)*(v==0?DCConstant_uv:ACConstant_uv);
+                    constant_3=0;
+                    for (int y=0;y<blockLength;y++){
+                        for (int x=0;x<blockLength;x++){
+                            constant_3+=workspace[y*8+x]*cosTable[u*8+x]*cosTable[v*8+y];
+                        }
+                    }
+                    out[v*8+u]=Math.round(((float) (constant_2*constant_3))/quantum[v][u]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 对平铺存储的一个8x8块进行正变换DCT但不量化，用于缓存系数后按不同的量化表反复量化<br/>
+     * 输出与{@link #transform(float[], int, component, int[])}量化之前的中间结果一致，fast模式下带有AAN缩放系数，
+     * 经{@link #quantize(float[], int, component, int[])}量化后与直接调用transform的结果相同
+     * @param samples 平铺存储的YCbCr通道数据，范围0~255
+     * @param offset 该块在samples中的起始下标
+     * @param coefficients 输出的频域系数
+     * @param coefficientOffset 该块在coefficients中的起始下标
+     */
+    void forwardTransform(float[] samples,int offset,float[] coefficients,int coefficientOffset){
+        if(dctEngine==engine.fast&&VectorSupport.enabled){
+            VectorKernels.forwardAAN(samples,offset,workspace,transposed);
+            System.arraycopy(workspace,0,coefficients,coefficientOffset,64);
+            return;
+        }
+        int i;
+        for (i=0;i<64;i++){
+            workspace[i]=samples[offset+i]-128;
+        }
+        if(dctEngine==engine.fast){
+            AAN(workspace);
+            System.arraycopy(workspace,0,coefficients,coefficientOffset,64);
+            return;
+        }
+        double constant_2,constant_3;
+        for(int v=0;v<blockLength;v++){
+            for(int u=0;u<blockLength;u++){
+                constant_2=(u==0?DCConstant_uv:ACConstant_uv)*(v==0?DCConstant_uv:ACConstant_uv);
+                constant_3=0;
+                for (int y=0;y<blockLength;y++){
+                    for (int x=0;x<blockLength;x++){
+                        constant_3+=workspace[y*8+x]*cosTable[u*8+x]*cosTable[v*8+y];
+                    }
+                }
+                coefficients[coefficientOffset+v*8+u]=(float) (constant_2*constant_3);
+            }
+        }
+    }
+
+    /**
+     * 量化{@link #forwardTransform(float[], int, float[], int)}输出的一个块
+     * @param coefficients 频域系数
+     * @param offset 该块在coefficients中的起始下标
+     * @param channel_type 通道类型，分为luminance和chrominance
+     * @param out 按行平铺的64位量化结果
+     */
+    void quantize(float[] coefficients,int offset,component channel_type,int[] out){
+        int i;
+        if(dctEngine==engine.fast){
+            float[] divisors=quantumTable.getAAN(channel_type);
+            for (i=0;i<64;i++){
+                out[i]=Math.round(coefficients[offset+i]*divisors[i]);
+            }
+            return;
+        }
+        int[][] quantum=quantumTable.get(channel_type);
+        for (i=0;i<64;i++){
+            out[i]=Math.round(coefficients[offset+i]/quantum[i/8][i%8]);
+        }
+    }
+
+    /**
+     * AAN快速正变换（IJG jfdctflt的浮点实现），二维DCT拆分为先行后列的两次一维DCT，每次一维变换只需5次乘法和29次加法<br/>
+     * 变换在原数组上进行，输出省略了各分量的缩放
+     * @param data 按行平铺的8x8块，已左移128
+     */
+    private static void AAN(float[] data){
+        float tmp0,tmp1,tmp2,tmp3,tmp4,tmp5,tmp6,tmp7;
+        float tmp10,tmp11,tmp12,tmp13;
+        float z1,z2,z3,z4,z5,z11,z13;
+        int i,p;
+
+        //行变换
+        for (i=0;i<8;i++){
+            p=i*8;
+            tmp0=data[p]+data[p+7];
+            tmp7=data[p]-data[p+7];
+            tmp1=data[p+1]+data[p+6];
+            tmp6=data[p+1]-data[p+6];
+            tmp2=data[p+2]+data[p+5];
+            tmp5=data[p+2]-data[p+5];
+            tmp3=data[p+3]+data[p+4];
+            tmp4=data[p+3]-data[p+4];
+
+            //偶数部分
+            tmp10=tmp0+tmp3;
+            tmp13=tmp0-tmp3;
+            tmp11=tmp1+tmp2;
+            tmp12=tmp1-tmp2;
+
+            data[p]=tmp10+tmp11;
+            data[p+4]=tmp10-tmp11;
+
+            z1=(tmp12+tmp13)*0.707106781f;
+            data[p+2]=tmp13+z1;
+            data[p+6]=tmp13-z1;
+
+            //奇数部分
+            tmp10=tmp4+tmp5;
+            tmp11=tmp5+tmp6;
+            tmp12=tmp6+tmp7;
+
+            z5=(tmp10-tmp12)*0.382683433f;
+            z2=0.541196100f*tmp10+z5;
+            z4=1.306562965f*tmp12+z5;
+            z3=tmp11*0.707106781f;
+
+            z11=tmp7+z3;
+            z13=tmp7-z3;
+
+            data[p+5]=z13+z2;
+            data[p+3]=z13-z2;
+            data[p+1]=z11+z4;
+            data[p+7]=z11-z4;
+        }
+
+        //列变换
+        for (i=0;i<8;i++){
+            tmp0=data[i]+data[56+i];
+            tmp7=data[i]-data[56+i];
+            tmp1=data[8+i]+data[48+i];
+            tmp6=data[8+i]-data[48+i];
+            tmp2=data[16+i]+data[40+i];
+            tmp5=data[16+i]-data[40+i];
+            tmp3=data[24+i]+data[32+i];
+            tmp4=data[24+i]-data[32+i];
+
+            tmp10=tmp0+tmp3;
+            tmp13=tmp0-tmp3;
+            tmp11=tmp1+tmp2;
+            tmp12=tmp1-tmp2;
+
+            data[i]=tmp10+tmp11;
+            data[32+i]=tmp10-tmp11;
+
+            z1=(tmp12+tmp13)*0.707106781f;
+            data[16+i]=tmp13+z1;
+            data[48+i]=tmp13-z1;
+
+            tmp10=tmp4+tmp5;
+            tmp11=tmp5+tmp6;
+            tmp12=tmp6+tmp7;
+
+            z5=(tmp10-tmp12)*0.382683433f;
+            z2=0.541196100f*tmp10+z5;
+            z4=1.306562965f*tmp12+z5;
+            z3=tmp11*0.707106781f;
+
+            z11=tmp7+z3;
+            z13=tmp7-z3;
+
+            data[40+i]=z13+z2;
+            data[24+i]=z13-z2;
+            data[8+i]=z11+z4;
+            data[56+i]=z11-z4;
+        }
+    }
+
+    /**
+     * AAN快速反变换（IJG jidctflt的浮点实现），一次完成反量化、先列后行的两次一维IDCT、加回128和限制到0~255，
+     * 结果与按IDCT定义式计算的结果在舍入误差以内一致，用于解码<br/>
+     * 只有DC系数的块直接填充常数，AC系数全为0的列跳过列变换
+     * @param coefficients 按zigzag顺序排列的量化系数
+     * @param offset 块的首个系数下标
+     * @param multipliers {@link QuantumTable#inverseAANMultipliers(int[])}生成的反量化乘数表，按zigzag顺序排列
+     * @param workspace 64位工作区
+     * @param plane 输出的通道平面
+     * @param planeOffset 块左上角在平面中的下标
+     * @param stride 平面的行跨度
+     */
+    static void inverseAAN(short[] coefficients,int offset,float[] multipliers,float[] workspace,byte[] plane,int planeOffset,int stride){
+        float tmp0,tmp1,tmp2,tmp3,tmp4,tmp5,tmp6,tmp7;
+        float tmp10,tmp11,tmp12,tmp13;
+        float z5,z10,z11,z12,z13;
+        int i,p;
+
+        //反量化，同时还原zigzag顺序
+        Arrays.fill(workspace,0);
+        boolean DCOnly=true;
+        for (i=0;i<64;i++){
+            int coefficient=coefficients[offset+i];
+            if(coefficient!=0){
+                workspace[EntropyEncoder.zigzagIndex[i]]=coefficient*multipliers[i];
+                DCOnly&=i==0;
+            }
+        }
+        if(DCOnly){
+            byte value=(byte) clampSample(workspace[0]);
+            for (i=0;i<8;i++){
+                Arrays.fill(plane,planeOffset+i*stride,planeOffset+i*stride+8,value);
+            }
+            return;
+        }
+
+        //列变换
+        for (i=0;i<8;i++){
+            if(workspace[8+i]==0&&workspace[16+i]==0&&workspace[24+i]==0&&workspace[32+i]==0
+                    &&workspace[40+i]==0&&workspace[48+i]==0&&workspace[56+i]==0){
+                tmp0=workspace[i];
+                for (p=8;p<64;p+=8){
+                    workspace[p+i]=tmp0;
+                }
+                continue;
+            }
+            //偶数部分
+            tmp0=workspace[i];
+            tmp1=workspace[16+i];
+            tmp2=workspace[32+i];
+            tmp3=workspace[48+i];
+
+            tmp10=tmp0+tmp2;
+            tmp11=tmp0-tmp2;
+            tmp13=tmp1+tmp3;
+            tmp12=(tmp1-tmp3)*1.414213562f-tmp13;
+
+            tmp0=tmp10+tmp13;
+            tmp3=tmp10-tmp13;
+            tmp1=tmp11+tmp12;
+            tmp2=tmp11-tmp12;
+
+            //奇数部分
+            tmp4=workspace[8+i];
+            tmp5=workspace[24+i];
+            tmp6=workspace[40+i];
+            tmp7=workspace[56+i];
+
+            z13=tmp6+tmp5;
+            z10=tmp6-tmp5;
+            z11=tmp4+tmp7;
+            z12=tmp4-tmp7;
+
+            tmp7=z11+z13;
+            tmp11=(z11-z13)*1.414213562f;
+            z5=(z10+z12)*1.847759065f;
+            tmp10=1.082392200f*z12-z5;
+            tmp12=-2.613125930f*z10+z5;
+
+            tmp6=tmp12-tmp7;
+            tmp5=tmp11-tmp6;
+            tmp4=tmp10+tmp5;
+
+            workspace[i]=tmp0+tmp7;
+            workspace[56+i]=tmp0-tmp7;
+            workspace[8+i]=tmp1+tmp6;
+            workspace[48+i]=tmp1-tmp6;
+            workspace[16+i]=tmp2+tmp5;
+            workspace[40+i]=tmp2-tmp5;
+            workspace[32+i]=tmp3+tmp4;
+            workspace[24+i]=tmp3-tmp4;
+        }
+
+        //行变换，结果加回128后写入平面
+        for (i=0;i<8;i++){
+            p=i*8;
+            tmp10=workspace[p]+workspace[p+4];
+            tmp11=workspace[p]-workspace[p+4];
+            tmp13=workspace[p+2]+workspace[p+6];
+            tmp12=(workspace[p+2]-workspace[p+6])*1.414213562f-tmp13;
+
+            tmp0=tmp10+tmp13;
+            tmp3=tmp10-tmp13;
+            tmp1=tmp11+tmp12;
+            tmp2=tmp11-tmp12;
+
+            z13=workspace[p+5]+workspace[p+3];
+            z10=workspace[p+5]-workspace[p+3];
+            z11=workspace[p+1]+workspace[p+7];
+            z12=workspace[p+1]-workspace[p+7];
+
+            tmp7=z11+z13;
+            tmp11=(z11-z13)*1.414213562f;
+            z5=(z10+z12)*1.847759065f;
+            tmp10=1.082392200f*z12-z5;
+            tmp12=-2.613125930f*z10+z5;
+
+            tmp6=tmp12-tmp7;
+            tmp5=tmp11-tmp6;
+            tmp4=tmp10+tmp5;
+
+            int q=planeOffset+i*stride;
+            plane[q]=(byte) clampSample(tmp0+tmp7);
+            plane[q+7]=(byte) clampSample(tmp0-tmp7);
+            plane[q+1]=(byte) clampSample(tmp1+tmp6);
+            plane[q+6]=(byte) clampSample(tmp1-tmp6);
+            plane[q+2]=(byte) clampSample(tmp2+tmp5);
+            plane[q+5]=(byte) clampSample(tmp2-tmp5);
+            plane[q+4]=(byte) clampSample(tmp3+tmp4);
+            plane[q+3]=(byte) clampSample(tmp3-tmp4);
+        }
+    }
+
+    /**
+     * 将反变换的结果加回128，四舍五入并限制到0~255
+     * @param value 反变换的结果
+     * @return 样本值
+     */
+    private static int clampSample(float value){
+        int sample=(int) (value+128.5f);
+        return sample<0?0:Math.min(sample,255);
+    }
+}
@@ -0,0 +1,138 @@
+package moe._47saikyo;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * 可复用的baseline编码会话，持有DCT工作区、熵编码处理器、MCU工作区和已生成的文件头字节，编码多张图像时不必重新创建<br/>
+ * 每次{@link #encode(BufferedImage, OutputStream)}开始时重置DC差分和比特缓冲，再指向新的图像和输出流；
+ * 文件头按尺寸、质量和注释缓存，连续编码相同尺寸的图像（如缩略图）时直接写出缓存的字节；
+ * 与{@link JpegCompressor}一样检测灰度图像，灰度图像按单通道编码<br/>
+ * 会话不是线程安全的，可以通过{@link #forCurrentThread()}获取每个线程各自的会话
+ */
+public class EncoderSession {
+    private static final int MCULength=16;                  //YCbCr 4:2:0的最小编码单元尺寸
+    private static final int grayMCULength=8;               //灰度图像的最小编码单元尺寸
+    private static final byte[] EOI={JPEGHeader.marker,JPEGHeader.EOI};
+    private static final ThreadLocal<EncoderSession> sessions=ThreadLocal.withInitial(EncoderSession::new);
+
+    private QuantumTable        quantumTable=QuantumTable.forQuality(QuantumTable.defaultQuality);  //量化表
+    private String              comment=null;               //图片注释，null时使用默认注释
+    private final EntropyEncoder entropy;                   //熵编码处理器，输出流在每次编码时替换
+    private MCUEncoder          encoder;                    //MCU行编码器，修改质量时重新创建
+    private MCUEncoder          grayEncoder;                //灰度图像的MCU行编码器，首次编码灰度图像时创建
+    private byte[]              header;                     //缓存的文件头
+    private int                 headerWidth=-1;             //缓存的文件头对应的图像宽度
+    private int                 headerHeight=-1;            //缓存的文件头对应的图像高度
+    private boolean             headerGrayscale;            //缓存的文件头是否为灰度文件头
+
+    /**
+     * 创建编码会话，使用默认质量和默认注释
+     */
+    public EncoderSession(){
+        entropy=new EntropyEncoder(OutputStream.nullOutputStream());
+        encoder=new MCUEncoder(new DCT(DCT.engine.fast,quantumTable),entropy,new TableColorConverter());
+    }
+
+    /**
+     * 获取当前线程的编码会话，同一线程多次调用返回同一个会话<br/>
+     * 虚拟线程每个任务一个线程，在虚拟线程中使用时起不到复用的效果
+     * @return 当前线程的编码会话
+     */
+    public static EncoderSession forCurrentThread(){
+        return sessions.get();
+    }
+
+    /**
+     * 设置压缩质量，对之后编码的图像生效
+     * @param quality 压缩质量1~100
+     */
+    public void setQuality(int quality){
+        QuantumTable table=QuantumTable.forQuality(quality);
+        if(table!=quantumTable){
+            quantumTable=table;
+            encoder=new MCUEncoder(new DCT(DCT.engine.fast,quantumTable),entropy,new TableColorConverter());
+            grayEncoder=null;
+            header=null;
+        }
+    }
+
+    /**
+     * 设置图片注释，对之后编码的图像生效
+     * @param comment 图片注释内容，null为默认注释
+     */
+    public void setComment(String comment){
+        if(!Objects.equals(this.comment,comment)){
+            this.comment=comment;
+            header=null;
+        }
+    }
+
+    /**
+     * 编码一张图像，会话的状态在开始时重置，上一张图像编码失败也不影响本次结果<br/>
+     * 熵编码数据经{@link BitWriter}的缓冲区整块写入output，文件头和文件尾直接写入output，output不会被关闭
+     * @param image 被压缩的图像
+     * @param output JPEG输出流
+     * @throws IOException IO异常
+     */
+    public void encode(BufferedImage image,OutputStream output) throws IOException {
+        int width=image.getWidth();
+        int height=image.getHeight();
+        if(width>0xFFFF||height>0xFFFF){
+            throw new IllegalArgumentException("image size must be between 1 and 65535");
+        }
+        RasterReader raster=new RasterReader(image);
+        boolean grayscale=raster.isGrayscale();
+        output.write(header(width,height,grayscale));
+
+        entropy.reset();
+        entropy.setOutput(output);
+        MCUEncoder rowEncoder=encoder;
+        int size=MCULength;
+        if(grayscale){
+            if(grayEncoder==null){
+                grayEncoder=new MCUEncoder(new DCT(DCT.engine.fast,quantumTable),entropy,null,true);
+            }
+            rowEncoder=grayEncoder;
+            size=grayMCULength;
+        }
+        int MCUsPerRow=(width+size-1)/size;
+        int MCURows=(height+size-1)/size;
+        for (int y=0;y<MCURows;y++){
+            rowEncoder.encodeRow(raster,y*size,MCUsPerRow);
+        }
+        rowEncoder.flush();
+        output.write(EOI);
+        //不持有调用方的输出流
+        entropy.setOutput(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * 获取文件头字节，尺寸和通道数与上次相同时直接返回缓存
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param grayscale 是否为灰度文件头
+     * @return SOI到SOS的全部字节
+     * @throws IOException IO异常
+     */
+    private byte[] header(int width,int height,boolean grayscale) throws IOException {
+        if(header==null||width!=headerWidth||height!=headerHeight||grayscale!=headerGrayscale){
+            ByteArrayOutputStream bytes=new ByteArrayOutputStream(1024);
+            JpegIOStream IO=new JpegIOStream(width,height,bytes);
+            IO.setQuantumTable(quantumTable);
+            IO.setGrayscale(grayscale);
+            if(comment!=null){
+                IO.setComment(comment);
+            }
+            IO.writeHeader();
+            IO.getOutput().flush();
+            header=bytes.toByteArray();
+            headerWidth=width;
+            headerHeight=height;
+            headerGrayscale=grayscale;
+        }
+        return header;
+    }
+}
@@ -0,0 +1,356 @@
+package moe._47saikyo;
+import java.io.*;
+
+/**
+ * 熵编码类
+ */
+class EntropyEncoder{
+    private BitWriter writer;                   //比特输出器
+    private int[] lastDC={0,0,0};               //DC差分编码缓存
+    private static final int blockLength=8;     //块大小
+    private int[] zigzagArray;                  //zigzag数组
+    public enum component{Y, Cb,Cr};
+
+    //MCU处理后只有8x8的矩阵，不再需要对4x4特殊处理
+    private static final int[][] zigzagOrder={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{4, 0},{3, 1},{2, 2},{1, 3},{0, 4},{0, 5},{1, 4},{2, 3},{3, 2},{4, 1},{5, 0},{6, 0},{5, 1},{4, 2},{3, 3},{2, 4},{1, 5},{0, 6},{0, 7},{1, 6},{2, 5},{3, 4},{4, 3},{5, 2},{6, 1},{7, 0},{7, 1},{6, 2},{5, 3},{4, 4},{3, 5},{2, 6},{1, 7},{2, 7},{3, 6},{4, 5},{5, 4},{6, 3},{7, 2},{7, 3},{6, 4},{5, 5},{4, 6},{3, 7},{4, 7},{5, 6},{6, 5},{7, 4},{7, 5},{6, 6},{5, 7},{6, 7},{7, 6},{7, 7}};
+    //zigzag序号对应的按行平铺下标
+    static final int[] zigzagIndex=initZigzagIndex();
+    //private final int[][]   zigzagOrder_luminance={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{4, 0},{3, 1},{2, 2},{1, 3},{0, 4},{0, 5},{1, 4},{2, 3},{3, 2},{4, 1},{5, 0},{6, 0},{5, 1},{4, 2},{3, 3},{2, 4},{1, 5},{0, 6},{0, 7},{1, 6},{2, 5},{3, 4},{4, 3},{5, 2},{6, 1},{7, 0},{7, 1},{6, 2},{5, 3},{4, 4},{3, 5},{2, 6},{1, 7},{2, 7},{3, 6},{4, 5},{5, 4},{6, 3},{7, 2},{7, 3},{6, 4},{5, 5},{4, 6},{3, 7},{4, 7},{5, 6},{6, 5},{7, 4},{7, 5},{6, 6},{5, 7},{6, 7},{7, 6},{7, 7}};
+    //private final int[][]   zigzagOrder_chrominance={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{3, 1},{2, 2},{1, 3},{2, 3},{3, 2},{3, 3}};
+
+    //霍夫曼表，按HuffmanTable中的表序号排列
+    private HuffmanTable[] huffmanTables=HuffmanTable.standardTables();
+    //符号频率统计，非null时只统计各表的符号频率而不输出，用于生成优化的霍夫曼表
+    private long[][] frequencies;
+
+    //霍夫曼对照表，按符号查找的打包码字(码字<<5)|码长
+    private int[] DCLuminanceCodes;
+    private int[] DCChrominanceCodes;
+    private int[] ACLuminanceCodes;
+    private int[] ACChrominanceCodes;
+
+    //系数值对应的VLI编码，下标为系数值+VLIOffset，(VLI码<<4)|位深
+    private static final int VLIOffset=2047;
+    private static final int[] VLITable=initVLITable();
+
+    //霍夫曼表
+    public static final int[] bitsDCluminance = {0x00, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    public static final int[] valDCluminance = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    public static final int[] bitsDCchrominance = {0x01, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    public static final int[] valDCchrominance = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    public static final int[] bitsACluminance = {0x10, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    public static final int[] valACluminance =
+            {0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+                    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+                    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+                    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+                    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+                    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+                    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+                    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+                    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+                    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa};
+    public static final int[] bitsACchrominance = {0x11, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    public static final int[] valACchrominance =
+            {0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+                    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+                    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+                    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+                    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+                    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+                    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+                    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+                    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+                    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa};
+
+    /**
+     * 初始化熵编码类，传入JPEG IO类的输出流
+     * @param output 图像输出流，这里需要和JPEG IO类同步
+     */
+    public EntropyEncoder(OutputStream output){
+        writer=new BitWriter(output);
+        zigzagArray=new int[blockLength*blockLength];
+        initHuf();
+    }
+
+    /**
+     * 初始化只统计符号频率的熵编码类，编码过程与正常编码一致，但不产生任何输出
+     * @param frequencies 按{@link HuffmanTable#DCLuminance}等表序号排列的频率统计，每张表长度为{@link HuffmanTable#symbolCount}，统计结果累加到其中
+     */
+    public EntropyEncoder(long[][] frequencies){
+        this(OutputStream.nullOutputStream());
+        this.frequencies=frequencies;
+    }
+
+    /**
+     * 初始化熵编码类，传入JPEG IO类的输出流
+     * @param output 图像输出流，这里需要和JPEG IO类同步
+     */
+    public void setOutput(OutputStream output){
+        writer.setOutput(output);
+    }
+
+    /**
+     * 设置编码使用的霍夫曼表，需与文件头DHT段中写入的表一致
+     * @param tables 按{@link HuffmanTable#DCLuminance}等表序号排列的四张表
+     */
+    public void setHuffmanTables(HuffmanTable[] tables){
+        huffmanTables=tables;
+        initHuf();
+    }
+
+    /**
+     * 重置DC差分编码缓存和比特输出器，霍夫曼表和输出流保持不变，用于开始编码下一张图像
+     */
+    public void reset(){
+        lastDC[0]=lastDC[1]=lastDC[2]=0;
+        writer.reset();
+    }
+
+    /**
+     * 由当前的霍夫曼表取出四张按符号查找的码字表
+     */
+    public void initHuf(){
+        DCLuminanceCodes=huffmanTables[HuffmanTable.DCLuminance].packed;
+        DCChrominanceCodes=huffmanTables[HuffmanTable.DCChrominance].packed;
+        ACLuminanceCodes=huffmanTables[HuffmanTable.ACLuminance].packed;
+        ACChrominanceCodes=huffmanTables[HuffmanTable.ACChrominance].packed;
+    }
+
+    /**
+     * zigzag扫描，将8x8的二维数组转换为64的一维数组，并将左上角的数据集中在前方
+     * @param input 量化矩阵
+     * @return 处理后的64长度的zigzag数组
+     */
+    public static int[] zigzagScan(int[][] input){
+        int[] output=new int[blockLength*blockLength];
+        for (int i=0;i<blockLength*blockLength;i++){
+            output[i]=input[zigzagOrder[i][0]][zigzagOrder[i][1]];
+        }
+        return output;
+    }
+
+    /**
+     * 由{@link #zigzagOrder}生成平铺下标表
+     * @return 64位的下标表，第i位为zigzag序号i在按行平铺数组中的下标
+     */
+    private static int[] initZigzagIndex(){
+        int[] index=new int[blockLength*blockLength];
+        for (int i=0;i<blockLength*blockLength;i++){
+            index[i]=zigzagOrder[i][0]*blockLength+zigzagOrder[i][1];
+        }
+        return index;
+    }
+
+    /**
+     * 对一个按行平铺的量化块进行zigzag扫描并熵编码，zigzag结果写入复用的{@link #zigzagArray}，不产生新对象<br/>
+     * 扫描的同时记录64位的非零系数掩码，熵编码时直接在非零系数之间跳转
+     * @param quantized 按行平铺的64位量化结果
+     * @param type 该矩阵的通道类型
+     * @throws IOException IO异常
+     */
+    void encodeBlock(int[] quantized,component type) throws IOException {
+        long mask=0;
+        for (int i=0;i<blockLength*blockLength;i++){
+            int coefficient=quantized[zigzagIndex[i]];
+            zigzagArray[i]=coefficient;
+            //非零时(c|-c)的符号位为1
+            mask|=(long) ((coefficient|-coefficient)>>>31)<<i;
+        }
+        encodeZigzag(type,mask);
+    }
+
+    /**
+     * 对一个已按zigzag顺序排列的量化块进行熵编码，用于直接编码{@link CoefficientBuffer}或从JPEG文件中读出的系数
+     * @param coefficients 系数数组
+     * @param offset 块的首个系数下标
+     * @param type 该块的通道类型
+     * @throws IOException IO异常
+     */
+    void encodeCoefficients(short[] coefficients,int offset,component type) throws IOException {
+        long mask=0;
+        for (int i=0;i<blockLength*blockLength;i++){
+            int coefficient=coefficients[offset+i];
+            zigzagArray[i]=coefficient;
+            mask|=(long) ((coefficient|-coefficient)>>>31)<<i;
+        }
+        encodeZigzag(type,mask);
+    }
+
+    /**
+     * 对{@link #zigzagArray}中的块进行熵编码：DC差分编码，AC按非零掩码逐个取出非零系数，
+     * 与前导零数量组成游程/位深符号，超过15个的前导零先输出ZRL，最后一个非零系数不在末位时输出EOB<br/>
+     * 霍夫曼码字和VLI码均通过查表得到，拼接后一次写入
+     * @param type 该矩阵的通道类型
+     * @param mask 非零系数掩码，第i位对应zigzag序号i
+     * @throws IOException IO异常
+     */
+    private void encodeZigzag(component type,long mask) throws IOException {
+        int componentID=type.ordinal();
+        int DC=zigzagArray[0];
+        int diff=DC-lastDC[componentID];
+        lastDC[componentID]=DC;
+        if(frequencies!=null){
+            countSymbols(type,diff,mask);
+            return;
+        }
+
+        //按通道选定码字表
+        int[] DCCodes=type==component.Y?DCLuminanceCodes:DCChrominanceCodes;
+        int[] ACCodes=type==component.Y?ACLuminanceCodes:ACChrominanceCodes;
+
+        int VLICode=VLITable[diff+VLIOffset];
+        writeSymbol(DCCodes[VLICode&0xF],VLICode);
+
+        //AC系数编码，last为上一个非零系数的位置
+        int last=0;
+        mask&=~1L;
+        while (mask!=0){
+            int i=Long.numberOfTrailingZeros(mask);
+            int run=i-last-1;
+            //16个前导0的情况，F/0(ZRL标记位)标记15个前导0加上自身共16个前导0，不需要写入VLI
+            while (run>15){
+                writeSymbol(ACCodes[0xF0],0);
+                run-=16;
+            }
+            VLICode=VLITable[zigzagArray[i]+VLIOffset];
+            //高四位记录前导零数量，低四位记录VLI位深
+            writeSymbol(ACCodes[(run<<4)|(VLICode&0xF)],VLICode);
+            last=i;
+            mask&=mask-1;
+        }
+        //未到达末位时写入EOB标记位
+        if(last<63){
+            writeSymbol(ACCodes[0x00],0);
+        }
+    }
+
+    /**
+     * 统计模式下按与{@link #encodeZigzag(component, long)}相同的规则累加各符号的频率
+     * @param type 该矩阵的通道类型
+     * @param diff DC差分
+     * @param mask 非零系数掩码
+     */
+    private void countSymbols(component type,int diff,long mask){
+        long[] DCFrequency=frequencies[type==component.Y?HuffmanTable.DCLuminance:HuffmanTable.DCChrominance];
+        long[] ACFrequency=frequencies[type==component.Y?HuffmanTable.ACLuminance:HuffmanTable.ACChrominance];
+        DCFrequency[VLITable[diff+VLIOffset]&0xF]++;
+        int last=0;
+        mask&=~1L;
+        while (mask!=0){
+            int i=Long.numberOfTrailingZeros(mask);
+            int run=i-last-1;
+            while (run>15){
+                ACFrequency[0xF0]++;
+                run-=16;
+            }
+            ACFrequency[(run<<4)|(VLITable[zigzagArray[i]+VLIOffset]&0xF)]++;
+            last=i;
+            mask&=mask-1;
+        }
+        if(last<63){
+            ACFrequency[0x00]++;
+        }
+    }
+
+    /**
+     * 写入一个霍夫曼符号及其后的VLI码，两者拼接为一个码字一次写入，最长16+11=27位
+     * @param packedCode 打包的霍夫曼码字(码字<<5)|码长
+     * @param VLICode 查表得到的(VLI码<<4)|位深，ZRL和EOB为0
+     * @throws IOException IO异常
+     */
+    private void writeSymbol(int packedCode,int VLICode) throws IOException {
+        int size=VLICode&0xF;
+        writer.writeBits(((packedCode>>>5)<<size)|(VLICode>>>4),(packedCode&0x1F)+size);
+    }
+
+    /**
+     * 写入一个码字，整个码字一次性交给{@link BitWriter}
+     * @param code 码字，取低length位
+     * @param length 码长
+     * @param debug 是否打印在终端中打印bit流，用于调试用途
+     * @throws IOException IO异常
+     */
+    private void writeBits(int code,int length,boolean debug) throws IOException {
+        if(debug){
+            for (int i=length-1;i>=0;i--){
+                System.out.print((code&(1<<i))==0?0:1);
+            }
+        }
+        writer.writeBits(code,length);
+    }
+
+    /**
+     * flush，将比特输出器中剩余的数据补齐一字节后写入输出流中
+     * @throws IOException IO异常
+     */
+    public void flushByte() throws IOException {
+        flushByte(false);
+    }
+
+    /**
+     * flush，将比特输出器中剩余的数据补齐一字节后写入输出流中
+     * @param debug 是否打印在终端中打印bit流，用于调试用途
+     * @throws IOException IO异常
+     */
+    public void flushByte(boolean debug) throws IOException {
+        if(debug){
+            System.out.println();
+        }
+        writer.flush();
+    }
+
+
+    /** VLI可变长整数编码
+     * @return 返回VLI编码的位长
+     * @param num 被编码数
+     * @param write 是否写入output流
+     */
+    public int VLI(int num,boolean write) throws IOException {
+        return VLI(num,write,false);
+    }
+    public int VLI(int num,boolean write,boolean debug) throws IOException {
+        int size=32-Integer.numberOfLeadingZeros(num<0?-num:num);
+        if(write){
+            //负数写入其反码的低size位，即num-1的低size位
+            writeBits(num<0?num-1:num,size,debug);
+        }
+        return size;
+    }
+
+    /**
+     * 预先计算-2047~2047范围内各系数值的VLI位深和VLI码，8位精度的量化系数及DC差分都不会超出这一范围
+     * @return 下标为系数值+{@link #VLIOffset}的表，(VLI码<<4)|位深
+     */
+    private static int[] initVLITable(){
+        int[] table=new int[VLIOffset*2+1];
+        for (int value=-VLIOffset;value<=VLIOffset;value++){
+            int size=32-Integer.numberOfLeadingZeros(Math.abs(value));
+            int code=(value<0?value-1:value)&((1<<size)-1);
+            table[value+VLIOffset]=(code<<4)|size;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,35 @@
+package moe._47saikyo;
+
+/**
+ * 浮点色彩空间转换，公式与{@link JpegCompressor#RgbToYccHandler}一致，色度抽样为偶数行采样U，奇数行采样V
+ */
+class FloatColorConverter implements ColorConverter {
+    private static final int MCULength=16;
+    private static final int blockLength=8;
+    private static final int blockSize=64;
+
+    @Override
+    public void convertMCU(int[] pixels,float[] blocks){
+        int r,c,pixel,R,G,B,index,chromaIndex;
+        for (r=0;r<MCULength;r++){
+            for (c=0;c<MCULength;c++){
+                pixel=pixels[r*MCULength+c];
+                R=(pixel>>16)&0xff;
+                G=(pixel>>8)&0xff;
+                B=pixel&0xff;
+                //所在的Y块序号为(r/8)*2+(c/8)
+                index=((r/blockLength)*2+c/blockLength)*blockSize+(r%blockLength)*blockLength+c%blockLength;
+                blocks[index]=(float) (0.299*R+0.587*G+0.114*B);
+
+                if(c%2==0){
+                    chromaIndex=(r/2)*blockLength+c/2;
+                    if(r%2==0){
+                        blocks[4*blockSize+chromaIndex]=(float) (-0.16874*R-0.33126*G+0.5*B)+128;
+                    }else{
+                        blocks[5*blockSize+chromaIndex]=(float) (0.5*R-0.41869*G-0.08131*B)+128;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package moe._47saikyo;
+import java.io.IOException;
+
+/**
+ * 范式霍夫曼表的解码表，由DHT段中的bits和val生成，与{@link HuffmanTable}的码字分配规则一致<br/>
+ * 码长不超过9位的码字通过一次查表直接得到符号和码长，更长的码字按码长逐位比较各码长的最大码字（IJG jdhuff的做法）
+ */
+final class HuffmanDecoder {
+    private static final int lookaheadBits=9;       //查表解码的位数
+    private static final int maxCodeLength=16;      //JPEG允许的最大码长
+
+    private final int[]     lookahead;              //下标为接下来的9位，(码长<<8)|符号，码长超过9位时为0
+    private final int[]     maxCode;                //各码长的最大码字，没有该码长的码字时为-1
+    private final int[]     valueOffset;            //各码长的首个码字在val中的下标减去该码长的最小码字
+    private final int[]     val;                    //按码长排列的符号
+
+    /**
+     * 由bits和val生成解码表
+     * @param bits 第0位为表类型/ID字节，第1~16位为各码长的码字数量
+     * @param val 按码长排列的符号
+     */
+    HuffmanDecoder(int[] bits,int[] val){
+        this.val=val;
+        lookahead=new int[1<<lookaheadBits];
+        maxCode=new int[maxCodeLength+1];
+        valueOffset=new int[maxCodeLength+1];
+        int code=0;
+        int p=0;
+        for (int length=1;length<=maxCodeLength;length++){
+            valueOffset[length]=p-code;
+            for (int i=0;i<bits[length];i++){
+                if(length<=lookaheadBits){
+                    //以该码字开头的所有9位组合都解码为同一个符号
+                    int shift=lookaheadBits-length;
+                    int first=code<<shift;
+                    for (int j=0;j<(1<<shift);j++){
+                        lookahead[first+j]=(length<<8)|val[p];
+                    }
+                }
+                p++;
+                code++;
+            }
+            maxCode[length]=bits[length]==0?-1:code-1;
+            code<<=1;
+        }
+    }
+
+    /**
+     * 由霍夫曼表生成解码表
+     * @param table 霍夫曼表
+     */
+    HuffmanDecoder(HuffmanTable table){
+        this(table.bits,table.val);
+    }
+
+    /**
+     * 解码一个符号
+     * @param reader 比特读取器
+     * @return 符号0~255
+     * @throws IOException 码字不在表中
+     */
+    int decode(BitReader reader) throws IOException {
+        int entry=lookahead[reader.peek(lookaheadBits)];
+        if(entry!=0){
+            reader.skip(entry>>8);
+            return entry&0xFF;
+        }
+        int bits=reader.peek(maxCodeLength);
+        int length=lookaheadBits+1;
+        int code=bits>>>(maxCodeLength-length);
+        while (code>maxCode[length]){
+            length++;
+            if(length>maxCodeLength){
+                throw new IOException("corrupt JPEG data: invalid Huffman code");
+            }
+            code=bits>>>(maxCodeLength-length);
+        }
+        reader.skip(length);
+        return val[valueOffset[length]+code];
+    }
+}
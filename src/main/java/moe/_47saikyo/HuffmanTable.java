@@ -0,0 +1,195 @@
+package moe._47saikyo;
+
+/**
+ * 范式霍夫曼表，由各码长的码字数量bits和按码长排列的符号val确定，同时持有按符号查找的码字表<br/>
+ * 除JPEG标准附录K给出的四张示例表外，还可以由符号频率统计生成针对单张图像优化的表（IJG jchuff的jpeg_gen_optimal_table）
+ */
+final class HuffmanTable {
+    public static final int DCLuminance=0;          //表序号：亮度DC表
+    public static final int DCChrominance=1;        //表序号：色度DC表
+    public static final int ACLuminance=2;          //表序号：亮度AC表
+    public static final int ACChrominance=3;        //表序号：色度AC表
+    public static final int tableCount=4;           //表数量
+    public static final int symbolCount=257;        //频率统计数组长度，最后一位为生成优化表时保留的伪符号
+
+    private static final int maxCodeLength=16;      //JPEG允许的最大码长
+
+    public final int[]      bits;                   //第0位为DHT段中的表类型/ID字节，第1~16位为各码长的码字数量
+    public final int[]      val;                    //按码长排列的符号
+    final int[][]           codes;                  //按符号查找的码字表，[symbol][0]为码字，[symbol][1]为码长
+    final int[]             packed;                 //按符号查找的打包码字表，(码字<<5)|码长，一次查表即可取出码字和码长
+
+    /**
+     * 由bits和val生成范式霍夫曼码字
+     * @param bits 第0位为表类型/ID字节，第1~16位为各码长的码字数量
+     * @param val 按码长排列的符号
+     */
+    HuffmanTable(int[] bits,int[] val){
+        this.bits=bits;
+        this.val=val;
+        codes=new int[256][2];
+        packed=new int[256];
+        int code=0;
+        int p=0;
+        for (int length=1;length<=maxCodeLength;length++){
+            for (int i=0;i<bits[length];i++){
+                codes[val[p]][0]=code;
+                codes[val[p]][1]=length;
+                packed[val[p]]=(code<<5)|length;
+                p++;
+                code++;
+            }
+            code<<=1;
+        }
+    }
+
+    /**
+     * 获取JPEG标准附录K给出的四张示例表
+     * @return 按{@link #DCLuminance}、{@link #DCChrominance}、{@link #ACLuminance}、{@link #ACChrominance}排列的四张表
+     */
+    public static HuffmanTable[] standardTables(){
+        return standard;
+    }
+
+    private static final HuffmanTable[] standard={
+            new HuffmanTable(EntropyEncoder.bitsDCluminance,EntropyEncoder.valDCluminance),
+            new HuffmanTable(EntropyEncoder.bitsDCchrominance,EntropyEncoder.valDCchrominance),
+            new HuffmanTable(EntropyEncoder.bitsACluminance,EntropyEncoder.valACluminance),
+            new HuffmanTable(EntropyEncoder.bitsACchrominance,EntropyEncoder.valACchrominance)
+    };
+
+    /**
+     * 由四张表的符号频率统计生成优化的霍夫曼表，没有任何符号的表（如灰度图像的色度表）保留标准示例表
+     * @param frequencies 按表序号排列的频率统计，每张表长度为{@link #symbolCount}
+     * @return 按表序号排列的四张优化表
+     */
+    public static HuffmanTable[] optimalTables(long[][] frequencies){
+        HuffmanTable[] tables=new HuffmanTable[tableCount];
+        for (int i=0;i<tableCount;i++){
+            //DHT中的表类型：高四位0为DC、1为AC，低四位为表ID
+            int classId=(i>=ACLuminance?0x10:0x00)|(i&1);
+            tables[i]=optimal(classId,frequencies[i]);
+        }
+        return tables;
+    }
+
+    /**
+     * 判断频率统计中是否没有任何符号
+     * @param frequencies 符号频率
+     * @return 是否全为0
+     */
+    private static boolean isEmpty(long[] frequencies){
+        for (long frequency:frequencies){
+            if(frequency!=0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 由符号频率生成码长不超过16位的霍夫曼表<br/>
+     * 先按频率构造霍夫曼树得到各符号码长，再将超过16位的码字逐对上移，最后去掉保留伪符号占用的码字，
+     * 保留伪符号保证了不会出现全1的码字<br/>
+     * 没有任何符号时只剩下保留伪符号，无法构造霍夫曼树，这时返回同类型的标准示例表
+     * @param classId DHT中的表类型/ID字节
+     * @param frequencies 符号频率，长度为{@link #symbolCount}，不会被修改
+     * @return 优化的霍夫曼表
+     */
+    static HuffmanTable optimal(int classId,long[] frequencies){
+        if(isEmpty(frequencies)){
+            //高四位为DC/AC，低四位为亮度/色度，与表序号的排列一致
+            return standard[(classId>>4)*2+(classId&0x0F)];
+        }
+        long[] freq=new long[symbolCount];
+        int[] codeSize=new int[symbolCount];
+        int[] others=new int[symbolCount];
+        int[] lengthCount=new int[33];
+        int i,j,c1,c2;
+
+        System.arraycopy(frequencies,0,freq,0,256);
+        freq[256]=1;
+        for (i=0;i<symbolCount;i++){
+            others[i]=-1;
+        }
+
+        //每次合并频率最小的两个节点，频率相同时取符号值较大者
+        while (true){
+            c1=-1;
+            c2=-1;
+            long v1=Long.MAX_VALUE;
+            long v2=Long.MAX_VALUE;
+            for (i=0;i<symbolCount;i++){
+                if(freq[i]!=0&&freq[i]<=v1){
+                    v2=v1;
+                    c2=c1;
+                    v1=freq[i];
+                    c1=i;
+                }else if(freq[i]!=0&&freq[i]<=v2){
+                    v2=freq[i];
+                    c2=i;
+                }
+            }
+            if(c2<0){
+                break;
+            }
+            freq[c1]+=freq[c2];
+            freq[c2]=0;
+
+            codeSize[c1]++;
+            while (others[c1]>=0){
+                c1=others[c1];
+                codeSize[c1]++;
+            }
+            others[c1]=c2;
+            codeSize[c2]++;
+            while (others[c2]>=0){
+                c2=others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        for (i=0;i<symbolCount;i++){
+            if(codeSize[i]!=0){
+                lengthCount[codeSize[i]]++;
+            }
+        }
+
+        //码长限制：取出最长的一对码字，将其中一个挂到更短的叶子下面
+        for (i=32;i>maxCodeLength;i--){
+            while (lengthCount[i]>0){
+                j=i-2;
+                while (lengthCount[j]==0){
+                    j--;
+                }
+                lengthCount[i]-=2;
+                lengthCount[i-1]++;
+                lengthCount[j+1]+=2;
+                lengthCount[j]--;
+            }
+        }
+        //去掉保留伪符号，它总是最长码字之一
+        while (lengthCount[i]==0){
+            i--;
+        }
+        lengthCount[i]--;
+
+        int[] bits=new int[maxCodeLength+1];
+        bits[0]=classId;
+        int symbols=0;
+        for (i=1;i<=maxCodeLength;i++){
+            bits[i]=lengthCount[i];
+            symbols+=lengthCount[i];
+        }
+        int[] val=new int[symbols];
+        int p=0;
+        for (i=1;i<=32;i++){
+            for (j=0;j<256;j++){
+                if(codeSize[j]==i){
+                    val[p++]=j;
+                }
+            }
+        }
+        return new HuffmanTable(bits,val);
+    }
+}
@@ -0,0 +1,18 @@
+package moe._47saikyo;
+
+/**
+ * JPEG文件头标记位表
+ */
+class JPEGHeader {
+    public static final byte    marker  = (byte) 0xFF;
+    public static final byte    SOI     = (byte) 0xD8;
+    public static final byte    SOF0    = (byte) 0xC0;
+    public static final byte    SOF2    = (byte) 0xC2;
+    public static final byte    DHT     = (byte) 0xC4;
+    public static final byte    DQT     = (byte) 0xDB;
+    public static final byte    DRI     = (byte) 0xDD;
+    public static final byte    SOS     = (byte) 0xDA;
+    public static final byte[]  RSTn    ={(byte) 0xD0, (byte) 0xD1, (byte) 0xD2, (byte) 0xD3, (byte) 0xD4, (byte) 0xD5, (byte) 0xD6, (byte) 0xD7};
+    public static final byte    COM     = (byte) 0xFE;
+    public static final byte    EOI     = (byte) 0xD9;
+}
@@ -2,6 +2,10 @@ package moe._47saikyo;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * 一个Jpeg压缩编码器，也是我的数字图形处理结课作业，仅供学习用途<br/>
@@ -14,14 +18,35 @@ import java.io.*;
 public class JpegCompressor {
     private JpegIOStream            IO;                         //自定义的IO成员
     private BufferedImage           image;                      //读入的图像
+    private RasterReader            raster;                     //直接读取图像数据数组的像素读取器
+    private ColorConverter          colorConverter;             //编码时使用的色彩空间转换阶段
     private DCT                     dct;                        //DCT处理器
     private EntropyEncoder          entropy;                    //熵编码处理器
     private int                     imageHeight;                //图像实际高度
     private int                     imageWidth;                 //图像实际宽度
     private int                     completionWidth;            //图像补全宽度（补全至16的倍数）
     private int                     completionHeight;           //图像补全高度
-    private final int               MCULength=16;               //最小编码单元尺寸
-    private final int               blockLength=MCULength/2;    //块尺寸
+    private int                     MCUsPerRow;                 //每行的MCU数量
+    private int                     MCURows;                    //MCU行数
+    private int                     restartRows=0;              //每个重启间隔包含的MCU行数，0为不使用重启间隔
+    private boolean                 parallel=false;             //是否按重启间隔并行编码
+    private boolean                 optimizeHuffman=false;      //是否先统计符号频率生成优化的霍夫曼表
+    private boolean                 progressive=false;          //是否使用渐进式编码
+    private boolean                 detectGrayscale=true;       //是否检测灰度图像并按单通道编码
+    private boolean                 grayscale=false;            //是否按单通道灰度编码
+    private boolean                 planar=false;               //是否先并行生成整幅平面YCbCr数据再分块编码
+    private PlanarImage             planes;                     //本次压缩的平面数据，非平面模式为null
+    private long                    targetSize=0;               //目标文件大小（字节），0为不限制
+    private int                     compressedQuality;          //最近一次压缩实际使用的质量，目标大小模式下为选定的质量
+    private boolean                 blockShortcuts=true;        //是否启用平坦块捷径和块结果缓存
+    private BlockStatistics         blockStatistics;            //最近一次压缩的块统计
+    private HuffmanTable[]          huffmanTables=HuffmanTable.standardTables();    //编码使用的霍夫曼表
+    private final int               MCULength=16;               //YCbCr 4:2:0的最小编码单元尺寸
+    private final int               blockLength=MCULength/2;    //块尺寸，即灰度图像的最小编码单元尺寸
+    private int                     MCUSize=MCULength;          //本次编码使用的最小编码单元尺寸
+    private long                    allocatedBytes=-1;          //最近一次压缩过程中调用线程分配的堆内存字节数
+    private CompressionListener     listener;                   //分阶段统计回调
+    private StageRecorder           recorder;                   //本次压缩的分阶段统计器，不需要统计时为null
     //private final int               compLength=blockLength/2;
 
     public  ColorComponentHandler   RgbToYccHandler;
@@ -44,6 +69,15 @@ public class JpegCompressor {
         IO=new JpegIOStream(input,output);
         initJpegCompressor();
     }
+    /**
+     * 直接使用已解码的图像初始化编码器
+     * @param image 被压缩的图像
+     * @param output 获取编码器的outputStream
+     */
+    public JpegCompressor(BufferedImage image,OutputStream output){
+        IO=new JpegIOStream(image,output);
+        initJpegCompressor();
+    }
     public JpegCompressor(JpegIOStream io) {
         IO=io;
         initJpegCompressor();
@@ -55,16 +89,17 @@ public class JpegCompressor {
      *2.获取图片的高度和宽度，并计算补全尺寸<br/>
      *3.初始化DCT处理类和熵编码处理类<br/>
      *4.根据公式定义RGB到YCbCr的转换公式<br/>
+     *5.检测图像是否为灰度图像，确定MCU尺寸<br/>
      */
     private void initJpegCompressor(){
         image = IO.getImage();
+        raster = new RasterReader(image);
+        colorConverter = new TableColorConverter();
         imageWidth = IO.imageWidth;
         imageHeight = IO.imageHeight;
-        dct=new DCT();
+        dct=new DCT(DCT.engine.fast);
         entropy=new EntropyEncoder(IO.getOutput());
-        //对于图像尺寸不满足16的倍数的，补全到16的倍数，方便后面进行分块
-        completionWidth = ((imageWidth % MCULength != 0) ? (int) (Math.floor((double) imageWidth / MCULength) + 1) * MCULength : imageWidth);
-        completionHeight = ((imageHeight % MCULength != 0) ? (int) (Math.floor((double) imageHeight / MCULength) + 1) * MCULength : imageHeight);
+        initMCUGeometry();
 
         //定义RGB 2 YCC通道转换器
         RgbToYccHandler = (RGB) -> new float[]{
@@ -81,6 +116,24 @@ public class JpegCompressor {
         };
     }
 
+    /**
+     * 确定编码方式和MCU划分：启用灰度检测且图像为灰度时按单通道编码，MCU为8x8，否则为YCbCr 4:2:0的16x16<br/>
+     * 图像尺寸不满足MCU尺寸的倍数时补全，已设置的重启间隔按新的每行MCU数量重新换算
+     */
+    private void initMCUGeometry(){
+        grayscale=detectGrayscale&&raster.isGrayscale();
+        MCUSize=grayscale?blockLength:MCULength;
+        IO.setGrayscale(grayscale);
+        //对于图像尺寸不满足MCU尺寸倍数的，补全到MCU尺寸的倍数，方便后面进行分块
+        completionWidth = ((imageWidth % MCUSize != 0) ? (int) (Math.floor((double) imageWidth / MCUSize) + 1) * MCUSize : imageWidth);
+        completionHeight = ((imageHeight % MCUSize != 0) ? (int) (Math.floor((double) imageHeight / MCUSize) + 1) * MCUSize : imageHeight);
+        MCUsPerRow = completionWidth / MCUSize;
+        MCURows = completionHeight / MCUSize;
+        if(restartRows>0){
+            setRestartInterval(restartRows);
+        }
+    }
+
     /**
      *压缩的全步骤调用，包括：<br/>
      *1.写文件头<br/>
@@ -88,1222 +141,556 @@ public class JpegCompressor {
      *3.写文件尾<br/>
      */
     public void doCompress() throws IOException {
-        IO.writeHeader();
-        WriteCompressedData();
+        long start=System.nanoTime();
+        long allocatedStart=StageRecorder.threadAllocatedBytes();
+        recorder=StageRecorder.enabled(listener)?new StageRecorder():null;
+        //同一个编码器可以多次压缩，每次都从干净的熵编码状态开始
+        entropy.reset();
+        //优化的霍夫曼表只对生成它的那次压缩有效，每次都从标准表开始
+        huffmanTables=HuffmanTable.standardTables();
+        IO.setHuffmanTables(huffmanTables);
+        entropy.setHuffmanTables(huffmanTables);
+        IO.setProgressive(progressive);
+        blockStatistics=new BlockStatistics();
+        dct.setShortcuts(blockShortcuts);
+        dct.setStatistics(blockStatistics);
+        if(planar){
+            mark();
+            planes=PlanarImage.convert(raster,colorConverter,grayscale,parallel,MCUsPerRow,MCURows);
+            lap(CompressionListener.stage.color);
+        }
+        compressedQuality=getQuality();
+        if(progressive){
+            mark();
+            IO.writeHeader();
+            lap(CompressionListener.stage.header);
+            writeProgressiveData();
+        }else if(targetSize>0){
+            writeTargetSizeData();
+        }else{
+            if(optimizeHuffman){
+                mark();
+                optimizeHuffmanTables();
+                lap(CompressionListener.stage.optimize);
+            }
+            mark();
+            IO.writeHeader();
+            lap(CompressionListener.stage.header);
+            WriteCompressedData();
+        }
         IO.writeEOI();
+        lap(CompressionListener.stage.flush);
+        planes=null;
+        allocatedBytes=allocatedStart<0?-1:StageRecorder.threadAllocatedBytes()-allocatedStart;
+        if(recorder!=null){
+            recorder.report(listener,imageWidth,imageHeight,start,allocatedBytes);
+            recorder=null;
+        }
     }
 
     /**
-     * 设置图片注释，该部分会被包含在JPEG成图的文件头中
-     * @param comment 图片注释内容
+     * 统计模式下开始一个阶段
      */
-    public void setComment(String comment){
-        IO.setComment(comment);
+    private void mark(){
+        if(recorder!=null){
+            recorder.start();
+        }
     }
 
     /**
-     * 修改编码器的outputStream，适用于初始化时构造器的output参数传入null，等待压缩之前传入的情况
-     * @param output 编码器修改后的outputStream
+     * 统计模式下结束一个阶段
+     * @param stage 结束的阶段
      */
-    public void setOutput(OutputStream output){
-        IO.setOutput(output);
-        entropy.setOutput(IO.getOutput());
+    private void lap(CompressionListener.stage stage){
+        if(recorder!=null){
+            recorder.lap(stage);
+        }
     }
 
     /**
-     * 测试输出，该方法会将图像的当前状态以BMP格式输出，用于调试熵编码之前的压缩过程
-     * @param File BMP图片的输出路径
+     * 获取最近一次{@link #doCompress()}过程中调用线程分配的堆内存字节数，用于跟踪每张图片的内存分配量<br/>
+     * 并行模式下ForkJoin线程池中的分配不计入其中
+     * @return 分配的字节数，JVM不支持统计时返回-1
      */
-    public void deBugWrite(String File){
-        IO.debugWrite(File);
+    public long getAllocatedBytes(){
+        return allocatedBytes;
     }
 
-//  void WriteCompressedData(BufferedOutputStream outStream) throws IOException {
-
     /**
-     * 压缩的具体过程，包括：<br/>
-     * 1.获取MCU编号（x和y序号）<br/>
-     * 2.根据x和y序号获取到MCU的具体偏移值<br/>
-     * 3.通过{@link #getMCUBlock(int, int)}对16x16的MCU进行色彩空间转换和色度抽样<br/>
-     * 4.通过{@link #DCTComp(float[][], DCT.component)}将转换后的数据矩阵进行DCT和量化处理<br/>
-     * 5.通过{@link #entropyComp(int[][], EntropyEncoder.component)}对量化矩阵进行熵编码，包括Zigzag扫描、游程编码、哈夫曼编码、VLI编码<br/>
-     * 6.将熵编码数据写入文件输出流中<br/>
-     * @throws IOException IO异常
+     * 获取最近一次{@link #doCompress()}的块统计，包括平坦块数量和块结果缓存的命中率
+     * @return 块统计，尚未压缩时为null
      */
-    private void WriteCompressedData() throws IOException {
-        float[][][] Array;
-
-        int[][][] DCTYArray = new int[4][][];
-        int[][] DCTUArray;
-        int[][] DCTVArray;
-
-        int i,x,y;
-        //分块序号，x和y标记当前行/列的第几个MCU
-        for(y=0;y*MCULength+MCULength<=completionHeight;y++){
-            for (x=0;x*MCULength+MCULength<=completionWidth;x++){
-
-                //Y1 Y2 Y3 Y4 Cb Cr
-                Array=getMCUBlock(x,y);
-
-                //DCT转换
-                for (i=0;i<4;i++){
-                    DCTYArray[i]=DCTComp_L(Array[i]);
-                }
-                DCTUArray=DCTComp_C(Array[4]);
-                DCTVArray=DCTComp_C(Array[5]);
-
-                //熵编码
-                for (i=0;i<4;i++){
-                    entropyComp(DCTYArray[i], EntropyEncoder.component.Y);
-                }
-                entropyComp(DCTUArray, EntropyEncoder.component.Cb);
-                entropyComp(DCTVArray, EntropyEncoder.component.Cr);
-
-            }
-        }
-        entropy.flushByte();
+    public BlockStatistics getBlockStatistics(){
+        return blockStatistics;
     }
 
     /**
-     * MCU分块，获取对应x和y序号位置的16x16矩阵，并将其进行色彩空间转换和色度抽样，返回处理完毕的6组矩阵，这里的色度矩阵已经经过色度抽样处理，故仍为8x8矩阵
-     * @param x MCU所在的x序号
-     * @param y MCU所在的y序号
-     * @return 6组8x8的float矩阵，分别为左上灰度(Y1)、右上灰度(Y2)、左下灰度(Y3)、右下灰度(Y4)、色度B(Cb)、色度R矩阵(Cr)
+     * 设置是否启用平坦块捷径和块结果缓存，开启后所有样本相同的块不经过变换直接得到只有DC的量化结果，
+     * 与之前的块完全相同的块直接复用缓存的量化结果；截图、UI和纯色背景的图像可以大幅减少DCT的计算量<br/>
+     * 输出与关闭时完全一致；缓存命中率过低时自动关闭，对自然图像只有很小的开销
+     * @param shortcuts 是否启用，默认启用
      */
-    private float[][][] getMCUBlock(int x,int y){
-        float[] RGB;
-        float[] YCC;
-        float[][][] Array=new float[6][blockLength][blockLength];
-        int i,xOffset,yOffset,r,c,MCU_r_offset,MCU_c_offset;
-        //生成Y U V矩阵
-        for (i=0;i<4;i++){
-            //x/yOffset用去获取当前像素点在图像中的绝对位置
-            xOffset=x*MCULength;
-            yOffset=y*MCULength;
-            //r/cOffset用于获取当前像素点在MCU中的相对位置
-            MCU_r_offset=0;
-            MCU_c_offset=0;
-            if(i==1||i==3){
-                xOffset+=blockLength;
-                MCU_c_offset+=blockLength;
-            }
-            if(i==2||i==3){
-                yOffset+=blockLength;
-                MCU_r_offset+=blockLength;
-            }
-            for (r=0;r<blockLength;r++){
-                for (c=0;c<blockLength;c++){
-
-                    if(xOffset+c>=imageWidth||yOffset+r>=imageHeight){
-                        //边缘色度填充，防止出现振铃效应
-                        RGB=getRGB(xOffset+c>=imageWidth?imageWidth-1:xOffset+c,yOffset+r>=imageHeight?imageHeight-1:yOffset+r);
-                    }else{
-                        RGB=getRGB(xOffset+c,yOffset+r);
-                    }
-
-                    YCC=RgbToYccHandler.get(RGB);
-                    Array[i][r][c]=YCC[0];
-
-                    //downSampling 色度抽样，偶数行采样U，奇数行采样V，压缩的第一步，将每4个像素共12组数据压缩为6组
-                    if((r+MCU_r_offset)%2==0&&(c+MCU_c_offset)%2==0){
-                        Array[4][(r+MCU_r_offset)/2][(c+MCU_c_offset)/2]=YCC[1];
-                    }
-                    else if((r+MCU_r_offset)%2==1&&(c+MCU_c_offset)%2==0){
-                        Array[5][(r+MCU_r_offset)/2][(c+MCU_c_offset)/2]=YCC[2];
-                    }
-                }
-            }
-        }
-        return Array;
+    public void setBlockShortcuts(boolean shortcuts){
+        blockShortcuts=shortcuts;
     }
 
     /**
-     * 调用DCT处理及量化
-     * @param matrix 一组8x8的block，为YUV色彩通道数据
-     * @param component 该矩阵所属的色彩通道，有luminance和chrominance
-     * @return 返回经过量化处理的量化矩阵
+     * 注册分阶段统计回调，每次{@link #doCompress()}完成时回调各阶段的耗时和内存分配量<br/>
+     * 统计时每个MCU的色彩空间转换、DCT和熵编码分别打点，会带来少量额外开销；未注册回调且JFR未开启
+     * moe._47saikyo.Compression/CompressionStage事件时不进行统计
+     * @param listener 统计回调，null为取消注册
      */
-    private int[][] DCTComp(float[][] matrix,DCT.component component){
-        dct.initMatrix(matrix);
-        dct.forwardDCT();
-        return dct.quantize(component);
+    public void setCompressionListener(CompressionListener listener){
+        this.listener=listener;
     }
 
     /**
-     * 对量化矩阵进行逆变换，重新得到YCbCr矩阵，用于调试输出
-     * @param matrix 一组8x8的block，为一个经过处理的量化矩阵
-     * @param component 该矩阵所属的色彩通道，有luminance和chrominance
-     * @return 返回经过逆变换的YUV矩阵
+     * 设置图片注释，该部分会被包含在JPEG成图的文件头中
+     * @param comment 图片注释内容
      */
-    private float[][] IDCTComp(int[][] matrix,DCT.component component){
-        dct.initMatrix(matrix);
-        dct.reverseQuantize(component);
-        return dct.reverseDCT();
+    public void setComment(String comment){
+        IO.setComment(comment);
     }
 
     /**
-     * 对一个灰度矩阵进行DCT变换
-     * @param matrix 8x8的灰度矩阵
-     * @return 经过处理的量化矩阵
+     * 修改编码器的outputStream，适用于初始化时构造器的output参数传入null，等待压缩之前传入的情况
+     * @param output 编码器修改后的outputStream
      */
-    private int[][] DCTComp_L(float[][] matrix){return DCTComp(matrix,DCT.component.luminance);}
+    public void setOutput(OutputStream output){
+        IO.setOutput(output);
+        entropy.setOutput(IO.getOutput());
+    }
 
     /**
-     * 对一个色度矩阵进行DCT变换
-     * @param matrix 8x8的色度矩阵
-     * @return 经过处理的量化矩阵
+     * 选择正变换DCT的实现方式，默认使用AAN快速DCT
+     * @param fast true为行列分离的AAN快速DCT，false为按定义式计算的参考实现，可用于校验输出一致性及对比耗时
      */
-    private int[][] DCTComp_C(float[][] matrix){return DCTComp(matrix,DCT.component.chrominance);}
+    public void setFastDCT(boolean fast){
+        dct=new DCT(fast?DCT.engine.fast:DCT.engine.reference,dct.getQuantumTable());
+    }
 
     /**
-     * 对一个被量化的灰度矩阵进行逆变换
-     * @param matrix 8x8的灰度量化矩阵
-     * @return 逆变换后的灰度矩阵
+     * 设置压缩质量，量化表按IJG的质量公式由JPEG标准量化表缩放得到，同时用于量化和文件头中的DQT段
+     * @param quality 压缩质量1~100，默认为50，即JPEG标准量化表
      */
-    private float[][] IDCT_L(int[][] matrix){return IDCTComp(matrix,DCT.component.luminance);}
+    public void setQuality(int quality){
+        QuantumTable table=QuantumTable.forQuality(quality);
+        dct=new DCT(dct.getEngine(),table);
+        IO.setQuantumTable(table);
+    }
 
     /**
-     * 对一个被量化的色度矩阵进行逆变换
-     * @param matrix 8x8的色度量化矩阵
-     * @return 逆变换后的色度矩阵
+     * 获取通过{@link #setQuality(int)}设置的压缩质量，目标大小模式的查找不会改变它
+     * @return 压缩质量1~100
      */
-    private float[][] IDCT_C(int[][] matrix){return IDCTComp(matrix,DCT.component.chrominance);}
+    public int getQuality(){
+        return dct.getQuantumTable().quality;
+    }
 
     /**
-     * 调用熵编码，并直接写入输出流
-     * @param matrix 一组8x8的量化矩阵
-     * @param component 该矩阵所属的色彩通道，有luminance和chrominance
-     * @throws IOException IO异常
+     * 获取最近一次{@link #doCompress()}实际使用的压缩质量，目标大小模式下为查找得到的质量，其他模式下与{@link #getQuality()}相同
+     * @return 压缩质量1~100，尚未压缩时为0
      */
-    private void entropyComp(int[][] matrix, EntropyEncoder.component component) throws IOException {
-        entropy.initMatrix(matrix);
-        entropy.writeHuffmanBits(component);
+    public int getCompressedQuality(){
+        return compressedQuality;
     }
 
     /**
-     * 通过{@link ImageIO}的getRGB获取3byte的RGB值，并通过位运算获取到R、G、B三个色彩通道的值
-     * @param x 像素点的x坐标
-     * @param y 像素点的y坐标
-     * @return 一个大小为3的float数组，分别存储了R、G、B的数据
+     * 设置目标文件大小，开启后压缩时先缓存整幅图像未量化的DCT系数，再二分查找文件大小不超过目标的最高质量，
+     * 每次试算只重新量化并只计数地熵编码，最后按选定的质量写出，选定的质量可由{@link #getCompressedQuality()}获取，
+     * {@link #setQuality(int)}设置的质量保持不变<br/>
+     * 开启优化霍夫曼表时每个质量都按各自的优化表试算；质量为1仍超出目标时按质量1输出；渐进式编码不支持目标大小<br/>
+     * 频域系数缓存在一个float数组中，MCU数量×每个MCU的块数×64超过int范围的图像（约2.3亿像素以上）会抛出{@link IllegalArgumentException}
+     * @param bytes 目标文件大小（字节），0为不限制
      */
-    private float[] getRGB(int x, int y) {
-        if (x >= imageWidth) {
-            x -= imageWidth;
-            y++;
-        }
-        if (y >= imageHeight) {
-            return null;
-        }
-        int value = image.getRGB(x, y);
-        int r = ((value >> 16) & 0xff);
-        int g = ((value >> 8) & 0xff);
-        int b = (value & 0xff);
-        return new float[]{r, g, b};
+    public void setTargetSize(long bytes){
+        targetSize=bytes;
     }
 
     /**
-     * 通过{@link ImageIO}的setRGB写回RGB的值，这一步是为了中途调试，在实际压缩过程中并不会用到
-     * @param x 像素点的x坐标
-     * @param y 像素点的y坐标
-     * @param RGBComponent 一个大小为3的float数组，分别存储了R、G、B的数据
+     * 选择色彩空间转换的实现方式，默认使用查表式定点转换
+     * @param fixedPoint true为查表式定点转换，色度按2x2平均抽样；false为与{@link #RgbToYccHandler}一致的浮点转换，色度按点抽样
      */
-    private void setRGB(int x, int y,float[] RGBComponent){
-        //YCC转回RGB时有可能会超出[0,255]，需要判断一下，血的教训（
-        for (int i=0;i<3;i++){
-            if(RGBComponent[i]<0)RGBComponent[i]=0;
-            if(RGBComponent[i]>255)RGBComponent[i]=255;
-        }
-        int rgb=((int) RGBComponent[0] << 16) | ((int) RGBComponent[1] << 8) | (int) (RGBComponent[2]);
-        image.setRGB(x, y, rgb);
+    public void setFixedPointColor(boolean fixedPoint){
+        colorConverter=fixedPoint?new TableColorConverter():new FloatColorConverter();
     }
-}
-
-/**
- * JPEG文件头标记位表
- */
-class JPEGHeader {
-    public static final byte    marker  = (byte) 0xFF;
-    public static final byte    SOI     = (byte) 0xD8;
-    public static final byte    SOF0    = (byte) 0xC0;
-    public static final byte    SOF2    = (byte) 0xC2;
-    public static final byte    DHT     = (byte) 0xC4;
-    public static final byte    DQT     = (byte) 0xDB;
-    public static final byte    DRI     = (byte) 0xDD;
-    public static final byte    SOS     = (byte) 0xDA;
-    public static final byte[]  RSTn    ={(byte) 0xD1, (byte) 0xD2, (byte) 0xD3, (byte) 0xD4, (byte) 0xD5, (byte) 0xD6, (byte) 0xD7};
-    public static final byte    COM     = (byte) 0xFE;
-    public static final byte    EOI     = (byte) 0xD9;
-}
-
-class JpegIOStream {
-    private BufferedImage bufferedImage;
-    private BufferedOutputStream bufferedOutput;
-    public int imageHeight;
-    public int imageWidth;
-    private byte[] comment;
-    private final String defaultComment="JPEG Compressor Copyright 2023 Smile_slime_47";
-
 
     /**
-     * 初始化JPEG IO类
-     * @param input 图像的路径
-     * @param output IO的输出流
+     * 替换编码时使用的色彩空间转换阶段，按单通道编码的灰度图像不经过色彩空间转换
+     * @param converter 色彩空间转换实现，需保证线程安全
      */
-    public JpegIOStream(File input, OutputStream output) {
-        try {
-            bufferedImage = ImageIO.read(input);
-        } catch (IOException ignored) {
-        }
-        this.imageWidth = bufferedImage.getWidth();
-        this.imageHeight = bufferedImage.getHeight();
-        comment=defaultComment.getBytes();
-        bufferedOutput=output!=null?new BufferedOutputStream(output):null;
+    public void setColorConverter(ColorConverter converter){
+        colorConverter=converter;
     }
+
     /**
-     * 初始化JPEG IO类
-     * @param input IO的输入流
-     * @param output IO的输出流
+     * 设置重启间隔，每个重启间隔以整行MCU为单位，间隔之间插入RST0~RST7标记并重置DC差分，文件头中写入DRI段
+     * @param rows 每个重启间隔包含的MCU行数，0为不使用重启间隔
      */
-    public JpegIOStream(InputStream input, OutputStream output) {
-        try {
-            bufferedImage = ImageIO.read(input);
-        } catch (IOException ignored) {
+    public void setRestartInterval(int rows){
+        if(rows<0||(long) rows*MCUsPerRow>0xFFFF){
+            throw new IllegalArgumentException("restart interval must be between 0 and 65535 MCUs");
         }
-        this.imageWidth = bufferedImage.getWidth();
-        this.imageHeight = bufferedImage.getHeight();
-        comment=defaultComment.getBytes();
-        bufferedOutput=output!=null?new BufferedOutputStream(output):null;
+        restartRows=rows;
+        IO.setRestartInterval(rows*MCUsPerRow);
     }
 
     /**
-     * 设置IO类的输出流，适用于构造参数传入了null的情况
-     * @param output IO的输出流
+     * 设置是否检测灰度图像，默认开启<br/>
+     * TYPE_BYTE_GRAY图像以及所有像素都满足R=G=B的图像会按单通道编码：MCU为8x8，文件头只包含Y通道和亮度表，
+     * 不进行色彩空间转换，也没有色度块的DCT和熵编码；关闭后所有图像都按YCbCr 4:2:0的三通道编码
+     * @param detect 是否检测灰度图像
      */
-    public void setOutput(OutputStream output){
-        bufferedOutput=new BufferedOutputStream(output);
+    public void setGrayscaleDetection(boolean detect){
+        if(detect!=detectGrayscale){
+            detectGrayscale=detect;
+            initMCUGeometry();
+        }
     }
 
     /**
-     * 获取IO的输出流
-     * @return IO的输出流
-     */
-    public BufferedOutputStream getOutput(){return bufferedOutput;}
-
-    /**
-     * 获取IO读入的图像
-     * @return 读入图像的bufferedImage类
+     * 判断图像是否按单通道灰度编码
+     * @return 是否按单通道灰度编码
      */
-    public BufferedImage getImage() {return bufferedImage;}
+    public boolean isGrayscale(){
+        return grayscale;
+    }
 
     /**
-     * 调试输出，输出对应路径下的BMP文件
-     * @param File 输出图片路径
+     * 设置是否并行编码，开启后各个重启间隔在ForkJoin线程池中独立编码，再按顺序拼接<br/>
+     * 并行编码依赖重启间隔，未设置重启间隔时默认每行MCU为一个重启间隔
+     * @param parallel 是否并行编码
      */
-    public void debugWrite(String File) {
-        try {
-            ImageIO.write(bufferedImage, "bmp", new File(File));
-        } catch (IOException ignored) {
+    public void setParallel(boolean parallel){
+        this.parallel=parallel;
+        if(parallel&&restartRows==0){
+            setRestartInterval(1);
         }
     }
 
     /**
-     * 设置图片注释，该注释会被写入JPEG图片的文件头中
-     * @param com 注释内容
+     * 设置是否使用优化的霍夫曼表，开启后压缩分为两遍：第一遍完整地进行DCT和量化，只统计各表的符号频率，
+     * 由此生成码长不超过16位的优化表写入DHT段；第二遍使用优化表正常编码<br/>
+     * 文件通常可缩小5%~10%，代价是色彩空间转换和DCT要执行两次
+     * @param optimize 是否使用优化的霍夫曼表，默认使用JPEG标准附录K的示例表
      */
-    public void setComment(String com){
-        comment=com.getBytes();
+    public void setOptimizeHuffman(boolean optimize){
+        optimizeHuffman=optimize;
     }
 
     /**
-     * 写标志位
-     * @param marker 标志位的码，可以直接调用JPEG Header类
-     * @throws IOException IO异常
+     * 设置是否使用渐进式（SOF2）编码，开启后先缓存整幅图像的量化系数，再按IJG的标准扫描脚本输出DC、AC分频带和逐次逼近细化共10次扫描，
+     * 每次扫描使用针对该次扫描优化的霍夫曼表<br/>
+     * 渐进式编码不使用重启间隔；并行模式下各行MCU的DCT和量化并行进行
+     * @param progressive 是否使用渐进式编码
      */
-    private void writeMarker(byte marker) throws IOException {
-        bufferedOutput.write(JPEGHeader.marker);
-        bufferedOutput.write(marker);
+    public void setProgressive(boolean progressive){
+        this.progressive=progressive;
     }
 
     /**
-     * 向输出流中写入一个byte的数据
-     * @param data 一字节数据
-     * @throws IOException IO异常
+     * 设置是否使用平面模式，开启后压缩前先按MCU行完成整幅图像的色彩空间转换和色度抽样（并行模式下在ForkJoin线程池中并行转换），
+     * 得到按MCU补全的Y、Cb、Cr平面，编码时每个块只需按行复制，优化霍夫曼表的两遍编码也不再重复转换<br/>
+     * 输出与非平面模式完全一致；默认的定点色彩转换和灰度图像的平面以byte存储，每个像素额外占用约1.5字节内存，
+     * 其他色彩转换阶段的平面以float存储，约6字节，压缩完成后释放
+     * @param planar 是否使用平面模式
      */
-    private void writeByte(byte data) throws IOException {
-        bufferedOutput.write(data);
+    public void setPlanar(boolean planar){
+        this.planar=planar;
     }
 
     /**
-     * 向输出流中写入一个byte数组的数据
-     * @param dataArr 一组字节数据
-     * @throws IOException IO异常
+     * 测试输出，该方法会将图像的当前状态以BMP格式输出，用于调试熵编码之前的压缩过程
+     * @param File BMP图片的输出路径
      */
-    private void writeArray(byte[] dataArr) throws IOException {
-        bufferedOutput.write(dataArr);
+    public void deBugWrite(String File){
+        IO.debugWrite(File);
     }
 
-    /**
-     * 向输出流中写入EOI标志位，象征编码过程的结束
-     * @throws IOException IO异常
-     */
-    public void writeEOI() throws IOException {
-        writeMarker(JPEGHeader.EOI);
-        bufferedOutput.flush();
-    }
+//  void WriteCompressedData(BufferedOutputStream outStream) throws IOException {
 
     /**
-     * 向输出流中写入JPEG文件头，象征编码过程的开始
+     * 压缩的具体过程，包括：<br/>
+     * 1.获取MCU编号（x和y序号）<br/>
+     * 2.根据x和y序号获取到MCU的具体偏移值<br/>
+     * 3.通过{@link ColorConverter#convertMCU(int[], float[])}对16x16的MCU进行色彩空间转换和色度抽样<br/>
+     * 4.通过{@link DCT#transform(float[], int, DCT.component, int[])}将转换后的数据矩阵进行DCT和量化处理<br/>
+     * 5.通过{@link EntropyEncoder#encodeBlock(int[], EntropyEncoder.component)}对量化矩阵进行熵编码，包括Zigzag扫描、游程编码、哈夫曼编码、VLI编码<br/>
+     * 6.将熵编码数据写入文件输出流中<br/>
      * @throws IOException IO异常
      */
-    public void writeHeader() throws IOException {
-        int[] zigzagDQT;
-        int[] bitsDHT,valDHT;
-        //Start Of Image
-        writeMarker(JPEGHeader.SOI);
-
-        //APP0_JFIF文件头
-        writeMarker((byte) 0xE0);
-        byte[] JFIFPayload={
-                //标记码长度——16
-                0x00,
-                0x10,
-                //"JFIF"标记
-                0x4A,
-                0x46,
-                0x49,
-                0x46,
-                0x00,
-                //JFIF版本号_01.01
-                0x01,
-                0x01,
-                //坐标单位——0：无单位；1：英寸：2：厘米
-                0x00,
-                //水平/垂直分辨率
-                0x00,
-                0x01,
-                0x00,
-                0x01,
-                //thumbnail分辨率
-                0x00,
-                0x000
-        };
-        writeArray(JFIFPayload);
-
-        //Comment_图片注释
-        writeMarker(JPEGHeader.COM);
-        //Comment长度
-        writeByte((byte) ((comment.length>>8)&0xFF));
-        writeByte((byte) ((comment.length)&0xFF));
-        //写入Comment
-        writeArray(comment);
-
-        //DQT_亮度量化表
-        writeMarker(JPEGHeader.DQT);
-        zigzagDQT=EntropyEncoder.zigzagScan(DCT.quantum_luminance);
-        //DQT标记段长度
-        writeByte((byte) 0x00);
-        writeByte((byte) 0x43);
-        //高四位：精度——0为1byte、1为2byte；低四位：量化表ID——0~3
-        writeByte((byte) 0x00);
-        for (int i:zigzagDQT){
-            writeByte((byte) i);
-        }
-
-        //DQT_亮度量化表
-        writeMarker(JPEGHeader.DQT);
-        zigzagDQT=EntropyEncoder.zigzagScan(DCT.quantum_chrominance);
-        //DQT标记段长度
-        writeByte((byte) 0x00);
-        writeByte((byte) 0x43);
-        //高四位：精度——0为1byte、1为2byte；低四位：量化表ID——0~3
-        writeByte((byte) 0x01);
-        for (int i:zigzagDQT){
-            writeByte((byte) i);
-        }
-
-        //Start Of Frame，图像基本信息
-        writeMarker(JPEGHeader.SOF0);
-        byte[] SOF0Payload={
-                //标记段长度_17
-                0x00,
-                0x11,
-                //图片精度（位深）
-                0x08,
-                //图片高度
-                (byte) ((imageHeight>>8)&0xFF),
-                (byte) ((imageHeight)&0xFF),
-                //图片宽度
-                (byte) ((imageWidth>>8)&0xFF),
-                (byte) ((imageWidth)&0xFF),
-                //色彩通道数
-                0x03,
-                //通道ID1_Y通道
-                0x01,
-                //采样系数：高四位：水平；低四位：垂直
-                (2<<4)+2,
-                //量化表ID
-                0x00,
-                //通道ID2_Cb通道
-                0x02,
-                //采样系数：高四位：水平；低四位：垂直
-                (1<<4)+1,
-                //量化表ID
-                0x01,
-                //通道ID3_Cr通道
-                0x03,
-                //采样系数：高四位：水平；低四位：垂直
-                (1<<4)+1,
-                //量化表ID
-                0x01,
-        };
-        writeArray(SOF0Payload);
-
-        //DHT_霍夫曼表段
-        writeMarker(JPEGHeader.DHT);
-        //0x00
-        bitsDHT=EntropyEncoder.bitsDCluminance;
-        valDHT=EntropyEncoder.valDCluminance;
-        writeByte((byte) (((2+bitsDHT.length+valDHT.length)>>8)&0xFF));
-        writeByte((byte) ((2+bitsDHT.length+valDHT.length)&0xFF));
-        for (int i:bitsDHT){
-            writeByte((byte) i);
-        }
-        for (int i:valDHT){
-            writeByte((byte) i);
-        }
-        //DHT_霍夫曼表段
-        writeMarker(JPEGHeader.DHT);
-        //0x01
-        bitsDHT=EntropyEncoder.bitsDCchrominance;
-        valDHT=EntropyEncoder.valDCchrominance;
-        writeByte((byte) (((2+bitsDHT.length+valDHT.length)>>8)&0xFF));
-        writeByte((byte) ((2+bitsDHT.length+valDHT.length)&0xFF));
-        for (int i:bitsDHT){
-            writeByte((byte) i);
-        }
-        for (int i:valDHT){
-            writeByte((byte) i);
-        }
-
-        //DHT_霍夫曼表段
-        writeMarker(JPEGHeader.DHT);
-        //0x10
-        bitsDHT=EntropyEncoder.bitsACluminance;
-        valDHT=EntropyEncoder.valACluminance;
-        writeByte((byte) (((2+bitsDHT.length+valDHT.length)>>8)&0xFF));
-        writeByte((byte) ((2+bitsDHT.length+valDHT.length)&0xFF));
-        for (int i:bitsDHT){
-            writeByte((byte) i);
-        }
-        for (int i:valDHT){
-            writeByte((byte) i);
-        }
-
-        //DHT_霍夫曼表段
-        writeMarker(JPEGHeader.DHT);
-        //0x11
-        bitsDHT=EntropyEncoder.bitsACchrominance;
-        valDHT=EntropyEncoder.valACchrominance;
-        writeByte((byte) (((2+bitsDHT.length+valDHT.length)>>8)&0xFF));
-        writeByte((byte) ((2+bitsDHT.length+valDHT.length)&0xFF));
-        for (int i:bitsDHT){
-            writeByte((byte) i);
-        }
-        for (int i:valDHT){
-            writeByte((byte) i);
+    private void WriteCompressedData() throws IOException {
+        if(restartRows>0){
+            writeRestartIntervals();
+            return;
         }
-
-        //Start Of Scan
-        writeMarker(JPEGHeader.SOS);
-        byte[] SOSPayload={
-                //SOS段长度
-                0x00,
-                0x0C,
-                //色彩通道数
-                0x03,
-                //通道ID1_Y通道
-                0x01,
-                //Huffman表号
-                (0<<4)+0,
-                //通道ID2_Cb通道
-                0x02,
-                //Huffman表号
-                (1<<4)+1,
-                //通道ID3_Cr通道
-                0x03,
-                //Huffman表号
-                (1<<4)+1,
-                //Ss
-                0x00,
-                //Se
-                0x3F,
-                //Ah+Al
-                0x00,
-        };
-        writeArray(SOSPayload);
+        encodeMCURows(0,MCURows,dct,entropy,recorder);
+        mark();
+        entropy.flushByte();
     }
-}
-
-/**
- * 离散余弦变换及量化类
- */
-class DCT{
-    private float[][]       matrix;                                             //YUV矩阵
-    private float[][]       DCTMatrix;                                          //DCT处理后的频域矩阵
-    private int[][]         quantumMatrix;                                      //量化矩阵
-    private final int       blockLength=8;                                      //块大小
-    private final double    DCConstant_uv=((double)1/Math.sqrt(blockLength));   //DC的公式系数
-    private final double    ACConstant_uv=(Math.sqrt(2)/Math.sqrt(blockLength));//AC的公式系数
-    public  enum            component{luminance, chrominance};                  //通道
-
-    //JPEG标准提供的灰度量化表
-    public static final int[][]   quantum_luminance={
-            {16,11,10,16,24,40,51,61},
-            {12,12,14,19,26,58,60,55},
-            {14,13,16,24,40,57,69,56},
-            {14,17,22,29,51,87,80,62},
-            {18,22,37,56,68,109,103,77},
-            {24,35,55,64,81,104,113,92},
-            {49,64,78,87,103,121,120,101},
-            {72,92,95,98,112,100,103,99}
-    };
-    //JPEG标准提供的色度量化表
-    public static final int[][]   quantum_chrominance={
-            {17,18,24,47,99,99,99,99},
-            {18,21,26,66,99,99,99,99},
-            {24,26,56,99,99,99,99,99},
-            {47,66,99,99,99,99,99,99},
-            {99,99,99,99,99,99,99,99},
-            {99,99,99,99,99,99,99,99},
-            {99,99,99,99,99,99,99,99},
-            {99,99,99,99,99,99,99,99}
-    };
 
     /**
-     * 初始化矩阵，当传入float矩阵时将其认为YUV矩阵并准备正变换
-     * @param matrix YCbCr的某个8x8的通道矩阵
+     * 按重启间隔编码，每个重启间隔使用独立的DCT和熵编码处理器编码为一段字节数据，再按顺序写入输出流，
+     * 相邻两段之间依次插入RST0~RST7标记<br/>
+     * 并行模式下所有重启间隔同时提交到ForkJoin公共线程池中编码
+     * @throws IOException IO异常
      */
-    public void initMatrix(float[][] matrix){
-        if(matrix.length==blockLength){
-            this.matrix=new float[blockLength][blockLength];
-            DCTMatrix=new float[blockLength][blockLength];
-            quantumMatrix=new int[blockLength][blockLength];
-            //手动深拷贝.jpg
-            for (int r=0;r<blockLength;r++){
-                for (int c=0;c<blockLength;c++){
-                    this.matrix[r][c]=matrix[r][c];
-                    DCTMatrix[r][c]=matrix[r][c];
-                }
+    private void writeRestartIntervals() throws IOException {
+        int intervals=(MCURows+restartRows-1)/restartRows;
+        List<ForkJoinTask<byte[]>> tasks=new ArrayList<>(intervals);
+        int i;
+        if(parallel){
+            for (i=0;i<intervals;i++){
+                int yStart=i*restartRows;
+                tasks.add(ForkJoinPool.commonPool().submit(()->encodeInterval(yStart,Math.min(yStart+restartRows,MCURows))));
             }
-            symmetry();
         }
-    }
-
-    /**
-     * 初始化矩阵，当传入int矩阵时将其认为量化矩阵并准备逆变换
-     * @param matrix 量化矩阵
-     */
-    public void initMatrix(int[][] matrix){
-        if(matrix.length==blockLength){
-            this.matrix=new float[blockLength][blockLength];
-            DCTMatrix=new float[blockLength][blockLength];
-            quantumMatrix=new int[blockLength][blockLength];
-            //手动深拷贝.jpg
-            for (int r=0;r<blockLength;r++){
-                for (int c=0;c<blockLength;c++){
-                    quantumMatrix[r][c]= matrix[r][c];
-                }
+        for (i=0;i<intervals;i++){
+            if(i>0){
+                IO.writeRestartMarker(i-1);
             }
-        }
-    }
-
-    /**
-     * 在通道转换后得到的Y矩阵数据范围在0~255，DCT需要定义域对称，将数据左移128，使其范围落在-128~127
-     */
-    private void symmetry(){
-        for(int r=0;r<blockLength;r++){
-            for(int c=0;c<blockLength;c++){
-                matrix[r][c]-=128;
+            if(parallel){
+                IO.getOutput().write(tasks.get(i).join());
+            }else{
+                IO.getOutput().write(encodeInterval(i*restartRows,Math.min((i+1)*restartRows,MCURows)));
             }
         }
-    }
-
-    private interface cosCalculator {
-        double get(int output,int input);
+        mark();
     }
 
     /**
-     * 正变换DCT，将YUV矩阵转换为DCT频域矩阵
-     * @return DCT频域矩阵
+     * 渐进式编码，先对所有MCU进行色彩空间转换、DCT和量化并缓存系数（灰度图像只有Y通道），再由{@link ProgressiveEncoder}输出各次扫描
+     * @throws IOException IO异常
      */
-    float[][] forwardDCT(){
-        DCTMatrix=new float[blockLength][blockLength];
-        /*
-        *被坑了，第一次看的公式多乘了一个1/N，导致数值远小于实际值
-        *double constant_1=(double)1/blockLength;
-         */
-        double constant_2;
-        double constant_3;
-
-        cosCalculator cos=(u, x)->{
-            double constant_top=u*Math.PI*((2*x)+1);
-            double constant_bottom=2*blockLength;
-
-            return Math.cos(constant_top/constant_bottom);
-        };
-
-        for(int v=0;v<blockLength;v++){
-            for(int u=0;u<blockLength;u++){
-                constant_2=(u==0?DCConstant_uv:ACConstant_uv)*(v==0?DCConstant_uv:ACConstant_uv);
-                constant_3=0;
-                for (int y=0;y<blockLength;y++){
-                    for (int x=0;x<blockLength;x++){
-                        constant_3+=matrix[y][x]* cos.get(u,x)*cos.get(v,y);
+    private void writeProgressiveData() throws IOException {
+        CoefficientBuffer buffer=grayscale?CoefficientBuffer.forGrayscale(imageWidth,imageHeight):CoefficientBuffer.forYCbCr420(imageWidth,imageHeight);
+        if(parallel){
+            List<ForkJoinTask<?>> tasks=new ArrayList<>(MCURows);
+            for (int y=0;y<MCURows;y++){
+                int row=y;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    MCUEncoder encoder=new MCUEncoder(dct.fork(),null,colorConverter,grayscale);
+                    StageRecorder rowRecorder=recorder==null?null:new StageRecorder();
+                    encoder.setRecorder(rowRecorder);
+                    if(planes!=null){
+                        encoder.transformRow(planes,buffer,row);
+                    }else{
+                        encoder.transformRow(raster,row*MCUSize,buffer,row);
                     }
-                }
-                DCTMatrix[v][u]= (float) (constant_2*constant_3);
-            }
-        }
-        return DCTMatrix;
-    }
-
-    /**
-     * 正变换量化，将频域矩阵除以量化系数表，得到处理过的量化矩阵，这一步决定了JPEG图像的压缩质量
-     * @param channel_type 通道类型，分为luminance和chrominance
-     * @return 处理后的量化矩阵
-     */
-    int[][] quantize(component channel_type){
-        quantumMatrix=new int[blockLength][blockLength];
-        for (int v=0;v<blockLength;v++){
-            for(int u=0;u<blockLength;u++){
-                if(channel_type==component.luminance){
-                    quantumMatrix[v][u]=Math.round(DCTMatrix[v][u]/quantum_luminance[v][u]);
-                }else if(channel_type==component.chrominance){
-                    quantumMatrix[v][u]=Math.round(DCTMatrix[v][u]/quantum_chrominance[v][u]);
-                }
-            }
-        }
-        return quantumMatrix;
-    }
-
-    /**
-     * 反变换DCT，将DCT频域矩阵转换为YUV矩阵
-     * @return YUV矩阵
-     */
-    float[][] reverseDCT(){
-        matrix=new float[blockLength][blockLength];
-        //double constant_1=(double)2/blockLength;
-        double constant;
-
-        cosCalculator cos=(u, x)->{
-            double constant_top=u*Math.PI*((2*x)+1);
-            double constant_bottom=2*blockLength;
-
-            return Math.cos(constant_top/constant_bottom);
-        };
-
-        for(int y=0;y<blockLength;y++){
-            for(int x=0;x<blockLength;x++){
-                for (int v=0;v<blockLength;v++){
-                    for (int u=0;u<blockLength;u++){
-                        constant=(u==0?DCConstant_uv:ACConstant_uv)*(v==0?DCConstant_uv:ACConstant_uv);
-                        matrix[y][x] += (float) (constant*DCTMatrix[v][u]* cos.get(u,x)*cos.get(v,y));
+                    if(rowRecorder!=null){
+                        recorder.add(rowRecorder);
                     }
-                }
+                }));
             }
-        }
-
-        for(int r=0;r<blockLength;r++){
-            for(int c=0;c<blockLength;c++){
-                matrix[r][c]+=128;
+            for (ForkJoinTask<?> task:tasks){
+                task.join();
             }
-        }
-
-        return matrix;
-    }
-
-    /**
-     * 反变换量化，将量化矩阵乘以量化系数表得到DCT频域矩阵，由于量化过程是有损的，反变换不能获取原数据
-     * @param channel_type 通道类型，分为luminance和chrominance
-     * @return DCT频域矩阵
-     */
-    float[][] reverseQuantize(component channel_type){
-        DCTMatrix=new float[blockLength][blockLength];
-        for (int v=0;v<blockLength;v++){
-            for(int u=0;u<blockLength;u++){
-                if(channel_type==component.luminance){
-                    DCTMatrix[v][u]=quantumMatrix[v][u]*quantum_luminance[v][u];
-                }else if(channel_type==component.chrominance){
-                    DCTMatrix[v][u]=quantumMatrix[v][u]*quantum_chrominance[v][u];
+        }else{
+            MCUEncoder encoder=new MCUEncoder(dct,entropy,colorConverter,grayscale);
+            encoder.setRecorder(recorder);
+            for (int y=0;y<MCURows;y++){
+                if(planes!=null){
+                    encoder.transformRow(planes,buffer,y);
+                }else{
+                    encoder.transformRow(raster,y*MCUSize,buffer,y);
                 }
             }
         }
-        return DCTMatrix;
-    }
-}
-
-
-/**
- * 熵编码类
- */
-class EntropyEncoder{
-    private BufferedOutputStream output;        //输出流
-    private int[] lastDC={0,0,0};               //DC差分编码缓存
-    private static final int blockLength=8;     //块大小
-    private int[][] matrix;                     //量化矩阵
-    private int[] zigzagArray;                  //zigzag数组
-    private byte bufByte=0;                     //当前正在写的byte
-    private int  bufIndex=7;                    //当前byte写指针
-    public enum component{Y, Cb,Cr};
-
-    //MCU处理后只有8x8的矩阵，不再需要对4x4特殊处理
-    private static final int[][] zigzagOrder={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{4, 0},{3, 1},{2, 2},{1, 3},{0, 4},{0, 5},{1, 4},{2, 3},{3, 2},{4, 1},{5, 0},{6, 0},{5, 1},{4, 2},{3, 3},{2, 4},{1, 5},{0, 6},{0, 7},{1, 6},{2, 5},{3, 4},{4, 3},{5, 2},{6, 1},{7, 0},{7, 1},{6, 2},{5, 3},{4, 4},{3, 5},{2, 6},{1, 7},{2, 7},{3, 6},{4, 5},{5, 4},{6, 3},{7, 2},{7, 3},{6, 4},{5, 5},{4, 6},{3, 7},{4, 7},{5, 6},{6, 5},{7, 4},{7, 5},{6, 6},{5, 7},{6, 7},{7, 6},{7, 7}};
-    //private final int[][]   zigzagOrder_luminance={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{4, 0},{3, 1},{2, 2},{1, 3},{0, 4},{0, 5},{1, 4},{2, 3},{3, 2},{4, 1},{5, 0},{6, 0},{5, 1},{4, 2},{3, 3},{2, 4},{1, 5},{0, 6},{0, 7},{1, 6},{2, 5},{3, 4},{4, 3},{5, 2},{6, 1},{7, 0},{7, 1},{6, 2},{5, 3},{4, 4},{3, 5},{2, 6},{1, 7},{2, 7},{3, 6},{4, 5},{5, 4},{6, 3},{7, 2},{7, 3},{6, 4},{5, 5},{4, 6},{3, 7},{4, 7},{5, 6},{6, 5},{7, 4},{7, 5},{6, 6},{5, 7},{6, 7},{7, 6},{7, 7}};
-    //private final int[][]   zigzagOrder_chrominance={{0, 0},{0, 1},{1, 0},{2, 0},{1, 1},{0, 2},{0, 3},{1, 2},{2, 1},{3, 0},{3, 1},{2, 2},{1, 3},{2, 3},{3, 2},{3, 3}};
-
-    //霍夫曼对照表
-    private int[][] DCLuminanceMap;
-    private int[][] DCChrominanceMap;
-    private int[][] ACLuminanceMap;
-    private int[][] ACChrominanceMap;
-
-    //霍夫曼表
-    public static final int[] bitsDCluminance = {0x00, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
-    public static final int[] valDCluminance = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
-    public static final int[] bitsDCchrominance = {0x01, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
-    public static final int[] valDCchrominance = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
-    public static final int[] bitsACluminance = {0x10, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
-    public static final int[] valACluminance =
-            {0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
-                    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
-                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
-                    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
-                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
-                    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
-                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
-                    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
-                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
-                    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
-                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
-                    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
-                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
-                    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
-                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
-                    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
-                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
-                    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
-                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
-                    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
-                    0xf9, 0xfa};
-    public static final int[] bitsACchrominance = {0x11, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
-    public static final int[] valACchrominance =
-            {0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
-                    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
-                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
-                    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
-                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
-                    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
-                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
-                    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
-                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
-                    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
-                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
-                    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
-                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
-                    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
-                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
-                    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
-                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
-                    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
-                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
-                    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
-                    0xf9, 0xfa};
-
-    /**
-     * 初始化熵编码类，传入JPEG IO类的输出流
-     * @param output 图像输出流，这里需要和JPEG IO类同步
-     */
-    public EntropyEncoder(BufferedOutputStream output){
-        this.output=output;
-        matrix=new int[blockLength][blockLength];
-        zigzagArray=new int[blockLength*blockLength];
-        initHuf();
+        mark();
+        new ProgressiveEncoder(buffer,IO).encode();
+        lap(CompressionListener.stage.entropy);
     }
 
     /**
-     * 初始化熵编码类，传入JPEG IO类的输出流
-     * @param output 图像输出流，这里需要和JPEG IO类同步
+     * 目标大小模式的编码，先对所有MCU进行色彩空间转换和DCT并缓存未量化的系数，再由{@link TargetSizeEncoder}选定质量并输出
+     * @throws IOException IO异常
      */
-    public void setOutput(BufferedOutputStream output){
-        this.output=output;
-    }
-
-    //实在是懒得写范式Huffman构成了
-    public void initHuf(){
-        int[][] DC_matrix0 = new int[12][2];
-        int[][] DC_matrix1 = new int[12][2];
-        int[][] AC_matrix0 = new int[255][2];
-        int[][] AC_matrix1 = new int[255][2];
-//        DC_matrix = new int[2][][];
-//        AC_matrix = new int[2][][];
-        int p, l, i, lastp, si, code;
-        int[] huffsize = new int[257];
-        int[] huffcode = new int[257];
-
-        /*
-         * init of the DC values for the chrominance
-         * [][0] is the code   [][1] is the number of bit
-         */
-
-        p = 0;
-        for (l = 1; l <= 16; l++) {
-            for (i = 1; i <= bitsDCchrominance[l]; i++) {
-                huffsize[p++] = l;
-            }
-        }
-        huffsize[p] = 0;
-        lastp = p;
-
-        code = 0;
-        si = huffsize[0];
-        p = 0;
-        while (huffsize[p] != 0) {
-            while (huffsize[p] == si) {
-                huffcode[p++] = code;
-                code++;
-            }
-            code <<= 1;
-            si++;
-        }
-
-        for (p = 0; p < lastp; p++) {
-            DC_matrix1[valDCchrominance[p]][0] = huffcode[p];
-            DC_matrix1[valDCchrominance[p]][1] = huffsize[p];
-        }
-
-        p = 0;
-        for (l = 1; l <= 16; l++) {
-            for (i = 1; i <= bitsACchrominance[l]; i++) {
-                huffsize[p++] = l;
-            }
-        }
-        huffsize[p] = 0;
-        lastp = p;
-
-        code = 0;
-        si = huffsize[0];
-        p = 0;
-        while (huffsize[p] != 0) {
-            while (huffsize[p] == si) {
-                huffcode[p++] = code;
-                code++;
-            }
-            code <<= 1;
-            si++;
-        }
-
-        for (p = 0; p < lastp; p++) {
-            AC_matrix1[valACchrominance[p]][0] = huffcode[p];
-            AC_matrix1[valACchrominance[p]][1] = huffsize[p];
-        }
-
-        p = 0;
-        for (l = 1; l <= 16; l++) {
-            for (i = 1; i <= bitsDCluminance[l]; i++) {
-                huffsize[p++] = l;
-            }
-        }
-        huffsize[p] = 0;
-        lastp = p;
-
-        code = 0;
-        si = huffsize[0];
-        p = 0;
-        while (huffsize[p] != 0) {
-            while (huffsize[p] == si) {
-                huffcode[p++] = code;
-                code++;
+    private void writeTargetSizeData() throws IOException {
+        TargetSizeEncoder target=new TargetSizeEncoder(grayscale,MCUsPerRow,MCURows,restartRows,dct.getEngine(),parallel);
+        if(parallel){
+            List<ForkJoinTask<?>> tasks=new ArrayList<>(MCURows);
+            for (int y=0;y<MCURows;y++){
+                int row=y;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    MCUEncoder encoder=new MCUEncoder(dct.fork(),null,colorConverter,grayscale);
+                    StageRecorder rowRecorder=recorder==null?null:new StageRecorder();
+                    encoder.setRecorder(rowRecorder);
+                    if(planes!=null){
+                        encoder.forwardRow(planes,row,target.coefficients,target.rowOffset(row));
+                    }else{
+                        encoder.forwardRow(raster,row*MCUSize,MCUsPerRow,target.coefficients,target.rowOffset(row));
+                    }
+                    if(rowRecorder!=null){
+                        recorder.add(rowRecorder);
+                    }
+                }));
             }
-            code <<= 1;
-            si++;
-        }
-
-        for (p = 0; p < lastp; p++) {
-            DC_matrix0[valDCluminance[p]][0] = huffcode[p];
-            DC_matrix0[valDCluminance[p]][1] = huffsize[p];
-        }
-
-        p = 0;
-        for (l = 1; l <= 16; l++) {
-            for (i = 1; i <= bitsACluminance[l]; i++) {
-                huffsize[p++] = l;
+            for (ForkJoinTask<?> task:tasks){
+                task.join();
             }
-        }
-        huffsize[p] = 0;
-        lastp = p;
-
-        code = 0;
-        si = huffsize[0];
-        p = 0;
-        while (huffsize[p] != 0) {
-            while (huffsize[p] == si) {
-                huffcode[p++] = code;
-                code++;
+        }else{
+            MCUEncoder encoder=new MCUEncoder(dct,entropy,colorConverter,grayscale);
+            encoder.setRecorder(recorder);
+            for (int y=0;y<MCURows;y++){
+                if(planes!=null){
+                    encoder.forwardRow(planes,y,target.coefficients,target.rowOffset(y));
+                }else{
+                    encoder.forwardRow(raster,y*MCUSize,MCUsPerRow,target.coefficients,target.rowOffset(y));
+                }
             }
-            code <<= 1;
-            si++;
         }
-        for (int q = 0; q < lastp; q++) {
-            AC_matrix0[valACluminance[q]][0] = huffcode[q];
-            AC_matrix0[valACluminance[q]][1] = huffsize[q];
-        }
-
-        DCLuminanceMap=DC_matrix0;
-        DCChrominanceMap=DC_matrix1;
-        ACLuminanceMap=AC_matrix0;
-        ACChrominanceMap=AC_matrix1;
-    }
 
-    /**
-     * 初始化矩阵，接受一个量化矩阵并将其进行zigzag扫描转换为64的一维矩阵
-     * @param matrix 量化矩阵
-     */
-    void initMatrix(int[][] matrix){
-        this.matrix=matrix;
-        //zigzag扫描
-        zigzagArray=zigzagScan(matrix);
-    }
-
-    /**
-     * zigzag扫描，将8x8的二维数组转换为64的一维数组，并将左上角的数据集中在前方
-     * @param input 量化矩阵
-     * @return 处理后的64长度的zigzag数组
-     */
-    public static int[] zigzagScan(int[][] input){
-        int[] output=new int[blockLength*blockLength];
-        for (int i=0;i<blockLength*blockLength;i++){
-            output[i]=input[zigzagOrder[i][0]][zigzagOrder[i][1]];
-        }
-        return output;
-    }
-
-    interface significantWriter{
-        void write(int input,int bits) throws IOException;
-    }
-
-    /**
-     * 开始进行熵编码过程
-     * @param type 该矩阵的通道类型，分为luminance和chrominance
-     * @throws IOException IO异常
-     */
-    void writeHuffmanBits(component type) throws IOException {
-        writeHuffmanBits(type,false);
+        mark();
+        //选定的质量和霍夫曼表只用于本次输出，不替换dct和huffmanTables，设置的质量和dct上注册的块统计都保持不变
+        compressedQuality=target.search(targetSize,IO,optimizeHuffman?null:huffmanTables);
+        QuantumTable table=QuantumTable.forQuality(compressedQuality);
+        HuffmanTable[] tables=optimizeHuffman?target.optimalTables(table):huffmanTables;
+        IO.setQuantumTable(table);
+        IO.setHuffmanTables(tables);
+        lap(CompressionListener.stage.optimize);
+        IO.writeHeader();
+        lap(CompressionListener.stage.header);
+        target.write(table,tables,IO);
+        IO.setQuantumTable(dct.getQuantumTable());
+        IO.setHuffmanTables(huffmanTables);
+        lap(CompressionListener.stage.entropy);
     }
 
     /**
-     * 开始进行熵编码过程
-     * @param type 该矩阵的通道类型，分为luminance和chrominance
-     * @param debug 是否打印在终端中打印bit流，用于调试用途
+     * 第一遍编码，统计所有块的霍夫曼符号频率并生成优化表，同时设置到文件头和熵编码处理器中<br/>
+     * 统计时按与第二遍相同的重启间隔划分重置DC差分，保证第二遍用到的每个符号都有对应的码字；并行模式下各重启间隔分别统计后累加
      * @throws IOException IO异常
      */
-    void writeHuffmanBits(component type,boolean debug) throws IOException {
-        significantWriter writer=(input,bits)->{
-            for (int i=bits-1;i>=0;i--){
-                writeByte(input&(1<<i),debug);
-            }
-        };
-        int componentID;
-        if(type==component.Y)componentID=0;
-        else if(type==component.Cb)componentID=1;
-        else componentID=2;
-
-        int zeroCnt=0;
-        int EOB;
-        int  hufIndex;
-        byte hufCode;
-        int tmp=zigzagArray[0];
-        zigzagArray[0]-=lastDC[componentID];
-        lastDC[componentID]=tmp;
-
-        //记录下EOB位置
-        EOB=0;
-        for (int i=zigzagArray.length-1;i>=0;i--){
-            if(zigzagArray[i]!=0){
-                EOB=i;
-                break;
-            }
-        }
-
-        //Huffman编码部分
-        int DCSize=VLI(zigzagArray[0],false);
-        if(type==component.Y){
-            writer.write(DCLuminanceMap[DCSize][0],DCLuminanceMap[DCSize][1]);
-        }else{
-            writer.write(DCChrominanceMap[DCSize][0],DCChrominanceMap[DCSize][1]);
-        }
-        //VLI编码部分
-        VLI(zigzagArray[0],true,debug);
-
-        //AC系数编码
-         for (int i=1;i<zigzagArray.length;i++){
-            if(zigzagArray[i]==0)zeroCnt++;
-            //16个前导0的情况
-            if(zeroCnt==16){
-                //F/0(ZRL标记位)，标记15个前导0加上自身共16个前导0
-                if(type==component.Y){
-                    writer.write(ACLuminanceMap[0xF0][0],ACLuminanceMap[0xF0][1]);
-                }else{
-                    writer.write(ACChrominanceMap[0xF0][0],ACChrominanceMap[0xF0][1]);
-                }
-                zeroCnt=0;
-                //这时不需要写入VLI，VLI中0也没有对应的码值
+    private void optimizeHuffmanTables() throws IOException {
+        int rowsPerInterval=restartRows>0?restartRows:MCURows;
+        int intervals=(MCURows+rowsPerInterval-1)/rowsPerInterval;
+        List<ForkJoinTask<long[][]>> tasks=new ArrayList<>(intervals);
+        long[][] frequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+        int i;
+        if(parallel){
+            for (i=0;i<intervals;i++){
+                int yStart=i*rowsPerInterval;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    long[][] intervalFrequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+                    encodeMCURows(yStart,Math.min(yStart+rowsPerInterval,MCURows),dct.fork(),new EntropyEncoder(intervalFrequencies),null);
+                    return intervalFrequencies;
+                }));
             }
-            if(zigzagArray[i]!=0){
-                hufCode=0;
-                //高四位记录前导零数量
-                for (int j=7;j>=4;j--){
-                    hufCode=writeByte(hufCode,((zeroCnt&(1<<(j-4)))==0?0:1),j);
-                }
-                zeroCnt=0;
-                //低四位记录VLI位深
-                for (int j=3;j>=0;j--){
-                    hufCode=writeByte(hufCode,((VLI(zigzagArray[i],false)&(1<<(j)))==0?0:1),j);
-                }
-                //写入hufCode
-                hufIndex=Byte.toUnsignedInt(hufCode);
-                if(type==component.Y){
-                    writer.write(ACLuminanceMap[hufIndex][0],ACLuminanceMap[hufIndex][1]);
-                }else{
-                    writer.write(ACChrominanceMap[hufIndex][0],ACChrominanceMap[hufIndex][1]);
+            for (ForkJoinTask<long[][]> task:tasks){
+                long[][] intervalFrequencies=task.join();
+                for (int t=0;t<HuffmanTable.tableCount;t++){
+                    for (int s=0;s<HuffmanTable.symbolCount;s++){
+                        frequencies[t][s]+=intervalFrequencies[t][s];
+                    }
                 }
-                //写入VLICode
-                VLI(zigzagArray[i],true,debug);
             }
-            //达到EOB
-            if(i>=EOB&&EOB<63){
-                //写入EOB标记位然后break
-                if(type==component.Y){
-                    writer.write(ACLuminanceMap[0][0],ACLuminanceMap[0][1]);
-                }else{
-                    writer.write(ACChrominanceMap[0][0],ACChrominanceMap[0][1]);
-                }
-                break;
+        }else{
+            for (i=0;i<intervals;i++){
+                encodeMCURows(i*rowsPerInterval,Math.min((i+1)*rowsPerInterval,MCURows),dct,new EntropyEncoder(frequencies),null);
             }
         }
-        //flushByte();
-    }
 
-    /**
-     * 写比特
-     * @param bit 0/1
-     * @throws IOException IO异常
-     */
-    private void writeByte(int bit) throws IOException {
-        writeByte(bit,false);
+        huffmanTables=HuffmanTable.optimalTables(frequencies);
+        IO.setHuffmanTables(huffmanTables);
+        entropy.setHuffmanTables(huffmanTables);
     }
 
     /**
-     * 写比特，基于{@link #writeByte(byte, int, int)}实现
-     * @param bit 0/1
-     * @param debug 是否打印在终端中打印bit流，用于调试用途
+     * 编码一个重启间隔，使用独立的DCT和熵编码处理器，DC差分从0开始
+     * @param yStart 起始MCU行（包含）
+     * @param yEnd 结束MCU行（不包含）
+     * @return 该重启间隔的熵编码数据，已补齐至整字节
      * @throws IOException IO异常
      */
-    private void writeByte(int bit,boolean debug) throws IOException {
-        if(debug){
-            System.out.print(bit==0?0:1);
-        }
-        if(bit==0){
-            bufByte=writeByte(bufByte,0,bufIndex);
-            bufIndex--;
+    private byte[] encodeInterval(int yStart,int yEnd) throws IOException {
+        ByteArrayOutputStream segment=new ByteArrayOutputStream();
+        EntropyEncoder intervalEntropy=new EntropyEncoder(segment);
+        intervalEntropy.setHuffmanTables(huffmanTables);
+        StageRecorder intervalRecorder=recorder==null?null:new StageRecorder();
+        encodeMCURows(yStart,yEnd,dct.fork(),intervalEntropy,intervalRecorder);
+        if(intervalRecorder!=null){
+            intervalRecorder.start();
+            intervalEntropy.flushByte();
+            intervalRecorder.lap(CompressionListener.stage.flush);
+            recorder.add(intervalRecorder);
         }else{
-            bufByte=writeByte(bufByte,1,bufIndex);
-            bufIndex--;
-        }
-        if(bufIndex==-1){
-            flushByte(debug);
+            intervalEntropy.flushByte();
         }
+        return segment.toByteArray();
     }
 
     /**
-     * 在input的某一位上写比特，是其他写比特方法的基础实现
-     * @param input byte数据，通常传入该类的{@link #bufByte}
-     * @param bit 0/1
-     * @param index 0~7
-     * @return 写入完毕的byte结果
+     * 编码若干行MCU，依次对每个MCU进行色彩空间转换、DCT、量化和熵编码，具体过程见{@link MCUEncoder}
+     * @param yStart 起始MCU行（包含）
+     * @param yEnd 结束MCU行（不包含）
+     * @param dct 使用的DCT处理器
+     * @param entropy 使用的熵编码处理器
+     * @param recorder 分阶段统计器，null为不统计
+     * @throws IOException IO异常
      */
-    private byte writeByte(byte input,int bit,int index) {
-        if(bit==0){
-            input= (byte) (input&((~1)<<index));
-        }else{
-            input=(byte) (input|(1<<index));
+    private void encodeMCURows(int yStart,int yEnd,DCT dct,EntropyEncoder entropy,StageRecorder recorder) throws IOException {
+        MCUEncoder encoder=new MCUEncoder(dct,entropy,colorConverter,grayscale);
+        encoder.setRecorder(recorder);
+        //分块序号，y标记当前是第几行MCU
+        for(int y=yStart;y<yEnd;y++){
+            if(planes!=null){
+                encoder.encodeRow(planes,y);
+            }else{
+                encoder.encodeRow(raster,y*MCUSize,MCUsPerRow);
+            }
         }
-        return input;
     }
 
     /**
-     * flush，强行将当前的bufByte以当前状态写入输出流中
-     * @throws IOException IO异常
+     * 读取一个MCU并按编码时的方式完成色彩空间转换和色度抽样，用于调试输出
+     * @param x MCU所在的x序号
+     * @param y MCU所在的y序号
+     * @return 平铺的6个8x8块，依次为左上灰度(Y1)、右上灰度(Y2)、左下灰度(Y3)、右下灰度(Y4)、色度B(Cb)、色度R(Cr)
      */
-    public void flushByte() throws IOException {
-        flushByte(false);
+    private float[] readMCUBlocks(int x,int y){
+        float[] blocks=new float[6*blockLength*blockLength];
+        int[] pixels=new int[MCULength*MCULength];
+        //超出图像的部分由像素读取器复制边缘像素
+        raster.readBlock(x*MCULength,y*MCULength,MCULength,MCULength,pixels);
+        colorConverter.convertMCU(pixels,blocks);
+        return blocks;
     }
 
     /**
-     * flush，强行将当前的bufByte以当前状态写入输出流中
-     * @param debug 是否打印在终端中打印bit流，用于调试用途
-     * @throws IOException IO异常
+     * 对一个块进行DCT和量化，再通过{@link DCT#inverseAAN}反量化和IDCT，结果写回原位置，用于调试输出量化造成的损失
+     * @param blocks 平铺存储的YCbCr通道数据
+     * @param offset 该块在blocks中的起始下标
+     * @param component 该块所属的色彩通道，有luminance和chrominance
      */
-    public void flushByte(boolean debug) throws IOException {
-        if(bufIndex<7){
-            if(debug){
-                System.out.println();
-            }
-            output.write(bufByte);
-            if(bufByte==(byte)0xFF){
-                //写入0xFF时再写入0x00防止误读
-                output.write(0x00);
-            }
-            bufByte=0;
-            bufIndex=7;
+    private void reconstructBlock(float[] blocks,int offset,DCT.component component){
+        int blockSize=blockLength*blockLength;
+        int[] quantized=new int[blockSize];
+        dct.transform(blocks,offset,component,quantized);
+        short[] coefficients=new short[blockSize];
+        for (int i=0;i<blockSize;i++){
+            coefficients[i]=(short) quantized[EntropyEncoder.zigzagIndex[i]];
+        }
+        float[] multipliers=QuantumTable.inverseAANMultipliers(EntropyEncoder.zigzagScan(dct.getQuantumTable().get(component)));
+        byte[] samples=new byte[blockSize];
+        DCT.inverseAAN(coefficients,0,multipliers,new float[blockSize],samples,0,blockLength);
+        for (int i=0;i<blockSize;i++){
+            blocks[offset+i]=samples[i]&0xFF;
         }
     }
 
-
-    /** VLI可变长整数编码
-     * @return 返回VLI编码的位长
-     * @param num 被编码数
-     * @param write 是否写入output流
+    /**
+     * 通过{@link ImageIO}的setRGB写回RGB的值，这一步是为了中途调试，在实际压缩过程中并不会用到
+     * @param x 像素点的x坐标
+     * @param y 像素点的y坐标
+     * @param RGBComponent 一个大小为3的float数组，分别存储了R、G、B的数据
      */
-    public int VLI(int num,boolean write) throws IOException {
-        return VLI(num,write,false);
-    }
-    public int VLI(int num,boolean write,boolean debug) throws IOException {
-        int size=0;
-        if(num>0){
-            for(int i=31;i>=0;i--){
-                if((num&(1<<i))!=0)break;
-                size++;
-            }
-            size=32-size;
-            if(write){
-                for (int i=size-1;i>=0;i--){
-                    writeByte(num&(1<<i),debug);
-                }
-            }
-        }else{
-            num=-num;
-            for(int i=31;i>=0;i--){
-                if((num&(1<<i))!=0)break;
-                size++;
-            }
-            size=32-size;
-            if(write){
-                num=~(num);
-                for (int i=size-1;i>=0;i--){
-                    writeByte(num&(1<<i),debug);
-                }
-            }
+    private void setRGB(int x, int y,float[] RGBComponent){
+        //YCC转回RGB时有可能会超出[0,255]，需要判断一下，血的教训（
+        for (int i=0;i<3;i++){
+            if(RGBComponent[i]<0)RGBComponent[i]=0;
+            if(RGBComponent[i]>255)RGBComponent[i]=255;
         }
-        return size;
+        int rgb=((int) RGBComponent[0] << 16) | ((int) RGBComponent[1] << 8) | (int) (RGBComponent[2]);
+        image.setRGB(x, y, rgb);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,320 @@
+package moe._47saikyo;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * baseline JPEG解码器，直接解码为0xAARRGGBB格式的int数组<br/>
+ * 由{@link JpegReader}霍夫曼解码得到量化系数，{@link DCT#inverseAAN}一次完成反量化和IDCT，
+ * 色度按IJG libjpeg的fancy upsampling（三角形插值）还原到全分辨率，再按{@link JpegCompressor#YccToRgbHandler}的公式
+ * 以定点查表转换为RGB，解码结果与libjpeg的浮点IDCT模式在舍入误差以内一致<br/>
+ * 支持的文件范围与{@link JpegReader}相同；并行模式下有重启间隔的文件各重启间隔同时霍夫曼解码，
+ * IDCT和色彩空间转换不依赖重启间隔，按MCU行在ForkJoin公共线程池中并行
+ */
+public class JpegDecoder {
+    private static final int SCALEBITS=16;
+    private static final int ONE_HALF=1<<(SCALEBITS-1);
+
+    //YCbCr转RGB的定点查找表，下标为Cb或Cr的值
+    private static final int[] CrRTable=new int[256];
+    private static final int[] CbBTable=new int[256];
+    private static final int[] CrGTable=new int[256];
+    private static final int[] CbGTable=new int[256];
+
+    static {
+        for (int i=0;i<256;i++){
+            int x=i-128;
+            CrRTable[i]=(FIX(1.40200)*x+ONE_HALF)>>SCALEBITS;
+            CbBTable[i]=(FIX(1.77200)*x+ONE_HALF)>>SCALEBITS;
+            //G的两项相加后再移位，舍入量并入Cb项
+            CrGTable[i]=-FIX(0.71414)*x;
+            CbGTable[i]=-FIX(0.34414)*x+ONE_HALF;
+        }
+    }
+
+    private boolean     parallel=false;             //是否并行解码
+    private int         width=0;                    //最近一次解码的图像宽度
+    private int         height=0;                   //最近一次解码的图像高度
+
+    /**
+     * 设置是否并行解码，开启后各重启间隔的霍夫曼解码、各MCU行的IDCT和色彩空间转换在ForkJoin线程池中同时进行，
+     * 没有重启间隔的文件只有霍夫曼解码仍在调用线程中完成
+     * @param parallel 是否并行
+     */
+    public void setParallel(boolean parallel){
+        this.parallel=parallel;
+    }
+
+    /**
+     * 获取最近一次解码的图像宽度
+     * @return 图像宽度
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * 获取最近一次解码的图像高度
+     * @return 图像高度
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * 解码JPEG文件，尺寸可通过{@link #getWidth()}和{@link #getHeight()}获取
+     * @param jpeg JPEG文件的数据
+     * @return 按行存储的0xAARRGGBB格式像素，alpha均为0xFF
+     * @throws IOException 文件格式错误或不是baseline JPEG
+     */
+    public int[] decode(byte[] jpeg) throws IOException {
+        JpegReader reader=JpegReader.read(jpeg,parallel);
+        CoefficientBuffer buffer=reader.coefficients;
+        byte[][] planes=new byte[buffer.componentCount][];
+        float[][] multipliers=new float[buffer.componentCount][];
+        for (int c=0;c<buffer.componentCount;c++){
+            planes[c]=new byte[buffer.blocksPerRow[c]*buffer.blockRows[c]*CoefficientBuffer.blockSize];
+            multipliers[c]=QuantumTable.inverseAANMultipliers(reader.quantumTables[c]);
+        }
+        int[] pixels=new int[buffer.imageWidth*buffer.imageHeight];
+        //色彩空间转换读取相邻MCU行的色度，须在全部IDCT完成后进行
+        forEachMCURow(buffer.MCURows,row->inverseDCT(buffer,multipliers,planes,row));
+        forEachMCURow(buffer.MCURows,row->convertRows(buffer,planes,pixels,row));
+        width=buffer.imageWidth;
+        height=buffer.imageHeight;
+        return pixels;
+    }
+
+    /**
+     * 解码JPEG文件
+     * @param input JPEG文件的输入流，读取到流结束
+     * @return 按行存储的0xAARRGGBB格式像素
+     * @throws IOException 文件格式错误、不是baseline JPEG或IO异常
+     */
+    public int[] decode(InputStream input) throws IOException {
+        return decode(input.readAllBytes());
+    }
+
+    /**
+     * 解码JPEG文件为TYPE_INT_ARGB的BufferedImage，图像直接使用{@link #decode(byte[])}的结果数组，不再复制
+     * @param jpeg JPEG文件的数据
+     * @return 解码后的图像
+     * @throws IOException 文件格式错误或不是baseline JPEG
+     */
+    public BufferedImage decodeImage(byte[] jpeg) throws IOException {
+        int[] pixels=decode(jpeg);
+        DirectColorModel model=(DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster=Raster.createPackedRaster(new DataBufferInt(pixels,pixels.length),width,height,width,model.getMasks(),null);
+        return new BufferedImage(model,raster,false,null);
+    }
+
+    /**
+     * 对每行MCU执行一次操作，并行模式下每行为一个任务
+     * @param MCURows MCU行数
+     * @param action 操作，参数为MCU行号
+     */
+    private void forEachMCURow(int MCURows,IntConsumer action){
+        if(!parallel||MCURows==1){
+            for (int row=0;row<MCURows;row++){
+                action.accept(row);
+            }
+            return;
+        }
+        List<ForkJoinTask<?>> tasks=new ArrayList<>(MCURows);
+        for (int row=0;row<MCURows;row++){
+            int MCURow=row;
+            tasks.add(ForkJoinPool.commonPool().submit(()->action.accept(MCURow)));
+        }
+        for (ForkJoinTask<?> task:tasks){
+            task.join();
+        }
+    }
+
+    /**
+     * 对一行MCU中的全部块进行反量化和IDCT，结果写入各通道平面
+     * @param buffer 量化系数
+     * @param multipliers 各通道的反量化乘数表
+     * @param planes 各通道平面，尺寸按MCU补全
+     * @param MCURow MCU行号
+     */
+    private static void inverseDCT(CoefficientBuffer buffer,float[][] multipliers,byte[][] planes,int MCURow){
+        float[] workspace=new float[CoefficientBuffer.blockSize];
+        for (int c=0;c<buffer.componentCount;c++){
+            int stride=buffer.blocksPerRow[c]*8;
+            int v=buffer.verticalSampling[c];
+            for (int row=MCURow*v;row<(MCURow+1)*v;row++){
+                for (int column=0;column<buffer.blocksPerRow[c];column++){
+                    DCT.inverseAAN(buffer.coefficients[c],buffer.offset(c,row,column),multipliers[c],workspace,
+                            planes[c],row*8*stride+column*8,stride);
+                }
+            }
+        }
+    }
+
+    /**
+     * 将一行MCU覆盖的像素行还原为RGB：各通道先上采样到全分辨率，再转换色彩空间
+     * @param buffer 量化系数，用于获取尺寸和采样系数
+     * @param planes 各通道平面
+     * @param pixels 输出像素
+     * @param MCURow MCU行号
+     */
+    private static void convertRows(CoefficientBuffer buffer,byte[][] planes,int[] pixels,int MCURow){
+        int width=buffer.imageWidth;
+        int count=buffer.componentCount;
+        int maxH=buffer.MCUWidth/8;
+        int maxV=buffer.MCUHeight/8;
+        int[][] rows=new int[count][width];
+        int[] columnSums=new int[width];
+        int last=Math.min((MCURow+1)*buffer.MCUHeight,buffer.imageHeight);
+        for (int y=MCURow*buffer.MCUHeight;y<last;y++){
+            for (int c=0;c<count;c++){
+                int h=buffer.horizontalSampling[c];
+                int v=buffer.verticalSampling[c];
+                int stride=buffer.blocksPerRow[c]*8;
+                //通道尺寸为ceil(图像尺寸*采样系数/最大采样系数)
+                int componentWidth=(width*h+maxH-1)/maxH;
+                int componentHeight=(buffer.imageHeight*v+maxV-1)/maxV;
+                if(h==maxH&&v==maxV){
+                    copyRow(planes[c],y*stride,rows[c],width);
+                }else if(2*h==maxH&&2*v==maxV&&componentWidth>1){
+                    upsampleH2V2(planes[c],stride,componentWidth,componentHeight,y,columnSums,rows[c],width);
+                }else if(2*h==maxH&&v==maxV&&componentWidth>1){
+                    upsampleH2V1(planes[c],y*stride,componentWidth,rows[c],width);
+                }else{
+                    replicate(planes[c],(y*v/maxV)*stride,h,maxH,rows[c],width);
+                }
+            }
+            int p=y*width;
+            if(count==1){
+                int[] Y=rows[0];
+                for (int x=0;x<width;x++){
+                    pixels[p+x]=0xFF000000|Y[x]*0x010101;
+                }
+            }else{
+                int[] Y=rows[0];
+                int[] Cb=rows[1];
+                int[] Cr=rows[2];
+                for (int x=0;x<width;x++){
+                    int luminance=Y[x];
+                    int cb=Cb[x];
+                    int cr=Cr[x];
+                    int R=clamp(luminance+CrRTable[cr]);
+                    int G=clamp(luminance+((CbGTable[cb]+CrGTable[cr])>>SCALEBITS));
+                    int B=clamp(luminance+CbBTable[cb]);
+                    pixels[p+x]=0xFF000000|R<<16|G<<8|B;
+                }
+            }
+        }
+    }
+
+    /**
+     * 复制一行全分辨率样本
+     * @param plane 通道平面
+     * @param offset 行首下标
+     * @param out 输出行
+     * @param width 图像宽度
+     */
+    private static void copyRow(byte[] plane,int offset,int[] out,int width){
+        for (int x=0;x<width;x++){
+            out[x]=plane[offset+x]&0xFF;
+        }
+    }
+
+    /**
+     * 水平、垂直均为2倍的三角形插值（libjpeg的h2v2_fancy_upsample）：
+     * 先按3:1混合最近的两行样本得到列和，再按3:1混合相邻的列和，舍入偏置在8、7之间交替<br/>
+     * 图像上下边缘之外的行取边缘行，左右边缘的输出只使用本列
+     * @param plane 通道平面
+     * @param stride 平面的行跨度
+     * @param componentWidth 通道的实际宽度
+     * @param componentHeight 通道的实际高度
+     * @param y 输出行号
+     * @param columnSums 列和工作区
+     * @param out 输出行
+     * @param width 图像宽度
+     */
+    private static void upsampleH2V2(byte[] plane,int stride,int componentWidth,int componentHeight,int y,int[] columnSums,int[] out,int width){
+        int row=y>>1;
+        //偶数输出行靠近上一行，奇数输出行靠近下一行
+        int far=(y&1)==0?Math.max(row-1,0):Math.min(row+1,componentHeight-1);
+        int near=row*stride;
+        far*=stride;
+        for (int i=0;i<componentWidth;i++){
+            columnSums[i]=3*(plane[near+i]&0xFF)+(plane[far+i]&0xFF);
+        }
+        int lastColumn=componentWidth-1;
+        for (int x=0;x<width;x++){
+            int i=x>>1;
+            int sum=columnSums[i];
+            if((x&1)==0){
+                out[x]=i==0?(sum*4+8)>>4:(sum*3+columnSums[i-1]+8)>>4;
+            }else{
+                out[x]=i==lastColumn?(sum*4+7)>>4:(sum*3+columnSums[i+1]+7)>>4;
+            }
+        }
+    }
+
+    /**
+     * 仅水平2倍的三角形插值（libjpeg的h2v1_fancy_upsample），按3:1混合相邻样本，舍入偏置在1、2之间交替
+     * @param plane 通道平面
+     * @param offset 行首下标
+     * @param componentWidth 通道的实际宽度
+     * @param out 输出行
+     * @param width 图像宽度
+     */
+    private static void upsampleH2V1(byte[] plane,int offset,int componentWidth,int[] out,int width){
+        int lastColumn=componentWidth-1;
+        for (int x=0;x<width;x++){
+            int i=x>>1;
+            int sample=plane[offset+i]&0xFF;
+            if((x&1)==0){
+                out[x]=i==0?sample:(sample*3+(plane[offset+i-1]&0xFF)+1)>>2;
+            }else{
+                out[x]=i==lastColumn?sample:(sample*3+(plane[offset+i+1]&0xFF)+2)>>2;
+            }
+        }
+    }
+
+    /**
+     * 其他采样比例直接复制最近的样本
+     * @param plane 通道平面
+     * @param offset 样本行的行首下标
+     * @param h 通道的水平采样系数
+     * @param maxH 最大水平采样系数
+     * @param out 输出行
+     * @param width 图像宽度
+     */
+    private static void replicate(byte[] plane,int offset,int h,int maxH,int[] out,int width){
+        for (int x=0;x<width;x++){
+            out[x]=plane[offset+x*h/maxH]&0xFF;
+        }
+    }
+
+    /**
+     * 限制到0~255
+     * @param value 样本值
+     * @return 限制后的样本值
+     */
+    private static int clamp(int value){
+        return value<0?0:Math.min(value,255);
+    }
+
+    /**
+     * 将系数转换为16位小数的定点数
+     * @param x 系数
+     * @return 定点数
+     */
+    private static int FIX(double x){
+        return (int) (x*(1L<<SCALEBITS)+0.5);
+    }
+}
@@ -0,0 +1,459 @@
+package moe._47saikyo;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+
+class JpegIOStream {
+    private BufferedImage bufferedImage;
+    private OutputStream bufferedOutput;
+    public int imageHeight;
+    public int imageWidth;
+    private byte[] comment;
+    private int restartInterval=0;
+    private QuantumTable quantumTable=QuantumTable.forQuality(QuantumTable.defaultQuality);
+    private HuffmanTable[] huffmanTables=HuffmanTable.standardTables();
+    private boolean progressive=false;
+    private boolean grayscale=false;
+    private int[] horizontalSampling={2,1,1};
+    private int[] verticalSampling={2,1,1};
+    private final String defaultComment="JPEG Compressor Copyright 2023 Smile_slime_47";
+
+
+    /**
+     * 初始化JPEG IO类
+     * @param input 图像的路径
+     * @param output IO的输出流
+     */
+    public JpegIOStream(File input, OutputStream output) {
+        try {
+            bufferedImage = ImageIO.read(input);
+        } catch (IOException ignored) {
+        }
+        this.imageWidth = bufferedImage.getWidth();
+        this.imageHeight = bufferedImage.getHeight();
+        comment=defaultComment.getBytes();
+        bufferedOutput=output!=null?buffered(output):null;
+    }
+    /**
+     * 初始化JPEG IO类
+     * @param input IO的输入流
+     * @param output IO的输出流
+     */
+    public JpegIOStream(InputStream input, OutputStream output) {
+        try {
+            bufferedImage = ImageIO.read(input);
+        } catch (IOException ignored) {
+        }
+        this.imageWidth = bufferedImage.getWidth();
+        this.imageHeight = bufferedImage.getHeight();
+        comment=defaultComment.getBytes();
+        bufferedOutput=output!=null?buffered(output):null;
+    }
+
+    /**
+     * 初始化JPEG IO类
+     * @param image 已解码的图像
+     * @param output IO的输出流
+     */
+    public JpegIOStream(BufferedImage image, OutputStream output) {
+        bufferedImage = image;
+        this.imageWidth = bufferedImage.getWidth();
+        this.imageHeight = bufferedImage.getHeight();
+        comment=defaultComment.getBytes();
+        bufferedOutput=output!=null?buffered(output):null;
+    }
+
+    /**
+     * 初始化JPEG IO类，不读入图像，只按给定尺寸写入文件头，用于流式编码
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param output IO的输出流
+     */
+    public JpegIOStream(int width, int height, OutputStream output) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+        comment=defaultComment.getBytes();
+        bufferedOutput=output!=null?buffered(output):null;
+    }
+
+    /**
+     * 设置IO类的输出流，适用于构造参数传入了null的情况
+     * @param output IO的输出流
+     */
+    public void setOutput(OutputStream output){
+        bufferedOutput=buffered(output);
+    }
+
+    /**
+     * 为输出流加上缓冲，{@link JpegSink}自身直接写入目标缓冲区或暂存后聚集写入，不再额外缓冲
+     * @param output IO的输出流
+     * @return 带缓冲的输出流
+     */
+    private static OutputStream buffered(OutputStream output){
+        return output instanceof JpegSink?output:new BufferedOutputStream(output);
+    }
+
+    /**
+     * 获取IO的输出流
+     * @return IO的输出流
+     */
+    public OutputStream getOutput(){return bufferedOutput;}
+
+    /**
+     * 获取IO读入的图像
+     * @return 读入图像的bufferedImage类
+     */
+    public BufferedImage getImage() {return bufferedImage;}
+
+    /**
+     * 调试输出，输出对应路径下的BMP文件
+     * @param File 输出图片路径
+     */
+    public void debugWrite(String File) {
+        try {
+            ImageIO.write(bufferedImage, "bmp", new File(File));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 设置图片注释，该注释会被写入JPEG图片的文件头中
+     * @param com 注释内容，为null时不写入COM段
+     */
+    public void setComment(String com){
+        comment=com==null?null:com.getBytes();
+    }
+
+    /**
+     * 设置重启间隔，非0时文件头中会写入DRI段
+     * @param MCUs 每个重启间隔包含的MCU数量，0为不使用重启间隔
+     */
+    public void setRestartInterval(int MCUs){
+        restartInterval=MCUs;
+    }
+
+    /**
+     * 设置写入DQT段的量化表，需与编码时DCT处理器使用的量化表一致
+     * @param table 量化表
+     */
+    public void setQuantumTable(QuantumTable table){
+        quantumTable=table;
+    }
+
+    /**
+     * 设置写入DHT段的霍夫曼表，需与编码时熵编码处理器使用的表一致
+     * @param tables 按{@link HuffmanTable#DCLuminance}等表序号排列的四张表
+     */
+    public void setHuffmanTables(HuffmanTable[] tables){
+        huffmanTables=tables;
+    }
+
+    /**
+     * 设置是否写入渐进式文件头，渐进式文件头使用SOF2，且只写到帧头为止，霍夫曼表和各扫描头由渐进式编码器在每次扫描前写入
+     * @param progressive 是否为渐进式
+     */
+    public void setProgressive(boolean progressive){
+        this.progressive=progressive;
+    }
+
+    /**
+     * 设置三通道文件头中各通道的采样系数，默认为YCbCr 4:2:0，即Y为2x2、Cb和Cr为1x1
+     * @param horizontal Y、Cb、Cr的水平采样系数
+     * @param vertical Y、Cb、Cr的垂直采样系数
+     */
+    public void setSampling(int[] horizontal,int[] vertical){
+        horizontalSampling=horizontal;
+        verticalSampling=vertical;
+    }
+
+    /**
+     * 设置是否写入单通道灰度文件头，灰度文件头只有Y通道，采样系数为1x1，只写入亮度量化表和亮度霍夫曼表
+     * @param grayscale 是否为灰度
+     */
+    public void setGrayscale(boolean grayscale){
+        this.grayscale=grayscale;
+    }
+
+    /**
+     * 计算按当前设置写入的文件头长度，文件头写入临时缓冲区而不写入输出流
+     * @return 文件头的字节数
+     * @throws IOException IO异常
+     */
+    public int headerLength() throws IOException {
+        OutputStream output=bufferedOutput;
+        ByteArrayOutputStream header=new ByteArrayOutputStream();
+        bufferedOutput=header;
+        try {
+            writeHeader();
+        }finally {
+            bufferedOutput=output;
+        }
+        return header.size();
+    }
+
+    /**
+     * 写入重启标记，重启标记按RST0~RST7循环使用
+     * @param index 重启标记的序号，即该标记之前已写入的重启标记数量
+     * @throws IOException IO异常
+     */
+    public void writeRestartMarker(int index) throws IOException {
+        writeMarker(JPEGHeader.RSTn[index%JPEGHeader.RSTn.length]);
+    }
+
+    /**
+     * 写标志位
+     * @param marker 标志位的码，可以直接调用JPEG Header类
+     * @throws IOException IO异常
+     */
+    private void writeMarker(byte marker) throws IOException {
+        bufferedOutput.write(JPEGHeader.marker);
+        bufferedOutput.write(marker);
+    }
+
+    /**
+     * 向输出流中写入一个byte的数据
+     * @param data 一字节数据
+     * @throws IOException IO异常
+     */
+    private void writeByte(byte data) throws IOException {
+        bufferedOutput.write(data);
+    }
+
+    /**
+     * 向输出流中写入一个byte数组的数据
+     * @param dataArr 一组字节数据
+     * @throws IOException IO异常
+     */
+    private void writeArray(byte[] dataArr) throws IOException {
+        bufferedOutput.write(dataArr);
+    }
+
+    /**
+     * 向输出流中写入EOI标志位，象征编码过程的结束
+     * @throws IOException IO异常
+     */
+    public void writeEOI() throws IOException {
+        writeMarker(JPEGHeader.EOI);
+        bufferedOutput.flush();
+    }
+
+    /**
+     * 写入一个DQT段，表中有超过255的值时使用16位精度
+     * @param id 量化表ID
+     * @param table 8x8量化表
+     * @throws IOException IO异常
+     */
+    private void writeQuantumTable(int id,int[][] table) throws IOException {
+        int[] zigzagDQT=EntropyEncoder.zigzagScan(table);
+        int precision=0;
+        for (int i:zigzagDQT){
+            if(i>255){
+                precision=1;
+            }
+        }
+        writeMarker(JPEGHeader.DQT);
+        //DQT标记段长度
+        int length=3+64*(precision+1);
+        writeByte((byte) ((length>>8)&0xFF));
+        writeByte((byte) (length&0xFF));
+        //高四位：精度——0为1byte、1为2byte；低四位：量化表ID——0~3
+        writeByte((byte) ((precision<<4)|id));
+        for (int i:zigzagDQT){
+            if(precision==1){
+                writeByte((byte) ((i>>8)&0xFF));
+            }
+            writeByte((byte) i);
+        }
+    }
+
+    /**
+     * 写入一个DHT段
+     * @param table 霍夫曼表，bits的第0位为表类型/ID
+     * @throws IOException IO异常
+     */
+    public void writeHuffmanTable(HuffmanTable table) throws IOException {
+        writeMarker(JPEGHeader.DHT);
+        int[] bitsDHT=table.bits;
+        int[] valDHT=table.val;
+        writeByte((byte) (((2+bitsDHT.length+valDHT.length)>>8)&0xFF));
+        writeByte((byte) ((2+bitsDHT.length+valDHT.length)&0xFF));
+        for (int i:bitsDHT){
+            writeByte((byte) i);
+        }
+        for (int i:valDHT){
+            writeByte((byte) i);
+        }
+    }
+
+    /**
+     * 写入一个SOS段，Y通道使用0号DC/AC霍夫曼表，Cb和Cr通道使用1号表
+     * @param components 参与本次扫描的通道序号，0~2依次为Y、Cb、Cr
+     * @param Ss 频谱选择起点（zigzag序号）
+     * @param Se 频谱选择终点
+     * @param Ah 上一次逐次逼近的位数，首次扫描为0
+     * @param Al 本次逐次逼近的位数
+     * @throws IOException IO异常
+     */
+    public void writeScanHeader(int[] components,int Ss,int Se,int Ah,int Al) throws IOException {
+        writeMarker(JPEGHeader.SOS);
+        //SOS段长度
+        writeByte((byte) 0x00);
+        writeByte((byte) (6+components.length*2));
+        //色彩通道数
+        writeByte((byte) components.length);
+        for (int component:components){
+            //通道ID
+            writeByte((byte) (component+1));
+            //Huffman表号：高四位DC，低四位AC
+            writeByte((byte) (component==0?(0<<4)+0:(1<<4)+1));
+        }
+        writeByte((byte) Ss);
+        writeByte((byte) Se);
+        writeByte((byte) ((Ah<<4)|Al));
+    }
+
+    /**
+     * 向输出流中写入JPEG文件头，象征编码过程的开始
+     * @throws IOException IO异常
+     */
+    public void writeHeader() throws IOException {
+        //Start Of Image
+        writeMarker(JPEGHeader.SOI);
+
+        //APP0_JFIF文件头
+        writeMarker((byte) 0xE0);
+        byte[] JFIFPayload={
+                //标记码长度——16
+                0x00,
+                0x10,
+                //"JFIF"标记
+                0x4A,
+                0x46,
+                0x49,
+                0x46,
+                0x00,
+                //JFIF版本号_01.01
+                0x01,
+                0x01,
+                //坐标单位——0：无单位；1：英寸：2：厘米
+                0x00,
+                //水平/垂直分辨率
+                0x00,
+                0x01,
+                0x00,
+                0x01,
+                //thumbnail分辨率
+                0x00,
+                0x000
+        };
+        writeArray(JFIFPayload);
+
+        //Comment_图片注释
+        if(comment!=null){
+            writeMarker(JPEGHeader.COM);
+            //Comment长度
+            writeByte((byte) ((comment.length>>8)&0xFF));
+            writeByte((byte) ((comment.length)&0xFF));
+            //写入Comment
+            writeArray(comment);
+        }
+
+        //DQT_亮度量化表
+        writeQuantumTable(0x00,quantumTable.get(DCT.component.luminance));
+
+        //DQT_色度量化表，灰度图像不需要
+        if(!grayscale){
+            writeQuantumTable(0x01,quantumTable.get(DCT.component.chrominance));
+        }
+
+        //Start Of Frame，图像基本信息，渐进式为SOF2
+        writeMarker(progressive?JPEGHeader.SOF2:JPEGHeader.SOF0);
+        if(grayscale){
+            byte[] grayPayload={
+                    //标记段长度_11
+                    0x00,
+                    0x0B,
+                    //图片精度（位深）
+                    0x08,
+                    //图片高度
+                    (byte) ((imageHeight>>8)&0xFF),
+                    (byte) ((imageHeight)&0xFF),
+                    //图片宽度
+                    (byte) ((imageWidth>>8)&0xFF),
+                    (byte) ((imageWidth)&0xFF),
+                    //色彩通道数
+                    0x01,
+                    //通道ID1_Y通道
+                    0x01,
+                    //采样系数：高四位：水平；低四位：垂直
+                    (1<<4)+1,
+                    //量化表ID
+                    0x00,
+            };
+            writeArray(grayPayload);
+        }else{
+            byte[] SOF0Payload={
+                    //标记段长度_17
+                    0x00,
+                    0x11,
+                    //图片精度（位深）
+                    0x08,
+                    //图片高度
+                    (byte) ((imageHeight>>8)&0xFF),
+                    (byte) ((imageHeight)&0xFF),
+                    //图片宽度
+                    (byte) ((imageWidth>>8)&0xFF),
+                    (byte) ((imageWidth)&0xFF),
+                    //色彩通道数
+                    0x03,
+                    //通道ID1_Y通道
+                    0x01,
+                    //采样系数：高四位：水平；低四位：垂直
+                    (byte) ((horizontalSampling[0]<<4)+verticalSampling[0]),
+                    //量化表ID
+                    0x00,
+                    //通道ID2_Cb通道
+                    0x02,
+                    //采样系数：高四位：水平；低四位：垂直
+                    (byte) ((horizontalSampling[1]<<4)+verticalSampling[1]),
+                    //量化表ID
+                    0x01,
+                    //通道ID3_Cr通道
+                    0x03,
+                    //采样系数：高四位：水平；低四位：垂直
+                    (byte) ((horizontalSampling[2]<<4)+verticalSampling[2]),
+                    //量化表ID
+                    0x01,
+            };
+            writeArray(SOF0Payload);
+        }
+        if(progressive){
+            return;
+        }
+
+        //DHT_霍夫曼表段，依次为亮度DC(0x00)、色度DC(0x01)、亮度AC(0x10)、色度AC(0x11)，灰度图像只写入亮度表
+        for (int i=0;i<huffmanTables.length;i++){
+            if(grayscale&&(i==HuffmanTable.DCChrominance||i==HuffmanTable.ACChrominance)){
+                continue;
+            }
+            writeHuffmanTable(huffmanTables[i]);
+        }
+
+        //DRI_重启间隔定义
+        if(restartInterval>0){
+            writeMarker(JPEGHeader.DRI);
+            byte[] DRIPayload={
+                    //DRI段长度
+                    0x00,
+                    0x04,
+                    //每个重启间隔包含的MCU数量
+                    (byte) ((restartInterval>>8)&0xFF),
+                    (byte) ((restartInterval)&0xFF),
+            };
+            writeArray(DRIPayload);
+        }
+
+        //Start Of Scan，baseline只有一次包含全部通道和全部频率的扫描
+        writeScanHeader(grayscale?new int[]{0}:new int[]{0,1,2},0x00,0x3F,0,0);
+    }
+}
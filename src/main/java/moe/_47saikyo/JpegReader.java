@@ -0,0 +1,468 @@
+package moe._47saikyo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * baseline JPEG的系数读取器，只进行霍夫曼解码，得到各块的量化系数而不进行反量化和IDCT<br/>
+ * 支持SOF0/SOF1的8位精度帧，1或3个通道，任意采样系数，交错与非交错扫描以及重启间隔；
+ * 渐进式、无损和算术编码的文件抛出IOException<br/>
+ * 有重启间隔时各重启间隔的熵编码数据相互独立，并行模式下在ForkJoin公共线程池中同时解码<br/>
+ * 标记前的多余字节会被跳过（与IJG libjpeg的容错方式一致），因此也能读取注释段长度少写2字节的文件
+ */
+final class JpegReader {
+    private static final int blockSize=CoefficientBuffer.blockSize;
+    private static final int maxDCSize=11;          //8位精度DC差分的最大位深
+    private static final int maxACSize=10;          //8位精度AC系数的最大位深
+    private static final int minDC=-1024;           //8位精度DC系数的最小值
+    private static final int maxDC=1023;            //8位精度DC系数的最大值，保证相邻块的DC差分不超过11位
+
+    private final byte[]        data;               //整个JPEG文件的数据
+    private final boolean       parallel;           //是否并行解码各重启间隔
+    private int                 position=0;         //当前解析位置
+
+    CoefficientBuffer           coefficients;       //各通道的量化系数
+    int[][]                     quantumTables;      //各通道使用的量化表，按zigzag顺序排列
+    int                         restartInterval=0;  //每个重启间隔包含的MCU数量，0为不使用重启间隔
+    private int[]               componentIDs;       //各通道在帧头中的ID
+    private int[]               tableSelectors;     //各通道使用的量化表号
+    private final int[][]       DQT=new int[4][];   //已定义的量化表
+    private final HuffmanDecoder[] DCTables=new HuffmanDecoder[4];  //已定义的DC霍夫曼解码表
+    private final HuffmanDecoder[] ACTables=new HuffmanDecoder[4];  //已定义的AC霍夫曼解码表
+    private int                 adobeTransform=-1;  //Adobe APP14段中的色彩变换，没有该段时为-1
+    private int                 scans=0;            //已解码的扫描数量
+
+    private JpegReader(byte[] data,boolean parallel){
+        this.data=data;
+        this.parallel=parallel;
+    }
+
+    /**
+     * 读取一个baseline JPEG文件的量化系数
+     * @param data 整个JPEG文件的数据
+     * @param parallel 是否在ForkJoin公共线程池中并行解码各重启间隔
+     * @return 读取结果
+     * @throws IOException 文件格式错误或不支持
+     */
+    static JpegReader read(byte[] data,boolean parallel) throws IOException {
+        JpegReader reader=new JpegReader(data,parallel);
+        reader.parse();
+        return reader;
+    }
+
+    /**
+     * 依次解析各标记段，直到EOI
+     * @throws IOException 文件格式错误或不支持
+     */
+    private void parse() throws IOException {
+        if(data.length<4||data[0]!=JPEGHeader.marker||data[1]!=JPEGHeader.SOI){
+            throw new IOException("not a JPEG file: missing SOI");
+        }
+        position=2;
+        while (true){
+            int marker=nextMarker();
+            if(marker==(JPEGHeader.EOI&0xFF)){
+                break;
+            }
+            //RSTn和TEM没有标记段
+            if((marker>=0xD0&&marker<=0xD7)||marker==0x01){
+                continue;
+            }
+            int length=readUnsigned16();
+            int segmentEnd=position+length-2;
+            if(length<2||segmentEnd>data.length){
+                throw new IOException("corrupt JPEG data: truncated segment");
+            }
+            switch (marker){
+                case 0xC0,0xC1->readFrame();
+                case 0xC4->readHuffmanTables(segmentEnd);
+                case 0xDB->readQuantumTables(segmentEnd);
+                case 0xDD->restartInterval=readUnsigned16();
+                case 0xDA->{
+                    readScan();
+                    continue;
+                }
+                case 0xEE->readAdobe(segmentEnd);
+                case 0xC2,0xC3,0xC5,0xC6,0xC7,0xC9,0xCA,0xCB,0xCD,0xCE,0xCF->
+                        throw new IOException("unsupported JPEG process: only baseline sequential Huffman coding is supported");
+                default->{}
+            }
+            position=segmentEnd;
+        }
+        if(scans==0){
+            throw new IOException("corrupt JPEG data: no image data");
+        }
+        for (int[] table:quantumTables){
+            if(table==null){
+                throw new IOException("corrupt JPEG data: component missing from all scans");
+            }
+        }
+    }
+
+    /**
+     * 跳到下一个标记，跳过标记前的多余字节和填充的0xFF
+     * @return 标记码，数据提前结束且已解码过扫描时视为EOI
+     * @throws IOException 没有图像数据时数据提前结束
+     */
+    private int nextMarker() throws IOException {
+        while (position<data.length&&data[position]!=JPEGHeader.marker){
+            position++;
+        }
+        while (position<data.length&&data[position]==JPEGHeader.marker){
+            position++;
+        }
+        if(position>=data.length){
+            if(scans==0){
+                throw new IOException("corrupt JPEG data: premature end of file");
+            }
+            return JPEGHeader.EOI&0xFF;
+        }
+        return data[position++]&0xFF;
+    }
+
+    /**
+     * 读取一个字节
+     * @return 0~255
+     * @throws IOException 数据提前结束
+     */
+    private int readUnsigned8() throws IOException {
+        if(position>=data.length){
+            throw new IOException("corrupt JPEG data: premature end of file");
+        }
+        return data[position++]&0xFF;
+    }
+
+    /**
+     * 读取两个字节的大端整数
+     * @return 0~65535
+     * @throws IOException 数据提前结束
+     */
+    private int readUnsigned16() throws IOException {
+        return (readUnsigned8()<<8)|readUnsigned8();
+    }
+
+    /**
+     * 解析DQT段，一个段中可以包含多张表，16位精度的表同样支持
+     * @param segmentEnd 段结束位置
+     * @throws IOException 格式错误
+     */
+    private void readQuantumTables(int segmentEnd) throws IOException {
+        while (position<segmentEnd){
+            int info=readUnsigned8();
+            int precision=info>>4;
+            int id=info&0x0F;
+            if(id>3||precision>1){
+                throw new IOException("corrupt JPEG data: invalid DQT");
+            }
+            int[] table=new int[blockSize];
+            for (int i=0;i<blockSize;i++){
+                table[i]=precision==0?readUnsigned8():readUnsigned16();
+                if(table[i]==0){
+                    throw new IOException("corrupt JPEG data: zero quantization value");
+                }
+            }
+            DQT[id]=table;
+        }
+    }
+
+    /**
+     * 解析DHT段，一个段中可以包含多张表
+     * @param segmentEnd 段结束位置
+     * @throws IOException 格式错误
+     */
+    private void readHuffmanTables(int segmentEnd) throws IOException {
+        while (position<segmentEnd){
+            int info=readUnsigned8();
+            int tableClass=info>>4;
+            int id=info&0x0F;
+            if(id>3||tableClass>1){
+                throw new IOException("corrupt JPEG data: invalid DHT");
+            }
+            int[] bits=new int[17];
+            bits[0]=info;
+            int count=0;
+            long codeSpace=0;
+            for (int length=1;length<=16;length++){
+                bits[length]=readUnsigned8();
+                count+=bits[length];
+                //范式霍夫曼码的码字数量不能超过该码长的码字空间
+                codeSpace=(codeSpace<<1)+bits[length];
+                if(codeSpace>(1L<<length)){
+                    throw new IOException("corrupt JPEG data: invalid Huffman table");
+                }
+            }
+            if(count>256){
+                throw new IOException("corrupt JPEG data: invalid Huffman table");
+            }
+            int[] val=new int[count];
+            for (int i=0;i<count;i++){
+                val[i]=readUnsigned8();
+            }
+            (tableClass==0?DCTables:ACTables)[id]=new HuffmanDecoder(bits,val);
+        }
+    }
+
+    /**
+     * 解析SOF0/SOF1帧头，初始化系数缓冲
+     * @throws IOException 格式错误或不支持
+     */
+    private void readFrame() throws IOException {
+        if(coefficients!=null){
+            throw new IOException("corrupt JPEG data: duplicate frame header");
+        }
+        if(readUnsigned8()!=8){
+            throw new IOException("unsupported JPEG: only 8-bit precision is supported");
+        }
+        int height=readUnsigned16();
+        int width=readUnsigned16();
+        if(height==0||width==0){
+            throw new IOException("unsupported JPEG: image size must be defined in the frame header");
+        }
+        int count=readUnsigned8();
+        if(count!=1&&count!=3){
+            throw new IOException("unsupported JPEG: only 1 or 3 components are supported");
+        }
+        componentIDs=new int[count];
+        tableSelectors=new int[count];
+        int[] horizontalSampling=new int[count];
+        int[] verticalSampling=new int[count];
+        int blocksPerMCU=0;
+        for (int c=0;c<count;c++){
+            componentIDs[c]=readUnsigned8();
+            int sampling=readUnsigned8();
+            horizontalSampling[c]=sampling>>4;
+            verticalSampling[c]=sampling&0x0F;
+            tableSelectors[c]=readUnsigned8();
+            if(horizontalSampling[c]<1||horizontalSampling[c]>4||verticalSampling[c]<1||verticalSampling[c]>4||tableSelectors[c]>3){
+                throw new IOException("corrupt JPEG data: invalid frame header");
+            }
+            blocksPerMCU+=horizontalSampling[c]*verticalSampling[c];
+        }
+        if(count>1&&blocksPerMCU>10){
+            throw new IOException("corrupt JPEG data: too many blocks per MCU");
+        }
+        //单通道只有非交错扫描，每个MCU总是一个块，采样系数没有意义
+        if(count==1){
+            horizontalSampling[0]=verticalSampling[0]=1;
+        }
+        //按RGB存储的三通道文件不能按YCbCr重新写出
+        if(count==3&&componentIDs[0]=='R'&&componentIDs[1]=='G'&&componentIDs[2]=='B'){
+            throw new IOException("unsupported JPEG: RGB color space");
+        }
+        coefficients=new CoefficientBuffer(width,height,horizontalSampling,verticalSampling);
+        quantumTables=new int[count][];
+    }
+
+    /**
+     * 解析Adobe APP14段，记录其中的色彩变换
+     * @param segmentEnd 段结束位置
+     * @throws IOException 数据提前结束
+     */
+    private void readAdobe(int segmentEnd) throws IOException {
+        if(segmentEnd-position>=12&&data[position]=='A'&&data[position+1]=='d'&&data[position+2]=='o'&&data[position+3]=='b'&&data[position+4]=='e'){
+            adobeTransform=data[position+11]&0xFF;
+        }
+    }
+
+    /**
+     * 解析SOS段并解码其后的熵编码数据，结束时{@link #position}位于数据之后的标记处
+     * @throws IOException 格式错误或不支持
+     */
+    private void readScan() throws IOException {
+        if(coefficients==null){
+            throw new IOException("corrupt JPEG data: scan before frame header");
+        }
+        if(coefficients.componentCount==3&&adobeTransform==0){
+            throw new IOException("unsupported JPEG: RGB color space");
+        }
+        int count=readUnsigned8();
+        if(count<1||count>coefficients.componentCount){
+            throw new IOException("corrupt JPEG data: invalid scan header");
+        }
+        int[] components=new int[count];
+        HuffmanDecoder[] DC=new HuffmanDecoder[count];
+        HuffmanDecoder[] AC=new HuffmanDecoder[count];
+        for (int i=0;i<count;i++){
+            int id=readUnsigned8();
+            int selectors=readUnsigned8();
+            components[i]=-1;
+            for (int c=0;c<componentIDs.length;c++){
+                if(componentIDs[c]==id){
+                    components[i]=c;
+                }
+            }
+            if(components[i]<0||(selectors>>4)>3||(selectors&0x0F)>3){
+                throw new IOException("corrupt JPEG data: invalid scan header");
+            }
+            DC[i]=DCTables[selectors>>4];
+            AC[i]=ACTables[selectors&0x0F];
+            if(DC[i]==null||AC[i]==null){
+                throw new IOException("corrupt JPEG data: undefined Huffman table");
+            }
+            //量化表以通道首次出现在扫描中时的定义为准
+            int c=components[i];
+            if(quantumTables[c]==null){
+                if(DQT[tableSelectors[c]]==null){
+                    throw new IOException("corrupt JPEG data: undefined quantization table");
+                }
+                quantumTables[c]=DQT[tableSelectors[c]].clone();
+            }
+        }
+        int Ss=readUnsigned8();
+        int Se=readUnsigned8();
+        int approximation=readUnsigned8();
+        if(Ss!=0||Se!=63||approximation!=0){
+            throw new IOException("unsupported JPEG process: only baseline sequential Huffman coding is supported");
+        }
+
+        int MCUs=count==1
+                ?coefficients.widthInBlocks[components[0]]*coefficients.heightInBlocks[components[0]]
+                :coefficients.MCUsPerRow*coefficients.MCURows;
+        List<int[]> segments=findSegments();
+        int interval=restartInterval>0?restartInterval:MCUs;
+        int segmentCount=Math.min(segments.size(),(MCUs+interval-1)/interval);
+        if(parallel&&segmentCount>1){
+            List<ForkJoinTask<?>> tasks=new ArrayList<>(segmentCount);
+            for (int i=0;i<segmentCount;i++){
+                int[] segment=segments.get(i);
+                int first=i*interval;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    decodeSegment(segment,components,DC,AC,first,Math.min(first+interval,MCUs));
+                    return null;
+                }));
+            }
+            for (ForkJoinTask<?> task:tasks){
+                try {
+                    task.join();
+                }catch (RuntimeException e){
+                    if(e.getCause() instanceof IOException cause){
+                        throw cause;
+                    }
+                    throw e;
+                }
+            }
+        }else{
+            for (int i=0;i<segmentCount;i++){
+                decodeSegment(segments.get(i),components,DC,AC,i*interval,Math.min((i+1)*interval,MCUs));
+            }
+        }
+        scans++;
+    }
+
+    /**
+     * 从当前位置开始找出熵编码数据中各重启间隔的范围，并将{@link #position}移到数据之后的标记处
+     * @return 各重启间隔的起止位置
+     */
+    private List<int[]> findSegments(){
+        List<int[]> segments=new ArrayList<>();
+        int start=position;
+        int p=position;
+        while (p+1<data.length){
+            if(data[p]!=JPEGHeader.marker){
+                p++;
+                continue;
+            }
+            int next=data[p+1]&0xFF;
+            if(next==0x00||next==0xFF){
+                //填充字节或标记前的填充
+                p+=next==0x00?2:1;
+            }else if(next>=0xD0&&next<=0xD7){
+                segments.add(new int[]{start,p});
+                p+=2;
+                start=p;
+            }else{
+                break;
+            }
+        }
+        if(p+1>=data.length){
+            p=data.length;
+        }
+        segments.add(new int[]{start,p});
+        position=p;
+        return segments;
+    }
+
+    /**
+     * 解码一个重启间隔，每个重启间隔开始时DC预测值归零
+     * @param segment 熵编码数据的起止位置
+     * @param components 参与扫描的通道序号
+     * @param DC 各通道的DC解码表
+     * @param AC 各通道的AC解码表
+     * @param first 首个MCU序号
+     * @param last 最后一个MCU序号+1
+     * @throws IOException 熵编码数据错误
+     */
+    private void decodeSegment(int[] segment,int[] components,HuffmanDecoder[] DC,HuffmanDecoder[] AC,int first,int last) throws IOException {
+        BitReader reader=new BitReader(data,segment[0],segment[1]);
+        int[] predictors=new int[components.length];
+        CoefficientBuffer buffer=coefficients;
+        if(components.length==1){
+            //非交错扫描的MCU为单个块，按通道实际尺寸逐行排列
+            int c=components[0];
+            int width=buffer.widthInBlocks[c];
+            for (int m=first;m<last;m++){
+                decodeBlock(reader,DC[0],AC[0],buffer.coefficients[c],buffer.offset(c,m/width,m%width),predictors,0);
+            }
+            return;
+        }
+        for (int m=first;m<last;m++){
+            int MCURow=m/buffer.MCUsPerRow;
+            int x=m%buffer.MCUsPerRow;
+            for (int i=0;i<components.length;i++){
+                int c=components[i];
+                int H=buffer.horizontalSampling[c];
+                int V=buffer.verticalSampling[c];
+                for (int v=0;v<V;v++){
+                    for (int h=0;h<H;h++){
+                        decodeBlock(reader,DC[i],AC[i],buffer.coefficients[c],buffer.offset(c,MCURow*V+v,x*H+h),predictors,i);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 解码一个块的量化系数，按zigzag顺序写入
+     * @param reader 比特读取器
+     * @param DC DC解码表
+     * @param AC AC解码表
+     * @param block 通道的系数数组
+     * @param offset 块的首个系数下标
+     * @param predictors 各通道的DC预测值
+     * @param index 通道在扫描中的序号
+     * @throws IOException 熵编码数据错误
+     */
+    private static void decodeBlock(BitReader reader,HuffmanDecoder DC,HuffmanDecoder AC,short[] block,int offset,int[] predictors,int index) throws IOException {
+        int size=DC.decode(reader);
+        if(size>maxDCSize){
+            throw new IOException("corrupt JPEG data: invalid DC difference");
+        }
+        int value=predictors[index]+reader.receiveExtend(size);
+        if(value>maxDC||value<minDC){
+            throw new IOException("corrupt JPEG data: DC coefficient out of range");
+        }
+        predictors[index]=value;
+        block[offset]=(short) value;
+        for (int k=1;k<blockSize;k++){
+            int symbol=AC.decode(reader);
+            int run=symbol>>4;
+            size=symbol&0x0F;
+            if(size==0){
+                //EOB，之后的系数都为0
+                if(run!=15){
+                    break;
+                }
+                //ZRL，跳过16个0
+                k+=15;
+                continue;
+            }
+            k+=run;
+            if(k>=blockSize||size>maxACSize){
+                throw new IOException("corrupt JPEG data: invalid AC coefficient");
+            }
+            block[offset+k]=(short) reader.receiveExtend(size);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package moe._47saikyo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 面向NIO目标的JPEG输出，可以直接传给所有接受OutputStream的编码器<br/>
+ * 1.{@link #of(ByteBuffer)}：直接写入调用方的堆内或直接缓冲区，从缓冲区当前位置开始，写完后position指向数据末尾<br/>
+ * 2.{@link #of(byte[], int, int)}：直接写入调用方的字节数组的指定区间<br/>
+ * 3.{@link #of(GatheringByteChannel)}：数据先暂存在若干直接缓冲区中，凑满后通过聚集写入一次性交给通道，
+ * 大块数据（如并行编码的重启间隔）不经暂存，与暂存数据一起聚集写入<br/>
+ * 作为{@link JpegIOStream}的输出时不再套一层BufferedOutputStream，{@link BitWriter}的缓冲区直接写入目标
+ */
+public abstract class JpegSink extends OutputStream {
+    private static final int segmentSize=16*1024;       //通道暂存段大小
+    private static final int segmentCount=4;            //通道暂存段数量
+
+    /**
+     * 写入调用方的缓冲区，空间不足时抛出IOException，此前已写入的数据保留在缓冲区中
+     * @param buffer 堆内或直接缓冲区
+     * @return 输出
+     */
+    public static JpegSink of(ByteBuffer buffer){
+        return new BufferSink(buffer);
+    }
+
+    /**
+     * 写入调用方字节数组的[offset,offset+length)区间，空间不足时抛出IOException
+     * @param array 字节数组
+     * @param offset 起始下标
+     * @param length 可用长度
+     * @return 输出
+     */
+    public static JpegSink of(byte[] array,int offset,int length){
+        return new BufferSink(ByteBuffer.wrap(array,offset,length));
+    }
+
+    /**
+     * 写入文件通道，从通道的当前位置开始
+     * @param channel 文件通道
+     * @return 输出
+     */
+    public static JpegSink of(FileChannel channel){
+        return new ChannelSink(channel);
+    }
+
+    /**
+     * 写入任意支持聚集写入的通道，如SocketChannel
+     * @param channel 通道
+     * @return 输出
+     */
+    public static JpegSink of(GatheringByteChannel channel){
+        return new ChannelSink(channel);
+    }
+
+    /**
+     * 获取已写入的字节数
+     * @return 自创建以来写入的字节数，包括尚在暂存中的数据
+     */
+    public abstract long written();
+
+    /**
+     * 写入调用方缓冲区的输出
+     */
+    private static final class BufferSink extends JpegSink {
+        private final ByteBuffer    buffer;             //目标缓冲区
+        private final int           start;              //创建时缓冲区的位置
+
+        BufferSink(ByteBuffer buffer){
+            this.buffer=buffer;
+            start=buffer.position();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!buffer.hasRemaining()){
+                throw new IOException("sink buffer is full");
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) throws IOException {
+            if(len>buffer.remaining()){
+                throw new IOException("sink buffer is full: "+len+" bytes needed, "+buffer.remaining()+" remaining");
+            }
+            buffer.put(b,off,len);
+        }
+
+        @Override
+        public long written(){
+            return buffer.position()-start;
+        }
+    }
+
+    /**
+     * 写入通道的输出，暂存段写满或flush时通过一次聚集写入输出所有暂存段
+     */
+    private static final class ChannelSink extends JpegSink {
+        private final GatheringByteChannel  channel;    //目标通道
+        private final ByteBuffer[]          segments;   //暂存段，多出的一位用于附加不经暂存的大块数据
+        private int                         current=0;  //当前写入的暂存段
+        private long                        written=0;  //已写入的字节数
+
+        ChannelSink(GatheringByteChannel channel){
+            this.channel=channel;
+            segments=new ByteBuffer[segmentCount+1];
+            for (int i=0;i<segmentCount;i++){
+                segments[i]=ByteBuffer.allocateDirect(segmentSize);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!segments[current].hasRemaining()){
+                nextSegment();
+            }
+            segments[current].put((byte) b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) throws IOException {
+            written+=len;
+            if(len>=segmentSize){
+                //大块数据直接包装，与已暂存的数据一起聚集写入
+                segments[segmentCount]=ByteBuffer.wrap(b,off,len);
+                drain(segmentCount+1);
+                segments[segmentCount]=null;
+                return;
+            }
+            while (len>0){
+                if(!segments[current].hasRemaining()){
+                    nextSegment();
+                }
+                int count=Math.min(len,segments[current].remaining());
+                segments[current].put(b,off,count);
+                off+=count;
+                len-=count;
+            }
+        }
+
+        /**
+         * 切换到下一个暂存段，全部写满时先输出
+         * @throws IOException IO异常
+         */
+        private void nextSegment() throws IOException {
+            if(current==segmentCount-1){
+                drain(segmentCount);
+            }else{
+                current++;
+            }
+        }
+
+        /**
+         * 将前count个段聚集写入通道，然后清空暂存段
+         * @param count 段数量，暂存段之外还可以包含附加的大块数据
+         * @throws IOException IO异常
+         */
+        private void drain(int count) throws IOException {
+            int used=Math.min(current+1,segmentCount);
+            for (int i=0;i<used;i++){
+                segments[i].flip();
+            }
+            //未使用的暂存段flip后为空，聚集写入时直接跳过
+            for (int i=used;i<segmentCount;i++){
+                segments[i].limit(0);
+            }
+            long remaining=0;
+            for (int i=0;i<count;i++){
+                remaining+=segments[i].remaining();
+            }
+            while (remaining>0){
+                remaining-=channel.write(segments,0,count);
+            }
+            for (int i=0;i<segmentCount;i++){
+                segments[i].clear();
+            }
+            current=0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(current>0||segments[0].position()>0){
+                drain(segmentCount);
+            }
+        }
+
+        /**
+         * 输出暂存数据，通道由调用方关闭
+         * @throws IOException IO异常
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        @Override
+        public long written(){
+            return written;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package moe._47saikyo;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * 流式JPEG编码器，不持有完整的解码图像，每凑满16行像素就立即编码一行MCU，内存占用只与图像宽度成正比<br/>
+ * 支持两种使用方式：<br/>
+ * 1.推送模式：由调用方通过{@link #writeRows(int[], int, int, int)}逐行推送像素，最后调用{@link #finish()}<br/>
+ * 2.拉取模式：通过{@link #compress(ImageReader, OutputStream, int)}借助{@link ImageReadParam#setSourceRegion(Rectangle)}按条带读取图像
+ */
+public class JpegStreamCompressor {
+    private static final int    MCULength=16;               //最小编码单元尺寸
+    private final JpegIOStream  IO;                         //自定义的IO成员
+    private MCUEncoder          encoder;                    //MCU行编码器，写入文件头时按设置的压缩质量创建
+    private final int           imageWidth;                 //图像宽度
+    private final int           imageHeight;                //图像高度
+    private final int           MCUsPerRow;                 //每行的MCU数量
+    private final int[]         strip;                      //16行像素的条带缓冲
+    private final RasterReader  stripReader;                //条带缓冲的像素读取器
+    private int                 stripRows=0;                //条带缓冲中已有的行数
+    private int                 receivedRows=0;             //已接收的总行数
+    private boolean             headerWritten=false;        //是否已写入文件头
+    private QuantumTable        quantumTable=QuantumTable.forQuality(QuantumTable.defaultQuality);  //量化表
+
+    /**
+     * 初始化流式编码器
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param output 编码器的outputStream
+     */
+    public JpegStreamCompressor(int width,int height,OutputStream output){
+        if(width<=0||height<=0||width>0xFFFF||height>0xFFFF){
+            throw new IllegalArgumentException("image size must be between 1 and 65535");
+        }
+        imageWidth=width;
+        imageHeight=height;
+        IO=new JpegIOStream(width,height,output);
+        MCUsPerRow=(width+MCULength-1)/MCULength;
+
+        //条带缓冲包装为TYPE_INT_RGB图像，复用RasterReader的整型直读和边缘复制
+        strip=new int[width*MCULength];
+        DirectColorModel colorModel=new DirectColorModel(24,0xFF0000,0x00FF00,0x0000FF);
+        WritableRaster raster=Raster.createPackedRaster(new DataBufferInt(strip,strip.length),width,MCULength,width,colorModel.getMasks(),null);
+        stripReader=new RasterReader(new BufferedImage(colorModel,raster,false,null));
+    }
+
+    /**
+     * 设置图片注释，需在推送第一行像素之前调用
+     * @param comment 图片注释内容
+     */
+    public void setComment(String comment){
+        IO.setComment(comment);
+    }
+
+    /**
+     * 设置压缩质量，需在推送第一行像素之前调用
+     * @param quality 压缩质量1~100，默认为50
+     */
+    public void setQuality(int quality){
+        if(headerWritten){
+            throw new IllegalStateException("quality must be set before the first row");
+        }
+        quantumTable=QuantumTable.forQuality(quality);
+    }
+
+    /**
+     * 推送若干行像素，每凑满16行立即编码一行MCU
+     * @param rgb 0xRRGGBB格式的像素数组，高8位被忽略
+     * @param offset 第一行首个像素在rgb中的下标
+     * @param scanlineStride 相邻两行在rgb中的下标间隔
+     * @param rows 推送的行数
+     * @throws IOException IO异常
+     */
+    public void writeRows(int[] rgb,int offset,int scanlineStride,int rows) throws IOException {
+        if(receivedRows+rows>imageHeight){
+            throw new IllegalStateException("more rows than the declared image height");
+        }
+        if(!headerWritten){
+            IO.setQuantumTable(quantumTable);
+            IO.writeHeader();
+            encoder=new MCUEncoder(new DCT(DCT.engine.fast,quantumTable),new EntropyEncoder(IO.getOutput()),new TableColorConverter());
+            headerWritten=true;
+        }
+        for (int r=0;r<rows;r++){
+            System.arraycopy(rgb,offset+r*scanlineStride,strip,stripRows*imageWidth,imageWidth);
+            stripRows++;
+            receivedRows++;
+            if(stripRows==MCULength){
+                encodeStrip();
+            }
+        }
+    }
+
+    /**
+     * 结束编码，将不足16行的最后一个条带以复制末行的方式补全后编码，并写入文件尾
+     * @throws IOException IO异常
+     */
+    public void finish() throws IOException {
+        if(receivedRows!=imageHeight){
+            throw new IllegalStateException("received "+receivedRows+" of "+imageHeight+" rows");
+        }
+        if(stripRows>0){
+            //边缘填充，防止出现振铃效应
+            for (int r=stripRows;r<MCULength;r++){
+                System.arraycopy(strip,(stripRows-1)*imageWidth,strip,r*imageWidth,imageWidth);
+            }
+            encodeStrip();
+        }
+        encoder.flush();
+        IO.writeEOI();
+    }
+
+    /**
+     * 编码条带缓冲中的一行MCU并清空条带
+     * @throws IOException IO异常
+     */
+    private void encodeStrip() throws IOException {
+        encoder.encodeRow(stripReader,0,MCUsPerRow);
+        stripRows=0;
+    }
+
+    /**
+     * 拉取模式，通过ImageIO识别输入格式后按16行的条带编码
+     * @param input 图像输入流
+     * @param output 编码器的outputStream
+     * @throws IOException IO异常，或输入格式无法识别
+     */
+    public static void compress(InputStream input,OutputStream output) throws IOException {
+        try (ImageInputStream imageInput=ImageIO.createImageInputStream(input)){
+            Iterator<ImageReader> readers=ImageIO.getImageReaders(imageInput);
+            if(!readers.hasNext()){
+                throw new IOException("unsupported image format");
+            }
+            ImageReader reader=readers.next();
+            try {
+                reader.setInput(imageInput,true,true);
+                compress(reader,output,MCULength);
+            }finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 拉取模式，通过{@link ImageReadParam#setSourceRegion(Rectangle)}每次只从reader中解码一个条带<br/>
+     * 部分格式（如PNG）的reader每次读取区域都需要从头解压，这时可以增大条带高度以减少重复解压，代价是条带缓冲变大
+     * @param reader 已设置好输入的ImageReader
+     * @param output 编码器的outputStream
+     * @param stripHeight 每次读取的行数，会向上取整为16的倍数
+     * @throws IOException IO异常
+     */
+    public static void compress(ImageReader reader,OutputStream output,int stripHeight) throws IOException {
+        int width=reader.getWidth(0);
+        int height=reader.getHeight(0);
+        int rowsPerRead=Math.max(MCULength,(stripHeight+MCULength-1)/MCULength*MCULength);
+        JpegStreamCompressor compressor=new JpegStreamCompressor(width,height,output);
+        ImageReadParam param=reader.getDefaultReadParam();
+        int[] rows=new int[width*MCULength];
+
+        for (int y=0;y<height;y+=rowsPerRead){
+            int readRows=Math.min(rowsPerRead,height-y);
+            param.setSourceRegion(new Rectangle(0,y,width,readRows));
+            RasterReader region=new RasterReader(reader.read(0,param));
+            //每次从读到的区域中取出16行推送
+            for (int r=0;r<readRows;r+=MCULength){
+                int pushRows=Math.min(MCULength,readRows-r);
+                region.readBlock(0,r,width,pushRows,rows);
+                compressor.writeRows(rows,0,width,pushRows);
+            }
+        }
+        compressor.finish();
+    }
+}
@@ -0,0 +1,327 @@
+package moe._47saikyo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 在系数域处理已有的baseline JPEG文件，不进行IDCT、色彩空间转换和DCT<br/>
+ * 由{@link JpegReader}霍夫曼解码得到各块的量化系数，经过重排后按优化的霍夫曼表重新熵编码，
+ * 文件头只保留解码必需的JFIF、DQT、SOF、DHT和SOS段，EXIF、ICC等元数据和注释都被去除<br/>
+ * 量化系数的值和量化表原样保留，重新优化、裁剪、翻转、旋转和拼接都是无损的；
+ * 重新量化则在系数域把量化系数换算到更粗的量化表上，用于降低已有JPEG文件的质量
+ */
+public class JpegTranscoder {
+    /**
+     * 无损几何变换，翻转方向上不完整的边缘MCU会被裁掉，见{@link CoefficientTransform}
+     */
+    public enum transform {
+        flipHorizontal,     //水平翻转
+        flipVertical,       //垂直翻转
+        transpose,          //沿主对角线转置
+        transverse,         //沿副对角线转置
+        rotate90,           //顺时针旋转90度
+        rotate180,          //旋转180度
+        rotate270           //顺时针旋转270度
+    }
+
+    private boolean     parallel=false;             //是否并行解码各重启间隔
+    private String      comment=null;               //写入输出文件的注释，null为不写入COM段
+
+    /**
+     * 设置是否并行解码，开启后源文件的各个重启间隔在ForkJoin线程池中同时解码，没有重启间隔的文件不受影响
+     * @param parallel 是否并行
+     */
+    public void setParallel(boolean parallel){
+        this.parallel=parallel;
+    }
+
+    /**
+     * 设置写入输出文件的注释，默认不写入注释
+     * @param comment 注释内容，null为不写入COM段
+     */
+    public void setComment(String comment){
+        this.comment=comment;
+    }
+
+    /**
+     * 无损地重新优化JPEG文件：保留量化系数，按本文件的符号频率生成霍夫曼表，并去除元数据
+     * @param jpeg 源JPEG文件的数据
+     * @return 优化后的JPEG文件
+     * @throws IOException 源文件格式错误或不是baseline JPEG
+     */
+    public byte[] optimize(byte[] jpeg) throws IOException {
+        ByteArrayOutputStream output=new ByteArrayOutputStream(jpeg.length);
+        optimize(jpeg,output);
+        return output.toByteArray();
+    }
+
+    /**
+     * 无损地重新优化JPEG文件，写入输出流
+     * @param input 源JPEG文件的输入流，读取到流结束
+     * @param output 输出流
+     * @throws IOException 源文件格式错误、不是baseline JPEG或IO异常
+     */
+    public void optimize(InputStream input,OutputStream output) throws IOException {
+        optimize(input.readAllBytes(),output);
+    }
+
+    /**
+     * 无损地重新优化JPEG文件，写入输出流
+     * @param jpeg 源JPEG文件的数据
+     * @param output 输出流
+     * @throws IOException 源文件格式错误、不是baseline JPEG或IO异常
+     */
+    private void optimize(byte[] jpeg,OutputStream output) throws IOException {
+        JpegReader source=JpegReader.read(jpeg,parallel);
+        write(source.coefficients,source.quantumTables,output);
+    }
+
+    /**
+     * 在系数域降低JPEG文件的质量：反量化后按目标质量的量化表重新量化，不经过IDCT、色彩空间转换和DCT<br/>
+     * 目标量化表与{@link JpegCompressor#setQuality(int)}使用的表相同，但每个频率取目标值与源文件量化值中较大的一个，
+     * 不会因为目标质量高于源文件而增大文件；取舍方式与{@link DCT}的量化一致，即四舍五入
+     * @param jpeg 源JPEG文件的数据
+     * @param quality 目标压缩质量1~100
+     * @return 重新量化后的JPEG文件
+     * @throws IOException 源文件格式错误或不是baseline JPEG
+     */
+    public byte[] requantize(byte[] jpeg,int quality) throws IOException {
+        ByteArrayOutputStream output=new ByteArrayOutputStream(jpeg.length);
+        requantize(jpeg,output,quality);
+        return output.toByteArray();
+    }
+
+    /**
+     * 在系数域降低JPEG文件的质量，写入输出流
+     * @param input 源JPEG文件的输入流，读取到流结束
+     * @param output 输出流
+     * @param quality 目标压缩质量1~100
+     * @throws IOException 源文件格式错误、不是baseline JPEG或IO异常
+     */
+    public void requantize(InputStream input,OutputStream output,int quality) throws IOException {
+        requantize(input.readAllBytes(),output,quality);
+    }
+
+    /**
+     * 在系数域降低JPEG文件的质量，写入输出流
+     * @param jpeg 源JPEG文件的数据
+     * @param output 输出流
+     * @param quality 目标压缩质量1~100
+     * @throws IOException 源文件格式错误、不是baseline JPEG或IO异常
+     */
+    private void requantize(byte[] jpeg,OutputStream output,int quality) throws IOException {
+        QuantumTable target=QuantumTable.forQuality(quality);
+        JpegReader source=JpegReader.read(jpeg,parallel);
+        CoefficientBuffer buffer=source.coefficients;
+        int[] luminance=EntropyEncoder.zigzagScan(target.get(DCT.component.luminance));
+        int[] chrominance=EntropyEncoder.zigzagScan(target.get(DCT.component.chrominance));
+        //Cb和Cr共用一张表，取两者与目标表中较大的值，源文件中两张色度表不同时也能写出
+        int[][] tables=new int[buffer.componentCount][];
+        for (int c=0;c<buffer.componentCount;c++){
+            tables[c]=max(c==0?luminance:chrominance,source.quantumTables[c]);
+        }
+        if(buffer.componentCount==3){
+            tables[1]=tables[2]=max(tables[1],tables[2]);
+        }
+        for (int c=0;c<buffer.componentCount;c++){
+            requantize(buffer.coefficients[c],source.quantumTables[c],tables[c]);
+        }
+        write(buffer,tables,output);
+    }
+
+    /**
+     * 将一个通道的全部量化系数从源量化表换算到目标量化表，即round(系数*源量化值/目标量化值)，使用整数运算保证结果精确
+     * @param coefficients 通道的量化系数，块内按zigzag顺序排列，结果原地写回
+     * @param from 源量化表，按zigzag顺序排列
+     * @param to 目标量化表，按zigzag顺序排列
+     */
+    private static void requantize(short[] coefficients,int[] from,int[] to){
+        if(Arrays.equals(from,to)){
+            return;
+        }
+        for (int p=0;p<coefficients.length;p+=CoefficientBuffer.blockSize){
+            for (int i=0;i<CoefficientBuffer.blockSize;i++){
+                int value=coefficients[p+i];
+                if(value!=0){
+                    //floor(x+0.5)与Math.round的取舍一致
+                    coefficients[p+i]=(short) Math.floorDiv(2*value*from[i]+to[i],2*to[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐项取两张量化表中较大的值
+     * @param a 量化表
+     * @param b 量化表
+     * @return 新的量化表
+     */
+    private static int[] max(int[] a,int[] b){
+        int[] table=new int[a.length];
+        for (int i=0;i<a.length;i++){
+            table[i]=Math.max(a[i],b[i]);
+        }
+        return table;
+    }
+
+    /**
+     * 无损地翻转、转置或旋转JPEG文件，涉及转置的变换同时转置量化表
+     * @param jpeg 源JPEG文件的数据
+     * @param operation 变换类型
+     * @return 变换后的JPEG文件
+     * @throws IOException 源文件格式错误或不是baseline JPEG
+     */
+    public byte[] transform(byte[] jpeg,transform operation) throws IOException {
+        JpegReader source=JpegReader.read(jpeg,parallel);
+        CoefficientBuffer buffer=source.coefficients;
+        buffer=switch (operation){
+            case flipHorizontal->CoefficientTransform.flipHorizontal(buffer);
+            case flipVertical->CoefficientTransform.flipVertical(buffer);
+            case transpose->CoefficientTransform.transpose(buffer);
+            case transverse->CoefficientTransform.transpose(CoefficientTransform.flipVertical(CoefficientTransform.flipHorizontal(buffer)));
+            case rotate90->CoefficientTransform.transpose(CoefficientTransform.flipVertical(buffer));
+            case rotate180->CoefficientTransform.flipVertical(CoefficientTransform.flipHorizontal(buffer));
+            case rotate270->CoefficientTransform.transpose(CoefficientTransform.flipHorizontal(buffer));
+        };
+        int[][] quantumTables=source.quantumTables;
+        if(operation==transform.transpose||operation==transform.transverse||operation==transform.rotate90||operation==transform.rotate270){
+            quantumTables=new int[quantumTables.length][];
+            for (int c=0;c<quantumTables.length;c++){
+                quantumTables[c]=CoefficientTransform.transposeTable(source.quantumTables[c]);
+            }
+        }
+        return write(buffer,quantumTables);
+    }
+
+    /**
+     * 无损地按MCU边界裁剪JPEG文件
+     * @param jpeg 源JPEG文件的数据
+     * @param x 裁剪区域左上角的横坐标，须为MCU宽度的整数倍（4:2:0为16，4:4:4和灰度为8）
+     * @param y 裁剪区域左上角的纵坐标，须为MCU高度的整数倍
+     * @param width 裁剪区域宽度
+     * @param height 裁剪区域高度
+     * @return 裁剪后的JPEG文件
+     * @throws IOException 源文件格式错误或不是baseline JPEG
+     */
+    public byte[] crop(byte[] jpeg,int x,int y,int width,int height) throws IOException {
+        JpegReader source=JpegReader.read(jpeg,parallel);
+        return write(CoefficientTransform.crop(source.coefficients,x,y,width,height),source.quantumTables);
+    }
+
+    /**
+     * 无损地将多个JPEG图块按行优先拼接为一张图像<br/>
+     * 所有图块的通道数、采样系数和量化表必须相同；同一列的图块宽度相同，同一行的图块高度相同，
+     * 除最后一列和最后一行外图块尺寸须为MCU的整数倍
+     * @param tiles 按行优先排列的各图块JPEG文件
+     * @param columns 每行的图块数量
+     * @return 拼接后的JPEG文件
+     * @throws IOException 图块格式错误、不是baseline JPEG或量化表不同
+     */
+    public byte[] stitch(byte[][] tiles,int columns) throws IOException {
+        CoefficientBuffer[] buffers=new CoefficientBuffer[tiles.length];
+        int[][] quantumTables=null;
+        for (int i=0;i<tiles.length;i++){
+            JpegReader source=JpegReader.read(tiles[i],parallel);
+            if(quantumTables==null){
+                quantumTables=source.quantumTables;
+            }else if(!Arrays.deepEquals(quantumTables,source.quantumTables)){
+                throw new IOException("tiles must use the same quantization tables");
+            }
+            buffers[i]=source.coefficients;
+        }
+        return write(CoefficientTransform.stitch(buffers,columns),quantumTables);
+    }
+
+    /**
+     * 以优化的霍夫曼表写出系数缓冲
+     * @param buffer 量化系数
+     * @param quantumTables 各通道的量化表，按zigzag顺序排列
+     * @return JPEG文件
+     * @throws IOException 两个色度通道使用不同的量化表
+     */
+    private byte[] write(CoefficientBuffer buffer,int[][] quantumTables) throws IOException {
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        write(buffer,quantumTables,output);
+        return output.toByteArray();
+    }
+
+    /**
+     * 以优化的霍夫曼表写出系数缓冲：先统计全部块的符号频率，再写入文件头并熵编码
+     * @param buffer 量化系数
+     * @param quantumTables 各通道的量化表，按zigzag顺序排列
+     * @param output 输出流
+     * @throws IOException 两个色度通道使用不同的量化表或IO异常
+     */
+    private void write(CoefficientBuffer buffer,int[][] quantumTables,OutputStream output) throws IOException {
+        boolean grayscale=buffer.componentCount==1;
+        //文件头中Cb和Cr共用1号量化表
+        if(!grayscale&&!Arrays.equals(quantumTables[1],quantumTables[2])){
+            throw new IOException("unsupported JPEG: Cb and Cr use different quantization tables");
+        }
+        long[][] frequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+        encodeBlocks(buffer,new EntropyEncoder(frequencies));
+        HuffmanTable[] tables=HuffmanTable.optimalTables(frequencies);
+
+        JpegIOStream IO=new JpegIOStream(buffer.imageWidth,buffer.imageHeight,output);
+        IO.setComment(comment);
+        IO.setGrayscale(grayscale);
+        if(!grayscale){
+            IO.setSampling(buffer.horizontalSampling,buffer.verticalSampling);
+        }
+        IO.setQuantumTable(QuantumTable.of(naturalOrder(quantumTables[0]),naturalOrder(quantumTables[grayscale?0:1])));
+        IO.setHuffmanTables(tables);
+        IO.writeHeader();
+        EntropyEncoder entropy=new EntropyEncoder(IO.getOutput());
+        entropy.setHuffmanTables(tables);
+        encodeBlocks(buffer,entropy);
+        entropy.flushByte();
+        IO.writeEOI();
+    }
+
+    /**
+     * 按扫描顺序熵编码全部块：单通道为非交错扫描，按通道实际尺寸逐行编码；三通道为交错扫描，按MCU依次编码各通道的块
+     * @param buffer 量化系数
+     * @param entropy 熵编码处理器
+     * @throws IOException IO异常
+     */
+    private static void encodeBlocks(CoefficientBuffer buffer,EntropyEncoder entropy) throws IOException {
+        if(buffer.componentCount==1){
+            for (int row=0;row<buffer.heightInBlocks[0];row++){
+                for (int column=0;column<buffer.widthInBlocks[0];column++){
+                    entropy.encodeCoefficients(buffer.coefficients[0],buffer.offset(0,row,column),EntropyEncoder.component.Y);
+                }
+            }
+            return;
+        }
+        EntropyEncoder.component[] types=EntropyEncoder.component.values();
+        for (int y=0;y<buffer.MCURows;y++){
+            for (int x=0;x<buffer.MCUsPerRow;x++){
+                for (int c=0;c<buffer.componentCount;c++){
+                    int H=buffer.horizontalSampling[c];
+                    int V=buffer.verticalSampling[c];
+                    for (int v=0;v<V;v++){
+                        for (int h=0;h<H;h++){
+                            entropy.encodeCoefficients(buffer.coefficients[c],buffer.offset(c,y*V+v,x*H+h),types[c]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 将按zigzag顺序排列的量化表还原为8x8量化表
+     * @param zigzag 按zigzag顺序排列的64个量化值
+     * @return 8x8量化表
+     */
+    private static int[][] naturalOrder(int[] zigzag){
+        int[][] table=new int[8][8];
+        for (int i=0;i<CoefficientBuffer.blockSize;i++){
+            int index=EntropyEncoder.zigzagIndex[i];
+            table[index/8][index%8]=zigzag[i];
+        }
+        return table;
+    }
+}
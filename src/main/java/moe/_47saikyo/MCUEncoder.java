@@ -0,0 +1,307 @@
+package moe._47saikyo;
+import java.io.IOException;
+
+/**
+ * MCU行编码器，持有一套独立的DCT处理器、熵编码处理器和平铺工作区，按行对MCU进行色彩空间转换、DCT、量化和熵编码<br/>
+ * 整图编码、重启间隔编码和流式编码共用这一实现；工作区在各MCU之间复用，逐MCU编码的过程不产生新对象<br/>
+ * 灰度模式下每个MCU只有一个8x8的Y块，像素的B通道直接作为Y，不经过色彩空间转换，也没有色度块
+ */
+class MCUEncoder {
+    private static final int MCULength=16;          //最小编码单元尺寸
+    private static final int blockLength=8;         //块尺寸，即灰度模式下的MCU尺寸
+    private static final int blockSize=64;          //块中的像素数量
+
+    private final DCT               dct;            //DCT处理器
+    private final EntropyEncoder    entropy;        //熵编码处理器
+    private final ColorConverter    colorConverter; //色彩空间转换阶段
+    private final boolean           grayscale;      //是否为单通道灰度模式
+    private final int[]             pixels=new int[MCULength*MCULength];    //一个MCU的像素
+    private final float[]           blocks=new float[6*blockSize];          //Y1 Y2 Y3 Y4 Cb Cr依次平铺
+    private final int[]             quantized=new int[blockSize];           //一个块的量化结果
+    private StageRecorder           recorder;       //分阶段统计器，null时不统计
+    private int[][]                 recordedBlocks; //统计时先完成6个块的DCT再熵编码，用于分开计时
+
+    /**
+     * 初始化MCU行编码器
+     * @param dct DCT处理器
+     * @param entropy 熵编码处理器
+     * @param colorConverter 色彩空间转换阶段
+     */
+    public MCUEncoder(DCT dct,EntropyEncoder entropy,ColorConverter colorConverter){
+        this(dct,entropy,colorConverter,false);
+    }
+
+    /**
+     * 初始化MCU行编码器
+     * @param dct DCT处理器
+     * @param entropy 熵编码处理器
+     * @param colorConverter 色彩空间转换阶段，灰度模式下不使用
+     * @param grayscale 是否为单通道灰度模式，灰度模式要求图像满足R=G=B
+     */
+    public MCUEncoder(DCT dct,EntropyEncoder entropy,ColorConverter colorConverter,boolean grayscale){
+        this.dct=dct;
+        this.entropy=entropy;
+        this.colorConverter=colorConverter;
+        this.grayscale=grayscale;
+    }
+
+    /**
+     * 设置分阶段统计器，设置后色彩空间转换、DCT和熵编码分别计时，输出与不统计时一致
+     * @param recorder 分阶段统计器，null为不统计
+     */
+    public void setRecorder(StageRecorder recorder){
+        this.recorder=recorder;
+        if(recorder!=null&&recordedBlocks==null){
+            recordedBlocks=new int[6][blockSize];
+        }
+    }
+
+    /**
+     * 编码一行MCU
+     * @param source 像素来源，超出来源范围的像素由其复制边缘像素
+     * @param top 该行MCU的首行像素在source中的y坐标
+     * @param MCUsPerRow 每行的MCU数量
+     * @throws IOException IO异常
+     */
+    public void encodeRow(RasterReader source,int top,int MCUsPerRow) throws IOException {
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<MCUsPerRow;x++){
+            readMCU(source,x,top);
+            encodeMCU();
+        }
+    }
+
+    /**
+     * 从平面数据中编码一行MCU，色彩空间转换已在生成平面数据时完成，此处只复制块
+     * @param planes 整幅图像的平面数据
+     * @param MCURow MCU行号
+     * @throws IOException IO异常
+     */
+    public void encodeRow(PlanarImage planes,int MCURow) throws IOException {
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<planes.MCUsPerRow;x++){
+            planes.copyMCU(x,MCURow,blocks);
+            encodeMCU();
+        }
+    }
+
+    /**
+     * 读取一个MCU的像素并完成色彩空间转换，结果写入{@link #blocks}
+     * @param source 像素来源，超出来源范围的像素由其复制边缘像素
+     * @param x MCU所在列
+     * @param top 该行MCU的首行像素在source中的y坐标
+     */
+    private void readMCU(RasterReader source,int x,int top){
+        if(grayscale){
+            readGrayBlock(source,x*blockLength,top);
+        }else{
+            source.readBlock(x*MCULength,top,MCULength,MCULength,pixels);
+            colorConverter.convertMCU(pixels,blocks);
+        }
+    }
+
+    /**
+     * 对{@link #blocks}中的一个MCU进行DCT和熵编码
+     * @throws IOException IO异常
+     */
+    private void encodeMCU() throws IOException {
+        if(recorder!=null){
+            encodeMCURecorded();
+            return;
+        }
+        if(grayscale){
+            dct.transform(blocks,0,DCT.component.luminance,quantized);
+            entropy.encodeBlock(quantized,EntropyEncoder.component.Y);
+            return;
+        }
+
+        //DCT转换后直接熵编码
+        for (int i=0;i<4;i++){
+            dct.transform(blocks,i*blockSize,DCT.component.luminance,quantized);
+            entropy.encodeBlock(quantized,EntropyEncoder.component.Y);
+        }
+        dct.transform(blocks,4*blockSize,DCT.component.chrominance,quantized);
+        entropy.encodeBlock(quantized,EntropyEncoder.component.Cb);
+        dct.transform(blocks,5*blockSize,DCT.component.chrominance,quantized);
+        entropy.encodeBlock(quantized,EntropyEncoder.component.Cr);
+    }
+
+    /**
+     * 统计模式下编码一个MCU，在色彩空间转换之后打点，再完成所有块的DCT，最后依次熵编码，每步结束时打点
+     * @throws IOException IO异常
+     */
+    private void encodeMCURecorded() throws IOException {
+        recorder.lap(CompressionListener.stage.color);
+        if(grayscale){
+            dct.transform(blocks,0,DCT.component.luminance,quantized);
+            recorder.lap(CompressionListener.stage.DCT);
+            entropy.encodeBlock(quantized,EntropyEncoder.component.Y);
+            recorder.lap(CompressionListener.stage.entropy);
+            return;
+        }
+        for (int i=0;i<6;i++){
+            dct.transform(blocks,i*blockSize,i<4?DCT.component.luminance:DCT.component.chrominance,recordedBlocks[i]);
+        }
+        recorder.lap(CompressionListener.stage.DCT);
+
+        for (int i=0;i<4;i++){
+            entropy.encodeBlock(recordedBlocks[i],EntropyEncoder.component.Y);
+        }
+        entropy.encodeBlock(recordedBlocks[4],EntropyEncoder.component.Cb);
+        entropy.encodeBlock(recordedBlocks[5],EntropyEncoder.component.Cr);
+        recorder.lap(CompressionListener.stage.entropy);
+    }
+
+    /**
+     * 对一行MCU进行色彩空间转换、DCT和量化，量化结果按zigzag顺序存入系数缓冲而不进行熵编码，用于渐进式编码等需要整幅系数的场合
+     * @param source 像素来源，超出来源范围的像素由其复制边缘像素
+     * @param top 该行MCU的首行像素在source中的y坐标
+     * @param buffer 按YCbCr 4:2:0采样的系数缓冲，灰度模式下为单通道的系数缓冲
+     * @param MCURow 该行MCU在系数缓冲中的行号
+     */
+    public void transformRow(RasterReader source,int top,CoefficientBuffer buffer,int MCURow){
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<buffer.MCUsPerRow;x++){
+            readMCU(source,x,top);
+            transformMCU(buffer,MCURow,x);
+        }
+    }
+
+    /**
+     * 从平面数据中对一行MCU进行DCT和量化，结果存入系数缓冲
+     * @param planes 整幅图像的平面数据
+     * @param buffer 系数缓冲
+     * @param MCURow MCU行号
+     */
+    public void transformRow(PlanarImage planes,CoefficientBuffer buffer,int MCURow){
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<buffer.MCUsPerRow;x++){
+            planes.copyMCU(x,MCURow,blocks);
+            transformMCU(buffer,MCURow,x);
+        }
+    }
+
+    /**
+     * 对一行MCU进行色彩空间转换和DCT但不量化，频域系数按MCU顺序存入coefficients，用于目标大小模式下按不同质量反复量化
+     * @param source 像素来源，超出来源范围的像素由其复制边缘像素
+     * @param top 该行MCU的首行像素在source中的y坐标
+     * @param MCUsPerRow 每行的MCU数量
+     * @param coefficients 整幅图像的频域系数，每个MCU依次存放其各个块
+     * @param offset 该行MCU在coefficients中的起始下标
+     */
+    public void forwardRow(RasterReader source,int top,int MCUsPerRow,float[] coefficients,int offset){
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<MCUsPerRow;x++){
+            readMCU(source,x,top);
+            offset=forwardMCU(coefficients,offset);
+        }
+    }
+
+    /**
+     * 从平面数据中对一行MCU进行DCT但不量化，频域系数按MCU顺序存入coefficients
+     * @param planes 整幅图像的平面数据
+     * @param MCURow MCU行号
+     * @param coefficients 整幅图像的频域系数
+     * @param offset 该行MCU在coefficients中的起始下标
+     */
+    public void forwardRow(PlanarImage planes,int MCURow,float[] coefficients,int offset){
+        if(recorder!=null){
+            recorder.start();
+        }
+        for (int x=0;x<planes.MCUsPerRow;x++){
+            planes.copyMCU(x,MCURow,blocks);
+            offset=forwardMCU(coefficients,offset);
+        }
+    }
+
+    /**
+     * 对{@link #blocks}中的一个MCU进行DCT但不量化
+     * @param coefficients 整幅图像的频域系数
+     * @param offset 该MCU在coefficients中的起始下标
+     * @return 下一个MCU的起始下标
+     */
+    private int forwardMCU(float[] coefficients,int offset){
+        if(recorder!=null){
+            recorder.lap(CompressionListener.stage.color);
+        }
+        int count=grayscale?1:6;
+        for (int i=0;i<count;i++){
+            dct.forwardTransform(blocks,i*blockSize,coefficients,offset);
+            offset+=blockSize;
+        }
+        if(recorder!=null){
+            recorder.lap(CompressionListener.stage.DCT);
+        }
+        return offset;
+    }
+
+    /**
+     * 对{@link #blocks}中的一个MCU进行DCT和量化，结果存入系数缓冲
+     * @param buffer 系数缓冲
+     * @param MCURow MCU行号
+     * @param x MCU所在列
+     */
+    private void transformMCU(CoefficientBuffer buffer,int MCURow,int x){
+        if(recorder!=null){
+            recorder.lap(CompressionListener.stage.color);
+        }
+        if(grayscale){
+            dct.transform(blocks,0,DCT.component.luminance,quantized);
+            store(buffer.coefficients[0],buffer.offset(0,MCURow,x));
+        }else{
+            for (int i=0;i<4;i++){
+                dct.transform(blocks,i*blockSize,DCT.component.luminance,quantized);
+                store(buffer.coefficients[0],buffer.offset(0,MCURow*2+i/2,x*2+i%2));
+            }
+            dct.transform(blocks,4*blockSize,DCT.component.chrominance,quantized);
+            store(buffer.coefficients[1],buffer.offset(1,MCURow,x));
+            dct.transform(blocks,5*blockSize,DCT.component.chrominance,quantized);
+            store(buffer.coefficients[2],buffer.offset(2,MCURow,x));
+        }
+        if(recorder!=null){
+            recorder.lap(CompressionListener.stage.DCT);
+        }
+    }
+
+    /**
+     * 读取一个8x8的灰度块写入{@link #blocks}的首个块，R=G=B，B通道即为Y
+     * @param source 像素来源，超出来源范围的像素由其复制边缘像素
+     * @param x0 块左上角的x坐标
+     * @param top 块左上角的y坐标
+     */
+    private void readGrayBlock(RasterReader source,int x0,int top){
+        source.readBlock(x0,top,blockLength,blockLength,pixels);
+        for (int i=0;i<blockSize;i++){
+            blocks[i]=pixels[i]&0xFF;
+        }
+    }
+
+    /**
+     * 将{@link #quantized}按zigzag顺序写入系数缓冲
+     * @param coefficients 某个通道的系数数组
+     * @param offset 块的起始下标
+     */
+    private void store(short[] coefficients,int offset){
+        for (int i=0;i<blockSize;i++){
+            coefficients[offset+i]=(short) quantized[EntropyEncoder.zigzagIndex[i]];
+        }
+    }
+
+    /**
+     * 将熵编码处理器中剩余的数据补齐一字节后写入输出流中
+     * @throws IOException IO异常
+     */
+    public void flush() throws IOException {
+        entropy.flushByte();
+    }
+}
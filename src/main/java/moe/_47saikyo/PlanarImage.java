@@ -0,0 +1,183 @@
+package moe._47saikyo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 整幅图像的平面YCbCr数据，Y、Cb、Cr各自按行平铺存储，尺寸已按MCU补全，补全部分为复制的边缘像素，色度已完成抽样<br/>
+ * 由{@link #convert(RasterReader, ColorConverter, boolean, boolean, int, int)}按MCU行生成，并行模式下各行在ForkJoin公共线程池中同时转换，
+ * 之后编码时每个块只需从平面中按行跨度复制8段连续的数据，不再读取像素和转换色彩空间；
+ * 优化霍夫曼表的两遍编码也共用同一份平面数据<br/>
+ * 灰度图像和{@link TableColorConverter}的输出都是0~255的整数，平面以byte存储，每个像素约占1.5字节；
+ * 其他转换阶段的输出可能带有小数，平面以float存储以保持逐位一致，每个像素约占6字节
+ */
+final class PlanarImage {
+    private static final int MCULength=16;          //YCbCr 4:2:0的最小编码单元尺寸
+    private static final int blockLength=8;         //块尺寸，即灰度图像的最小编码单元尺寸
+    private static final int blockSize=64;          //块中的像素数量
+
+    final boolean   grayscale;                      //是否只有Y平面
+    final int       MCUsPerRow;                     //每行的MCU数量
+    final int       MCURows;                        //MCU行数
+    final int       width;                          //Y平面宽度，即补全宽度
+    final int       height;                         //Y平面高度，即补全高度
+    final int       chromaWidth;                    //色度平面宽度
+    private final byte[][]  bytePlanes;             //byte存储的Y、Cb、Cr平面，样本可能带有小数时为null
+    private final float[][] floatPlanes;            //float存储的Y、Cb、Cr平面，使用byte存储时为null
+
+    private PlanarImage(boolean grayscale,boolean integral,int MCUsPerRow,int MCURows){
+        this.grayscale=grayscale;
+        this.MCUsPerRow=MCUsPerRow;
+        this.MCURows=MCURows;
+        int size=grayscale?blockLength:MCULength;
+        width=MCUsPerRow*size;
+        height=MCURows*size;
+        chromaWidth=grayscale?0:width/2;
+        int[] sizes=grayscale?new int[]{width*height}:new int[]{width*height,chromaWidth*(height/2),chromaWidth*(height/2)};
+        if(integral){
+            bytePlanes=new byte[sizes.length][];
+            for (int i=0;i<sizes.length;i++){
+                bytePlanes[i]=new byte[sizes[i]];
+            }
+            floatPlanes=null;
+        }else{
+            floatPlanes=new float[sizes.length][];
+            for (int i=0;i<sizes.length;i++){
+                floatPlanes[i]=new float[sizes[i]];
+            }
+            bytePlanes=null;
+        }
+    }
+
+    /**
+     * 转换整幅图像，每行MCU为一个任务，各任务使用独立的工作区
+     * @param raster 像素读取器
+     * @param converter 色彩空间转换阶段，灰度图像不使用
+     * @param grayscale 是否为单通道灰度，灰度图像要求满足R=G=B
+     * @param parallel 是否在ForkJoin公共线程池中并行转换，否则在调用线程中逐行转换
+     * @param MCUsPerRow 每行的MCU数量
+     * @param MCURows MCU行数
+     * @return 平面数据
+     */
+    static PlanarImage convert(RasterReader raster,ColorConverter converter,boolean grayscale,boolean parallel,int MCUsPerRow,int MCURows){
+        PlanarImage planes=new PlanarImage(grayscale,grayscale||converter instanceof TableColorConverter,MCUsPerRow,MCURows);
+        if(!parallel){
+            for (int y=0;y<MCURows;y++){
+                planes.convertRow(raster,converter,y);
+            }
+            return planes;
+        }
+        List<ForkJoinTask<?>> tasks=new ArrayList<>(MCURows);
+        for (int y=0;y<MCURows;y++){
+            int row=y;
+            tasks.add(ForkJoinPool.commonPool().submit(()->planes.convertRow(raster,converter,row)));
+        }
+        for (ForkJoinTask<?> task:tasks){
+            task.join();
+        }
+        return planes;
+    }
+
+    /**
+     * 转换一行MCU并写入各平面
+     * @param raster 像素读取器，超出图像的像素由其复制边缘像素
+     * @param converter 色彩空间转换阶段
+     * @param MCURow MCU行号
+     */
+    private void convertRow(RasterReader raster,ColorConverter converter,int MCURow){
+        int[] pixels=new int[MCULength*MCULength];
+        float[] blocks=new float[6*blockSize];
+        int r,x;
+        if(grayscale){
+            for (x=0;x<MCUsPerRow;x++){
+                raster.readBlock(x*blockLength,MCURow*blockLength,blockLength,blockLength,pixels);
+                byte[] Y=bytePlanes[0];
+                int p=MCURow*blockLength*width+x*blockLength;
+                for (r=0;r<blockLength;r++){
+                    for (int c=0;c<blockLength;c++){
+                        Y[p+r*width+c]=(byte) pixels[r*blockLength+c];
+                    }
+                }
+            }
+            return;
+        }
+        for (x=0;x<MCUsPerRow;x++){
+            raster.readBlock(x*MCULength,MCURow*MCULength,MCULength,MCULength,pixels);
+            converter.convertMCU(pixels,blocks);
+            int p=MCURow*MCULength*width+x*MCULength;
+            int q=MCURow*blockLength*chromaWidth+x*blockLength;
+            for (r=0;r<blockLength;r++){
+                store(blocks,r*blockLength,0,p+r*width);
+                store(blocks,blockSize+r*blockLength,0,p+r*width+blockLength);
+                store(blocks,2*blockSize+r*blockLength,0,p+(r+blockLength)*width);
+                store(blocks,3*blockSize+r*blockLength,0,p+(r+blockLength)*width+blockLength);
+                store(blocks,4*blockSize+r*blockLength,1,q+r*chromaWidth);
+                store(blocks,5*blockSize+r*blockLength,2,q+r*chromaWidth);
+            }
+        }
+    }
+
+    /**
+     * 取出一个MCU的各个块，布局与{@link ColorConverter#convertMCU(int[], float[])}的输出一致，灰度图像只有一个Y块
+     * @param x MCU所在列
+     * @param y MCU所在行
+     * @param blocks 输出数组，依次为Y1、Y2、Y3、Y4、Cb、Cr
+     */
+    void copyMCU(int x,int y,float[] blocks){
+        int r;
+        if(grayscale){
+            int p=y*blockLength*width+x*blockLength;
+            for (r=0;r<blockLength;r++){
+                load(0,p+r*width,blocks,r*blockLength);
+            }
+            return;
+        }
+        int p=y*MCULength*width+x*MCULength;
+        int q=y*blockLength*chromaWidth+x*blockLength;
+        for (r=0;r<blockLength;r++){
+            load(0,p+r*width,blocks,r*blockLength);
+            load(0,p+r*width+blockLength,blocks,blockSize+r*blockLength);
+            load(0,p+(r+blockLength)*width,blocks,2*blockSize+r*blockLength);
+            load(0,p+(r+blockLength)*width+blockLength,blocks,3*blockSize+r*blockLength);
+            load(1,q+r*chromaWidth,blocks,4*blockSize+r*blockLength);
+            load(2,q+r*chromaWidth,blocks,5*blockSize+r*blockLength);
+        }
+    }
+
+    /**
+     * 将块中的一行8个样本写入平面
+     * @param blocks 色彩空间转换的输出
+     * @param from 样本在blocks中的起始下标
+     * @param plane 平面序号，0为Y，1为Cb，2为Cr
+     * @param to 样本在平面中的起始下标
+     */
+    private void store(float[] blocks,int from,int plane,int to){
+        if(bytePlanes==null){
+            System.arraycopy(blocks,from,floatPlanes[plane],to,blockLength);
+            return;
+        }
+        byte[] target=bytePlanes[plane];
+        for (int i=0;i<blockLength;i++){
+            target[to+i]=(byte) blocks[from+i];
+        }
+    }
+
+    /**
+     * 从平面中读取一行8个样本写入块
+     * @param plane 平面序号，0为Y，1为Cb，2为Cr
+     * @param from 样本在平面中的起始下标
+     * @param blocks 输出数组
+     * @param to 样本在blocks中的起始下标
+     */
+    private void load(int plane,int from,float[] blocks,int to){
+        if(bytePlanes==null){
+            System.arraycopy(floatPlanes[plane],from,blocks,to,blockLength);
+            return;
+        }
+        byte[] source=bytePlanes[plane];
+        for (int i=0;i<blockLength;i++){
+            blocks[to+i]=source[from+i]&0xFF;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package moe._47saikyo;
+import java.io.IOException;
+
+/**
+ * 渐进式（SOF2）熵编码器，对整幅图像的量化系数按扫描脚本依次输出多次扫描，实现方式参照IJG jcphuff<br/>
+ * 扫描脚本与IJG jpeg_simple_progression一致：先输出降低1位精度的DC，再按频谱选择分段输出AC的高位，
+ * 最后通过逐次逼近的细化扫描补齐低位<br/>
+ * 渐进式扫描会用到标准示例表中没有的EOBRUN符号，因此每次扫描都先统计符号频率，再生成该次扫描专用的优化霍夫曼表
+ */
+class ProgressiveEncoder {
+    private static final int maxCorrectionBits=1000;    //缓存的细化位上限，超出时提前输出EOBRUN
+
+    //扫描脚本：{通道..., Ss, Se, Ah, Al}，通道序号0~2依次为Y、Cb、Cr
+    private static final int[][] scanScript={
+            {0,1,2, 0,0,0,1},
+            {0, 1,5,0,2},
+            {2, 1,63,0,1},
+            {1, 1,63,0,1},
+            {0, 6,63,0,2},
+            {0, 1,63,2,1},
+            {0,1,2, 0,0,1,0},
+            {2, 1,63,1,0},
+            {1, 1,63,1,0},
+            {0, 1,63,1,0}
+    };
+    //单通道灰度图像的扫描脚本，与IJG对单通道图像使用的脚本一致
+    private static final int[][] grayScanScript={
+            {0, 0,0,0,1},
+            {0, 1,5,0,2},
+            {0, 6,63,0,2},
+            {0, 1,63,2,1},
+            {0, 0,0,1,0},
+            {0, 1,63,1,0}
+    };
+
+    private final CoefficientBuffer buffer;             //整幅图像的量化系数
+    private final JpegIOStream      IO;                 //自定义的IO成员
+    private final BitWriter         writer;             //比特输出器
+
+    private long[][]    frequencies;                    //本次扫描的符号频率统计，非null时只统计不输出
+    private int[][][]   codes;                          //本次扫描各通道的码字表，[通道][符号]{码字，码长}
+    private final int[] lastDC=new int[3];              //DC差分编码缓存
+    private int         EOBRUN;                         //连续的全零块（频带内）数量
+    private int         correctionBitCount;             //EOBRUN期间缓存的细化位数量
+    private final byte[] correctionBits=new byte[maxCorrectionBits];    //缓存的细化位
+    private final int[] absolute=new int[CoefficientBuffer.blockSize];  //细化扫描中各系数的绝对值
+
+    /**
+     * 初始化渐进式熵编码器
+     * @param buffer 按YCbCr 4:2:0采样或单通道灰度的整幅量化系数
+     * @param IO 已写入SOF2文件头的IO类
+     */
+    public ProgressiveEncoder(CoefficientBuffer buffer,JpegIOStream IO){
+        this.buffer=buffer;
+        this.IO=IO;
+        writer=new BitWriter(IO.getOutput());
+    }
+
+    /**
+     * 按扫描脚本依次输出所有扫描，每次扫描前写入该次扫描使用的DHT段和SOS段
+     * @throws IOException IO异常
+     */
+    public void encode() throws IOException {
+        for (int[] scan:buffer.componentCount==1?grayScanScript:scanScript){
+            int componentCount=scan.length-4;
+            int[] components=new int[componentCount];
+            System.arraycopy(scan,0,components,0,componentCount);
+            int Ss=scan[componentCount];
+            int Se=scan[componentCount+1];
+            int Ah=scan[componentCount+2];
+            int Al=scan[componentCount+3];
+
+            //DC细化扫描直接输出原始比特，不需要霍夫曼表
+            boolean huffman=!(Ss==0&&Ah!=0);
+            if(huffman){
+                //第一遍：统计频率，每个通道对应的表序号为0（Y）或1（Cb、Cr）
+                frequencies=new long[2][HuffmanTable.symbolCount];
+                encodeScan(components,Ss,Se,Ah,Al);
+                HuffmanTable[] tables=new HuffmanTable[2];
+                codes=new int[3][][];
+                for (int component:components){
+                    int id=component==0?0:1;
+                    if(tables[id]==null){
+                        tables[id]=HuffmanTable.optimal((Ss==0?0x00:0x10)|id,frequencies[id]);
+                        IO.writeHuffmanTable(tables[id]);
+                    }
+                    codes[component]=tables[id].codes;
+                }
+                frequencies=null;
+            }
+            IO.writeScanHeader(components,Ss,Se,Ah,Al);
+            encodeScan(components,Ss,Se,Ah,Al);
+            writer.flush();
+        }
+    }
+
+    /**
+     * 编码一次扫描，多个通道时按MCU交错，单个通道时按该通道的实际块数逐块编码
+     * @param components 参与扫描的通道
+     * @param Ss 频谱选择起点
+     * @param Se 频谱选择终点
+     * @param Ah 上一次逐次逼近的位数
+     * @param Al 本次逐次逼近的位数
+     * @throws IOException IO异常
+     */
+    private void encodeScan(int[] components,int Ss,int Se,int Ah,int Al) throws IOException {
+        lastDC[0]=lastDC[1]=lastDC[2]=0;
+        EOBRUN=0;
+        correctionBitCount=0;
+        if(components.length>1){
+            for (int y=0;y<buffer.MCURows;y++){
+                for (int x=0;x<buffer.MCUsPerRow;x++){
+                    for (int component:components){
+                        int h=buffer.horizontalSampling[component];
+                        int v=buffer.verticalSampling[component];
+                        for (int by=0;by<v;by++){
+                            for (int bx=0;bx<h;bx++){
+                                encodeBlock(component,buffer.offset(component,y*v+by,x*h+bx),Ss,Se,Ah,Al);
+                            }
+                        }
+                    }
+                }
+            }
+        }else{
+            int component=components[0];
+            for (int y=0;y<buffer.heightInBlocks[component];y++){
+                for (int x=0;x<buffer.widthInBlocks[component];x++){
+                    encodeBlock(component,buffer.offset(component,y,x),Ss,Se,Ah,Al);
+                }
+            }
+        }
+        emitEOBRUN(components[0]);
+    }
+
+    /**
+     * 按扫描类型编码一个块
+     * @param component 通道序号
+     * @param offset 块在系数数组中的起始下标
+     * @param Ss 频谱选择起点
+     * @param Se 频谱选择终点
+     * @param Ah 上一次逐次逼近的位数
+     * @param Al 本次逐次逼近的位数
+     * @throws IOException IO异常
+     */
+    private void encodeBlock(int component,int offset,int Ss,int Se,int Ah,int Al) throws IOException {
+        short[] block=buffer.coefficients[component];
+        if(Ss==0){
+            if(Ah==0){
+                encodeDCFirst(component,block[offset]>>Al);
+            }else{
+                //DC细化：只输出第Al位
+                emitBits((block[offset]>>Al)&1,1);
+            }
+        }else if(Ah==0){
+            encodeACFirst(component,block,offset,Ss,Se,Al);
+        }else{
+            encodeACRefine(component,block,offset,Ss,Se,Al);
+        }
+    }
+
+    /**
+     * DC首次扫描，对降低精度后的DC差分进行霍夫曼编码
+     * @param component 通道序号
+     * @param DC 右移Al位后的DC系数
+     * @throws IOException IO异常
+     */
+    private void encodeDCFirst(int component,int DC) throws IOException {
+        int diff=DC-lastDC[component];
+        lastDC[component]=DC;
+        int magnitude=diff<0?-diff:diff;
+        int size=32-Integer.numberOfLeadingZeros(magnitude);
+        emitSymbol(component,size);
+        //负数取反码的低size位
+        emitBits(diff<0?diff-1:diff,size);
+    }
+
+    /**
+     * AC首次扫描，对频带内右移Al位后的系数进行游程编码，连续的全零块合并为EOBRUN
+     * @param component 通道序号
+     * @param block 通道的系数数组
+     * @param offset 块的起始下标
+     * @param Ss 频谱选择起点
+     * @param Se 频谱选择终点
+     * @param Al 本次逐次逼近的位数
+     * @throws IOException IO异常
+     */
+    private void encodeACFirst(int component,short[] block,int offset,int Ss,int Se,int Al) throws IOException {
+        int run=0;
+        for (int k=Ss;k<=Se;k++){
+            int coefficient=block[offset+k];
+            int magnitude=(coefficient<0?-coefficient:coefficient)>>Al;
+            if(magnitude==0){
+                run++;
+                continue;
+            }
+            emitEOBRUN(component);
+            while (run>15){
+                emitSymbol(component,0xF0);
+                run-=16;
+            }
+            int size=32-Integer.numberOfLeadingZeros(magnitude);
+            emitSymbol(component,(run<<4)+size);
+            emitBits(coefficient<0?~magnitude:magnitude,size);
+            run=0;
+        }
+        if(run>0){
+            EOBRUN++;
+            if(EOBRUN==0x7FFF){
+                emitEOBRUN(component);
+            }
+        }
+    }
+
+    /**
+     * AC细化扫描，对上一次扫描中已非零的系数输出第Al位作为细化位，对新变为非零（绝对值为1）的系数进行游程编码<br/>
+     * 细化位要跟在下一个霍夫曼符号之后输出，因此先缓存在{@link #correctionBits}中
+     * @param component 通道序号
+     * @param block 通道的系数数组
+     * @param offset 块的起始下标
+     * @param Ss 频谱选择起点
+     * @param Se 频谱选择终点
+     * @param Al 本次逐次逼近的位数
+     * @throws IOException IO异常
+     */
+    private void encodeACRefine(int component,short[] block,int offset,int Ss,int Se,int Al) throws IOException {
+        int k;
+        //最后一个新变为非零的系数位置
+        int EOB=0;
+        for (k=Ss;k<=Se;k++){
+            int coefficient=block[offset+k];
+            absolute[k]=(coefficient<0?-coefficient:coefficient)>>Al;
+            if(absolute[k]==1){
+                EOB=k;
+            }
+        }
+
+        int run=0;
+        //本块的细化位追加在已缓存的细化位之后
+        int refineStart=correctionBitCount;
+        int refineCount=0;
+        for (k=Ss;k<=Se;k++){
+            int magnitude=absolute[k];
+            if(magnitude==0){
+                run++;
+                continue;
+            }
+            while (run>15&&k<=EOB){
+                emitEOBRUN(component);
+                emitSymbol(component,0xF0);
+                run-=16;
+                emitCorrectionBits(refineStart,refineCount);
+                refineStart=0;
+                refineCount=0;
+            }
+            if(magnitude>1){
+                //上一次扫描中已非零，只记录细化位
+                correctionBits[refineStart+refineCount++]=(byte) (magnitude&1);
+                continue;
+            }
+            emitEOBRUN(component);
+            emitSymbol(component,(run<<4)+1);
+            emitBits(block[offset+k]<0?0:1,1);
+            emitCorrectionBits(refineStart,refineCount);
+            refineStart=0;
+            refineCount=0;
+            run=0;
+        }
+        if(run>0||refineCount>0){
+            EOBRUN++;
+            correctionBitCount+=refineCount;
+            if(EOBRUN==0x7FFF||correctionBitCount>maxCorrectionBits-63){
+                emitEOBRUN(component);
+            }
+        }
+    }
+
+    /**
+     * 输出累积的EOBRUN及其期间缓存的细化位
+     * @param component 通道序号
+     * @throws IOException IO异常
+     */
+    private void emitEOBRUN(int component) throws IOException {
+        if(EOBRUN>0){
+            int size=31-Integer.numberOfLeadingZeros(EOBRUN);
+            emitSymbol(component,size<<4);
+            emitBits(EOBRUN,size);
+            EOBRUN=0;
+            emitCorrectionBits(0,correctionBitCount);
+            correctionBitCount=0;
+        }
+    }
+
+    /**
+     * 输出一个霍夫曼符号，统计模式下只累加频率
+     * @param component 通道序号
+     * @param symbol 符号
+     * @throws IOException IO异常
+     */
+    private void emitSymbol(int component,int symbol) throws IOException {
+        if(frequencies!=null){
+            frequencies[component==0?0:1][symbol]++;
+        }else{
+            writer.writeBits(codes[component][symbol][0],codes[component][symbol][1]);
+        }
+    }
+
+    /**
+     * 输出原始比特，统计模式下忽略
+     * @param bits 比特，取低length位
+     * @param length 位数
+     * @throws IOException IO异常
+     */
+    private void emitBits(int bits,int length) throws IOException {
+        if(frequencies==null){
+            writer.writeBits(bits,length);
+        }
+    }
+
+    /**
+     * 输出缓存的细化位
+     * @param start 起始下标
+     * @param count 数量
+     * @throws IOException IO异常
+     */
+    private void emitCorrectionBits(int start,int count) throws IOException {
+        for (int i=0;i<count;i++){
+            emitBits(correctionBits[start+i],1);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package moe._47saikyo;
+
+/**
+ * 按压缩质量缩放后的亮度/色度量化表，以及AAN快速DCT使用的量化乘数表<br/>
+ * 缩放方式与IJG libjpeg的jpeg_quality_scaling一致：质量50时即为JPEG标准给出的量化表，
+ * 质量低于50时按5000/quality放大，高于50时按200-2*quality缩小，结果限制在1~255以保证baseline兼容<br/>
+ * 同一质量的量化表只计算一次，之后所有编码器共享同一份不可变的实例
+ */
+final class QuantumTable {
+    public static final int defaultQuality=50;                  //默认压缩质量
+
+    //AAN算法各频率分量的缩放系数，即sqrt(2)*cos(k*PI/16)，k=0时为1
+    private static final double[] AANScaleFactor={1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    //各质量对应的量化表缓存，下标为质量值
+    private static final QuantumTable[] cache=new QuantumTable[101];
+
+    public final int        quality;                //压缩质量1~100，自定义的量化表为0
+    private final int[][]   luminance;              //缩放后的亮度量化表
+    private final int[][]   chrominance;            //缩放后的色度量化表
+    private final float[]   AANLuminance;           //亮度量化乘数表，已将AAN缩放系数和1/8并入1/量化系数中
+    private final float[]   AANChrominance;         //色度量化乘数表
+
+    private QuantumTable(int quality){
+        this.quality=quality;
+        luminance=scale(DCT.quantum_luminance,quality);
+        chrominance=scale(DCT.quantum_chrominance,quality);
+        AANLuminance=initAANDivisors(luminance);
+        AANChrominance=initAANDivisors(chrominance);
+    }
+
+    private QuantumTable(int[][] luminance,int[][] chrominance){
+        quality=0;
+        this.luminance=copy(luminance);
+        this.chrominance=copy(chrominance);
+        AANLuminance=initAANDivisors(luminance);
+        AANChrominance=initAANDivisors(chrominance);
+    }
+
+    /**
+     * 获取指定质量的量化表
+     * @param quality 压缩质量1~100，越大图像质量越高、文件越大
+     * @return 量化表
+     */
+    public static QuantumTable forQuality(int quality){
+        if(quality<1||quality>100){
+            throw new IllegalArgumentException("quality must be between 1 and 100");
+        }
+        //各字段均为final，并发时最多重复计算一次，不需要加锁
+        QuantumTable table=cache[quality];
+        if(table==null){
+            table=new QuantumTable(quality);
+            cache[quality]=table;
+        }
+        return table;
+    }
+
+    /**
+     * 由给定的量化表创建实例，用于原样写出从JPEG文件中读取的量化表，表中的值不做限制
+     * @param luminance 8x8亮度量化表
+     * @param chrominance 8x8色度量化表
+     * @return 量化表
+     */
+    static QuantumTable of(int[][] luminance,int[][] chrominance){
+        return new QuantumTable(luminance,chrominance);
+    }
+
+    /**
+     * 获取某个通道的量化表<br/>
+     * 返回的是共享实例内部的数组，编码时每个块都会调用，因此不做复制，调用方不可修改
+     * @param channel_type 通道类型，分为luminance和chrominance
+     * @return 8x8量化表
+     */
+    int[][] get(DCT.component channel_type){
+        return channel_type==DCT.component.luminance?luminance:chrominance;
+    }
+
+    /**
+     * 获取某个通道的AAN量化乘数表，与{@link #get(DCT.component)}一样不可修改
+     * @param channel_type 通道类型，分为luminance和chrominance
+     * @return 按行平铺的64位量化乘数表
+     */
+    float[] getAAN(DCT.component channel_type){
+        return channel_type==DCT.component.luminance?AANLuminance:AANChrominance;
+    }
+
+    /**
+     * 复制一个8x8量化表，避免实例与调用方共享数组
+     * @param table 8x8量化表
+     * @return 副本
+     */
+    private static int[][] copy(int[][] table){
+        int[][] result=new int[table.length][];
+        for (int i=0;i<table.length;i++){
+            result[i]=table[i].clone();
+        }
+        return result;
+    }
+
+    /**
+     * 按IJG的质量公式缩放量化表
+     * @param base 质量50时的量化表
+     * @param quality 压缩质量
+     * @return 缩放后的8x8量化表
+     */
+    private static int[][] scale(int[][] base,int quality){
+        int scaleFactor=quality<50?5000/quality:200-quality*2;
+        int[][] table=new int[8][8];
+        for (int v=0;v<8;v++){
+            for (int u=0;u<8;u++){
+                table[v][u]=Math.min(255,Math.max(1,(base[v][u]*scaleFactor+50)/100));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 由从JPEG文件中读取的量化表生成AAN快速IDCT使用的反量化乘数表，与{@link #initAANDivisors(int[][])}互逆<br/>
+     * AAN反变换的输入需预先乘以AANScaleFactor[v]*AANScaleFactor[u]，输出为真实值的8倍，这两部分缩放都并入量化值中
+     * @param zigzag 按zigzag顺序排列的量化表
+     * @return 按zigzag顺序排列的64位反量化乘数表
+     */
+    static float[] inverseAANMultipliers(int[] zigzag){
+        float[] multipliers=new float[64];
+        for (int i=0;i<64;i++){
+            int index=EntropyEncoder.zigzagIndex[i];
+            multipliers[i]=(float) (zigzag[i]*AANScaleFactor[index/8]*AANScaleFactor[index%8]/8.0);
+        }
+        return multipliers;
+    }
+
+    /**
+     * 由量化表生成AAN快速DCT使用的量化乘数表<br/>
+     * AAN算法的输出为真实DCT系数乘以8*AANScaleFactor[v]*AANScaleFactor[u]，这部分缩放在量化时一并除去
+     * @param quantum 8x8量化表
+     * @return 按行平铺的64位量化乘数表
+     */
+    private static float[] initAANDivisors(int[][] quantum){
+        float[] divisors=new float[64];
+        for (int v=0;v<8;v++){
+            for (int u=0;u<8;u++){
+                divisors[v*8+u]=(float) (1.0/(quantum[v][u]*AANScaleFactor[v]*AANScaleFactor[u]*8.0));
+            }
+        }
+        return divisors;
+    }
+}
@@ -0,0 +1,156 @@
+package moe._47saikyo;
+import java.awt.image.*;
+
+/**
+ * 像素读取器，直接读取{@link BufferedImage}底层的{@link DataBufferByte}/{@link DataBufferInt}数组<br/>
+ * 构造时根据图像类型确定数据布局并预先计算好各通道偏移和行跨度，
+ * 对于ImageIO常见的TYPE_3BYTE_BGR、TYPE_4BYTE_ABGR、TYPE_INT_RGB、TYPE_INT_ARGB、TYPE_BYTE_GRAY直接按下标取值，
+ * 其余色彩模型回退到{@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+ */
+class RasterReader {
+    private enum layout{byteInterleaved, bytePlanarGray, intPacked, generic}
+
+    private final BufferedImage image;
+    private final layout        dataLayout;
+    private final int           width;
+    private final int           height;
+    private byte[]              byteData;           //字节型数据数组
+    private int[]               intData;            //整型数据数组
+    private int                 baseOffset;         //(0,0)像素在数据数组中的下标
+    private int                 pixelStride;        //相邻像素的下标间隔
+    private int                 scanlineStride;     //相邻行的下标间隔
+    private int                 redOffset;          //R通道相对像素起始下标的偏移
+    private int                 greenOffset;        //G通道相对像素起始下标的偏移
+    private int                 blueOffset;         //B通道相对像素起始下标的偏移
+    private int[]               rowBuffer;          //generic模式下读取一行像素的缓冲
+
+    /**
+     * 根据图像类型确定读取方式
+     * @param image 被读取的图像
+     */
+    public RasterReader(BufferedImage image){
+        this.image=image;
+        width=image.getWidth();
+        height=image.getHeight();
+        WritableRaster raster=image.getRaster();
+        SampleModel sampleModel=raster.getSampleModel();
+        DataBuffer dataBuffer=raster.getDataBuffer();
+        layout detected=layout.generic;
+
+        switch (image.getType()){
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if(sampleModel instanceof ComponentSampleModel componentModel&&dataBuffer instanceof DataBufferByte byteBuffer&&byteBuffer.getNumBanks()==1){
+                    int[] bandOffsets=componentModel.getBandOffsets();
+                    byteData=byteBuffer.getData();
+                    pixelStride=componentModel.getPixelStride();
+                    scanlineStride=componentModel.getScanlineStride();
+                    baseOffset=byteBuffer.getOffset()
+                            -raster.getSampleModelTranslateY()*scanlineStride
+                            -raster.getSampleModelTranslateX()*pixelStride;
+                    if(image.getType()==BufferedImage.TYPE_BYTE_GRAY){
+                        redOffset=greenOffset=blueOffset=bandOffsets[0];
+                        detected=layout.bytePlanarGray;
+                    }else{
+                        //band顺序为R、G、B(、A)，bandOffsets记录了各band在像素中的实际位置
+                        redOffset=bandOffsets[0];
+                        greenOffset=bandOffsets[1];
+                        blueOffset=bandOffsets[2];
+                        detected=layout.byteInterleaved;
+                    }
+                }
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if(sampleModel instanceof SinglePixelPackedSampleModel packedModel&&dataBuffer instanceof DataBufferInt intBuffer&&intBuffer.getNumBanks()==1){
+                    intData=intBuffer.getData();
+                    pixelStride=1;
+                    scanlineStride=packedModel.getScanlineStride();
+                    baseOffset=intBuffer.getOffset()
+                            -raster.getSampleModelTranslateY()*scanlineStride
+                            -raster.getSampleModelTranslateX();
+                    detected=layout.intPacked;
+                }
+                break;
+            default:
+                break;
+        }
+        dataLayout=detected;
+        if(dataLayout==layout.generic){
+            rowBuffer=new int[width];
+        }
+    }
+
+    /**
+     * 判断图像是否为灰度图像：TYPE_BYTE_GRAY直接判定为灰度，其余类型逐行检查所有像素是否满足R=G=B，遇到彩色像素立即返回
+     * @return 是否为灰度图像
+     */
+    public boolean isGrayscale(){
+        if(dataLayout==layout.bytePlanarGray){
+            return true;
+        }
+        int[] row=new int[width];
+        for (int y=0;y<height;y++){
+            readBlock(0,y,width,1,row);
+            for (int c=0;c<width;c++){
+                //R=G=B时像素等于B*0x010101
+                if(row[c]!=(row[c]&0xFF)*0x010101){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取一个矩形区域的像素，超出图像的部分复制最近的边缘像素
+     * @param x0 区域左上角的x坐标
+     * @param y0 区域左上角的y坐标
+     * @param blockWidth 区域宽度
+     * @param blockHeight 区域高度
+     * @param out 输出数组，按行存储blockWidth*blockHeight个0xRRGGBB格式的像素
+     */
+    public void readBlock(int x0,int y0,int blockWidth,int blockHeight,int[] out){
+        int r,c,y,index;
+        //超出图像的列直接复用最后一列
+        int validWidth=Math.max(0,Math.min(blockWidth,width-x0));
+        for (r=0;r<blockHeight;r++){
+            y=Math.min(y0+r,height-1);
+            index=r*blockWidth;
+            switch (dataLayout){
+                case byteInterleaved -> {
+                    int p=baseOffset+y*scanlineStride+x0*pixelStride;
+                    for (c=0;c<validWidth;c++){
+                        out[index+c]=((byteData[p+redOffset]&0xFF)<<16)|((byteData[p+greenOffset]&0xFF)<<8)|(byteData[p+blueOffset]&0xFF);
+                        p+=pixelStride;
+                    }
+                }
+                case bytePlanarGray -> {
+                    int p=baseOffset+y*scanlineStride+x0*pixelStride+redOffset;
+                    for (c=0;c<validWidth;c++){
+                        out[index+c]=(byteData[p]&0xFF)*0x010101;
+                        p+=pixelStride;
+                    }
+                }
+                case intPacked -> {
+                    int p=baseOffset+y*scanlineStride+x0;
+                    for (c=0;c<validWidth;c++){
+                        out[index+c]=intData[p+c]&0xFFFFFF;
+                    }
+                }
+                default -> {
+                    synchronized (this){
+                        image.getRGB(x0,y,validWidth,1,rowBuffer,0,width);
+                        for (c=0;c<validWidth;c++){
+                            out[index+c]=rowBuffer[c]&0xFFFFFF;
+                        }
+                    }
+                }
+            }
+            for (c=validWidth;c<blockWidth;c++){
+                out[index+c]=out[index+validWidth-1];
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package moe._47saikyo;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 分阶段的耗时与内存分配统计<br/>
+ * 通过{@link #start()}打点，{@link #lap(CompressionListener.stage)}将距上次打点的耗时和分配量累加到指定阶段并重新打点；
+ * 一个统计器只在一个线程中打点，并行编码时每个任务使用独立的统计器，完成后通过{@link #add(StageRecorder)}合并<br/>
+ * 统计结果同时交给{@link CompressionListener}和JFR事件
+ */
+final class StageRecorder {
+    private static final CompressionListener.stage[] stages=CompressionListener.stage.values();
+    private static final com.sun.management.ThreadMXBean threadMXBean=
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean&&bean.isThreadAllocatedMemoryEnabled()?bean:null;
+    //事件类型只查找一次，isEnabled随JFR录制的开关实时变化，判断时不需要创建事件实例
+    private static final EventType compressionEventType=EventType.getEventType(CompressionEvent.class);
+    private static final EventType stageEventType=EventType.getEventType(CompressionStageEvent.class);
+
+    private final long[]    nanos=new long[stages.length];          //各阶段累计耗时
+    private final long[]    allocated=new long[stages.length];      //各阶段累计分配的字节数
+    private long            markNanos;                              //上次打点的时间
+    private long            markBytes;                              //上次打点时线程累计分配的字节数
+
+    /**
+     * 判断是否需要统计，未注册回调且JFR未开启压缩事件时返回false，此时编码过程不创建统计器
+     * @param listener 注册的回调，可为null
+     * @return 是否需要统计
+     */
+    static boolean enabled(CompressionListener listener){
+        return listener!=null||compressionEventType.isEnabled()||stageEventType.isEnabled();
+    }
+
+    /**
+     * 获取当前线程累计分配的堆内存字节数
+     * @return 累计分配的字节数，JVM不支持统计时返回-1
+     */
+    static long threadAllocatedBytes(){
+        return threadMXBean==null?-1:threadMXBean.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * 打点，开始一个阶段
+     */
+    void start(){
+        markNanos=System.nanoTime();
+        markBytes=threadAllocatedBytes();
+    }
+
+    /**
+     * 结束一个阶段，并以当前时刻作为下一个阶段的起点
+     * @param stage 结束的阶段
+     */
+    void lap(CompressionListener.stage stage){
+        long now=System.nanoTime();
+        long bytes=threadAllocatedBytes();
+        nanos[stage.ordinal()]+=now-markNanos;
+        allocated[stage.ordinal()]+=bytes-markBytes;
+        markNanos=now;
+        markBytes=bytes;
+    }
+
+    /**
+     * 合并另一个统计器的结果，可由多个线程同时调用
+     * @param other 并行任务的统计器
+     */
+    synchronized void add(StageRecorder other){
+        for (int i=0;i<stages.length;i++){
+            nanos[i]+=other.nanos[i];
+            allocated[i]+=other.allocated[i];
+        }
+    }
+
+    /**
+     * 输出统计结果，耗时为0的阶段视为未经过，不输出
+     * @param listener 注册的回调，可为null
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param start 压缩开始时的{@link System#nanoTime()}
+     * @param allocatedBytes 调用线程分配的字节数
+     */
+    void report(CompressionListener listener,int width,int height,long start,long allocatedBytes){
+        long total=System.nanoTime()-start;
+        for (int i=0;i<stages.length;i++){
+            if(nanos[i]==0){
+                continue;
+            }
+            long bytes=threadMXBean==null?-1:allocated[i];
+            if(listener!=null){
+                listener.stageCompleted(stages[i],nanos[i],bytes);
+            }
+            if(stageEventType.isEnabled()){
+                CompressionStageEvent event=new CompressionStageEvent();
+                event.stage=stages[i].name();
+                event.stageNanos=nanos[i];
+                event.allocatedBytes=bytes;
+                event.commit();
+            }
+        }
+        if(listener!=null){
+            listener.imageCompleted(width,height,total,allocatedBytes);
+        }
+        if(compressionEventType.isEnabled()){
+            CompressionEvent event=new CompressionEvent();
+            event.width=width;
+            event.height=height;
+            event.imageNanos=total;
+            event.allocatedBytes=allocatedBytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * 单张图像压缩完成的JFR事件
+     */
+    @Name("moe._47saikyo.Compression")
+    @Label("JPEG Compression")
+    @Category("JPEG Compressor")
+    static final class CompressionEvent extends Event {
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Compression Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long imageNanos;
+        @Label("Allocated")
+        @Description("Heap bytes allocated by the compressing thread, -1 if unsupported")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    /**
+     * 单张图像某个压缩阶段的JFR事件，耗时为该阶段所有MCU的累计
+     */
+    @Name("moe._47saikyo.CompressionStage")
+    @Label("JPEG Compression Stage")
+    @Category("JPEG Compressor")
+    static final class CompressionStageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Stage Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long stageNanos;
+        @Label("Allocated")
+        @Description("Heap bytes allocated during the stage, -1 if unsupported")
+        @DataAmount
+        long allocatedBytes;
+    }
+}
@@ -0,0 +1,94 @@
+package moe._47saikyo;
+
+/**
+ * 查表式定点色彩空间转换，参照libjpeg的jccolor实现<br/>
+ * 各系数乘以2^16后预先计算出0~255的乘积表，每个像素只需查表、加法和移位；
+ * 色度抽样按jcsample的h2v2方式对2x2像素取整数平均，舍入偏置在1、2之间交替，避免整体偏移<br/>
+ * {@link VectorSupport#enabled}时改由{@link VectorKernels#convertMCU}完成，结果与标量实现一致
+ */
+class TableColorConverter implements ColorConverter {
+    private static final int MCULength=16;
+    private static final int blockLength=8;
+    private static final int blockSize=64;
+
+    private static final int SCALEBITS=16;
+    private static final int CBCR_OFFSET=128<<SCALEBITS;
+    private static final int ONE_HALF=1<<(SCALEBITS-1);
+
+    //各查找表在rgbTable中的起始位置
+    private static final int R_Y_OFF=0;
+    private static final int G_Y_OFF=256;
+    private static final int B_Y_OFF=2*256;
+    private static final int R_CB_OFF=3*256;
+    private static final int G_CB_OFF=4*256;
+    private static final int B_CB_OFF=5*256;
+    private static final int R_CR_OFF=B_CB_OFF;     //B_CB和R_CR的系数均为0.5，共用一张表
+    private static final int G_CR_OFF=6*256;
+    private static final int B_CR_OFF=7*256;
+
+    private static final int[] rgbTable=initTable();
+
+    /**
+     * 生成定点乘积表，Y表的舍入量并入B_Y，Cb/Cr表的偏移量和舍入量并入B_CB(R_CR)
+     * @return 8*256的查找表
+     */
+    private static int[] initTable(){
+        int[] table=new int[8*256];
+        for (int i=0;i<256;i++){
+            table[R_Y_OFF+i]=FIX(0.29900)*i;
+            table[G_Y_OFF+i]=FIX(0.58700)*i;
+            table[B_Y_OFF+i]=FIX(0.11400)*i+ONE_HALF;
+            table[R_CB_OFF+i]=-FIX(0.16874)*i;
+            table[G_CB_OFF+i]=-FIX(0.33126)*i;
+            //这里用ONE_HALF-1而不是ONE_HALF，保证Cb/Cr的最大值不会超过255
+            table[B_CB_OFF+i]=FIX(0.50000)*i+CBCR_OFFSET+ONE_HALF-1;
+            table[G_CR_OFF+i]=-FIX(0.41869)*i;
+            table[B_CR_OFF+i]=-FIX(0.08131)*i;
+        }
+        return table;
+    }
+
+    /**
+     * 将系数转换为16位小数的定点数
+     * @param x 系数
+     * @return 定点数
+     */
+    private static int FIX(double x){
+        return (int) (x*(1L<<SCALEBITS)+0.5);
+    }
+
+    @Override
+    public void convertMCU(int[] pixels,float[] blocks){
+        if(VectorSupport.enabled){
+            VectorKernels.convertMCU(pixels,blocks);
+            return;
+        }
+        int r,c,i,pr,pc,pixel,R,G,B,bias;
+        int cbSum,crSum;
+        //每次处理2x2个像素，Y逐个写入，Cb/Cr累加后取平均
+        for (r=0;r<MCULength;r+=2){
+            //jcsample的舍入偏置，按列交替使用1和2
+            bias=1;
+            for (c=0;c<MCULength;c+=2){
+                cbSum=0;
+                crSum=0;
+                for (i=0;i<4;i++){
+                    pr=r+(i>>1);
+                    pc=c+(i&1);
+                    pixel=pixels[pr*MCULength+pc];
+                    R=(pixel>>16)&0xff;
+                    G=(pixel>>8)&0xff;
+                    B=pixel&0xff;
+                    //所在的Y块序号为(pr/8)*2+(pc/8)
+                    blocks[((pr/blockLength)*2+pc/blockLength)*blockSize+(pr%blockLength)*blockLength+pc%blockLength]=
+                            (rgbTable[R_Y_OFF+R]+rgbTable[G_Y_OFF+G]+rgbTable[B_Y_OFF+B])>>SCALEBITS;
+                    cbSum+=(rgbTable[R_CB_OFF+R]+rgbTable[G_CB_OFF+G]+rgbTable[B_CB_OFF+B])>>SCALEBITS;
+                    crSum+=(rgbTable[R_CR_OFF+R]+rgbTable[G_CR_OFF+G]+rgbTable[B_CR_OFF+B])>>SCALEBITS;
+                }
+                blocks[4*blockSize+(r/2)*blockLength+c/2]=(cbSum+bias)>>2;
+                blocks[5*blockSize+(r/2)*blockLength+c/2]=(crSum+bias)>>2;
+                bias^=3;
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package moe._47saikyo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 目标大小编码器，缓存整幅图像未量化的频域系数，按不同的压缩质量反复量化并试算文件大小，求出不超过字节预算的最高质量<br/>
+ * 色彩空间转换和DCT只在填充系数时执行一次，之后每次试算只进行量化和只计数不输出的熵编码，
+ * 试算结果包含文件头、重启标记和EOI，与按该质量正常压缩得到的文件大小完全相同<br/>
+ * 系数以float缓存，每个像素约占6字节（灰度图像为4字节）
+ */
+final class TargetSizeEncoder {
+    private static final int blockSize=64;          //块中的系数数量
+    private static final int maxQuality=100;        //最高压缩质量
+    private static final int minQuality=1;          //最低压缩质量
+    private static final int sampleStride=8;        //估计质量时抽样的MCU行间隔
+
+    final float[]       coefficients;               //整幅图像的频域系数，按MCU顺序存放，每个MCU依次存放其各个块
+    private final boolean grayscale;                //是否为单通道灰度
+    private final int   blocksPerMCU;               //每个MCU的块数量
+    private final int   MCUsPerRow;                 //每行的MCU数量
+    private final int   MCURows;                    //MCU行数
+    private final int   rowsPerInterval;            //每个重启间隔的MCU行数，不使用重启间隔时为全部MCU行
+    private final DCT.engine engine;                //填充系数时使用的DCT实现，量化方式与之对应
+    private final boolean parallel;                 //是否按重启间隔并行试算和编码
+
+    /**
+     * 初始化目标大小编码器
+     * @param grayscale 是否为单通道灰度
+     * @param MCUsPerRow 每行的MCU数量
+     * @param MCURows MCU行数
+     * @param restartRows 每个重启间隔包含的MCU行数，0为不使用重启间隔
+     * @param engine 填充系数时使用的DCT实现
+     * @param parallel 是否按重启间隔并行试算和编码
+     * @throws IllegalArgumentException 系数数量超过int范围，无法缓存在一个数组中
+     */
+    TargetSizeEncoder(boolean grayscale,int MCUsPerRow,int MCURows,int restartRows,DCT.engine engine,boolean parallel){
+        this.grayscale=grayscale;
+        this.MCUsPerRow=MCUsPerRow;
+        this.MCURows=MCURows;
+        this.engine=engine;
+        this.parallel=parallel&&restartRows>0;
+        blocksPerMCU=grayscale?1:6;
+        rowsPerInterval=restartRows>0?restartRows:MCURows;
+        try {
+            coefficients=new float[Math.multiplyExact(Math.multiplyExact(MCURows,MCUsPerRow),blocksPerMCU*blockSize)];
+        }catch (ArithmeticException e){
+            throw new IllegalArgumentException("image too large for target size encoding: "+MCUsPerRow+"x"+MCURows+" MCUs exceed the coefficient buffer limit");
+        }
+    }
+
+    /**
+     * 获取一行MCU在{@link #coefficients}中的起始下标
+     * @param MCURow MCU行号
+     * @return 起始下标
+     */
+    int rowOffset(int MCURow){
+        return MCURow*MCUsPerRow*blocksPerMCU*blockSize;
+    }
+
+    /**
+     * 查找文件大小不超过targetSize的最高质量，文件大小随质量单调增加时结果为最优<br/>
+     * 先在抽样的MCU行上二分查找得到估计的质量，再从估计值出发以1、2、4...的步长试算完整的文件大小，
+     * 确定相邻的满足/超出预算的区间后在区间内二分，通常只需2~3次完整试算<br/>
+     * 即使质量为1也超出预算时返回1；查找过程中IO的量化表和霍夫曼表会被修改，调用方需按返回的质量重新设置
+     * @param targetSize 目标文件大小（字节）
+     * @param IO 用于计算文件头长度的IO类
+     * @param tables 使用的霍夫曼表，null为每个质量各自使用优化的霍夫曼表
+     * @return 压缩质量
+     * @throws IOException IO异常
+     */
+    int search(long targetSize,JpegIOStream IO,HuffmanTable[] tables) throws IOException {
+        int estimate=estimateQuality(targetSize,IO,tables);
+        //low为已知满足预算的最高质量，high为已知超出预算的最低质量
+        int low=minQuality-1,high=maxQuality+1;
+        if(length(estimate,IO,tables)<=targetSize){
+            low=estimate;
+            for (int step=1;low<maxQuality;step*=2){
+                int quality=Math.min(low+step,maxQuality);
+                if(length(quality,IO,tables)<=targetSize){
+                    low=quality;
+                }else{
+                    high=quality;
+                    break;
+                }
+            }
+            if(low==maxQuality){
+                return maxQuality;
+            }
+        }else{
+            high=estimate;
+            for (int step=1;high>minQuality;step*=2){
+                int quality=Math.max(high-step,minQuality);
+                if(length(quality,IO,tables)<=targetSize){
+                    low=quality;
+                    break;
+                }
+                high=quality;
+            }
+            if(low<minQuality){
+                return minQuality;
+            }
+        }
+        while (high-low>1){
+            int mid=(low+high)>>>1;
+            if(length(mid,IO,tables)<=targetSize){
+                low=mid;
+            }else{
+                high=mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 每隔{@link #sampleStride}行抽取一行MCU试算熵编码长度并按比例放大，在抽样估计的文件大小上二分查找质量
+     * @param targetSize 目标文件大小（字节）
+     * @param IO 用于计算文件头长度的IO类
+     * @param tables 使用的霍夫曼表，null为按抽样的符号频率生成优化的霍夫曼表
+     * @return 估计的压缩质量
+     * @throws IOException IO异常
+     */
+    private int estimateQuality(long targetSize,JpegIOStream IO,HuffmanTable[] tables) throws IOException {
+        int low=minQuality,high=maxQuality;
+        while (low<high){
+            int mid=(low+high+1)>>>1;
+            QuantumTable table=QuantumTable.forQuality(mid);
+            DCT dct=new DCT(engine,table);
+            HuffmanTable[] midTables=tables;
+            if(midTables==null){
+                long[][] frequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+                EntropyEncoder counter=new EntropyEncoder(frequencies);
+                for (int y=sampleStart();y<MCURows;y+=sampleStride){
+                    counter.reset();
+                    encodeRows(y,y+1,dct,counter);
+                }
+                midTables=HuffmanTable.optimalTables(frequencies);
+            }
+            long sampled=0;
+            int rows=0;
+            for (int y=sampleStart();y<MCURows;y+=sampleStride){
+                sampled+=countRows(y,y+1,dct,midTables);
+                rows++;
+            }
+            IO.setQuantumTable(table);
+            IO.setHuffmanTables(midTables);
+            if(IO.headerLength()+sampled*MCURows/rows+2<=targetSize){
+                low=mid;
+            }else{
+                high=mid-1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 获取抽样的首行，使抽样行位于各个抽样区间的中部
+     * @return 首个抽样的MCU行号
+     */
+    private int sampleStart(){
+        return Math.min(sampleStride/2,MCURows-1);
+    }
+
+    /**
+     * 试算按指定质量压缩的文件大小
+     * @param quality 压缩质量
+     * @param IO 用于计算文件头长度的IO类
+     * @param tables 使用的霍夫曼表，null为使用该质量下优化的霍夫曼表
+     * @return 文件大小（字节）
+     * @throws IOException IO异常
+     */
+    private long length(int quality,JpegIOStream IO,HuffmanTable[] tables) throws IOException {
+        QuantumTable table=QuantumTable.forQuality(quality);
+        if(tables==null){
+            tables=optimalTables(table);
+        }
+        IO.setQuantumTable(table);
+        IO.setHuffmanTables(tables);
+        //EOI为2字节
+        return IO.headerLength()+entropyLength(table,tables)+2;
+    }
+
+    /**
+     * 统计按指定量化表量化后的符号频率并生成优化的霍夫曼表
+     * @param table 量化表
+     * @return 优化的霍夫曼表
+     * @throws IOException IO异常
+     */
+    HuffmanTable[] optimalTables(QuantumTable table) throws IOException {
+        DCT dct=new DCT(engine,table);
+        int intervals=intervalCount();
+        long[][] frequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+        int i;
+        if(parallel){
+            List<ForkJoinTask<long[][]>> tasks=new ArrayList<>(intervals);
+            for (i=0;i<intervals;i++){
+                int interval=i;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    long[][] intervalFrequencies=new long[HuffmanTable.tableCount][HuffmanTable.symbolCount];
+                    encodeInterval(interval,dct,new EntropyEncoder(intervalFrequencies));
+                    return intervalFrequencies;
+                }));
+            }
+            for (ForkJoinTask<long[][]> task:tasks){
+                long[][] intervalFrequencies=task.join();
+                for (int t=0;t<HuffmanTable.tableCount;t++){
+                    for (int s=0;s<HuffmanTable.symbolCount;s++){
+                        frequencies[t][s]+=intervalFrequencies[t][s];
+                    }
+                }
+            }
+        }else{
+            for (i=0;i<intervals;i++){
+                encodeInterval(i,dct,new EntropyEncoder(frequencies));
+            }
+        }
+        return HuffmanTable.optimalTables(frequencies);
+    }
+
+    /**
+     * 试算熵编码数据的长度，包括字节填充、每个重启间隔末尾的补齐和重启标记
+     * @param table 量化表
+     * @param tables 霍夫曼表
+     * @return 熵编码数据的字节数
+     * @throws IOException IO异常
+     */
+    private long entropyLength(QuantumTable table,HuffmanTable[] tables) throws IOException {
+        DCT dct=new DCT(engine,table);
+        int intervals=intervalCount();
+        //每两个重启间隔之间有一个2字节的重启标记
+        long length=2L*(intervals-1);
+        int i;
+        if(parallel){
+            List<ForkJoinTask<Long>> tasks=new ArrayList<>(intervals);
+            for (i=0;i<intervals;i++){
+                int interval=i;
+                tasks.add(ForkJoinPool.commonPool().submit(()->countInterval(interval,dct,tables)));
+            }
+            for (ForkJoinTask<Long> task:tasks){
+                length+=task.join();
+            }
+        }else{
+            for (i=0;i<intervals;i++){
+                length+=countInterval(i,dct,tables);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 试算一个重启间隔的熵编码数据长度
+     * @param interval 重启间隔序号
+     * @param dct 按目标量化表量化的DCT处理器
+     * @param tables 霍夫曼表
+     * @return 补齐至整字节后的字节数
+     * @throws IOException IO异常
+     */
+    private long countInterval(int interval,DCT dct,HuffmanTable[] tables) throws IOException {
+        return countRows(interval*rowsPerInterval,Math.min((interval+1)*rowsPerInterval,MCURows),dct,tables);
+    }
+
+    /**
+     * 试算若干行MCU作为一段独立的熵编码数据时的长度
+     * @param yStart 起始MCU行（包含）
+     * @param yEnd 结束MCU行（不包含）
+     * @param dct 按目标量化表量化的DCT处理器
+     * @param tables 霍夫曼表
+     * @return 补齐至整字节后的字节数
+     * @throws IOException IO异常
+     */
+    private long countRows(int yStart,int yEnd,DCT dct,HuffmanTable[] tables) throws IOException {
+        ByteCounter counter=new ByteCounter();
+        EntropyEncoder entropy=new EntropyEncoder(counter);
+        entropy.setHuffmanTables(tables);
+        encodeRows(yStart,yEnd,dct,entropy);
+        entropy.flushByte();
+        return counter.count;
+    }
+
+    /**
+     * 按指定的量化表和霍夫曼表输出熵编码数据，各重启间隔之间写入重启标记，结果与正常压缩时写出的数据一致
+     * @param table 量化表，需与文件头中的DQT段一致
+     * @param tables 霍夫曼表，需与文件头中的DHT段一致
+     * @param IO 已写入文件头的IO类
+     * @throws IOException IO异常
+     */
+    void write(QuantumTable table,HuffmanTable[] tables,JpegIOStream IO) throws IOException {
+        DCT dct=new DCT(engine,table);
+        int intervals=intervalCount();
+        List<ForkJoinTask<byte[]>> tasks=new ArrayList<>(intervals);
+        int i;
+        if(parallel){
+            for (i=0;i<intervals;i++){
+                int interval=i;
+                tasks.add(ForkJoinPool.commonPool().submit(()->{
+                    ByteArrayOutputStream segment=new ByteArrayOutputStream();
+                    EntropyEncoder entropy=new EntropyEncoder(segment);
+                    entropy.setHuffmanTables(tables);
+                    encodeInterval(interval,dct,entropy);
+                    entropy.flushByte();
+                    return segment.toByteArray();
+                }));
+            }
+        }
+        EntropyEncoder entropy=new EntropyEncoder(IO.getOutput());
+        entropy.setHuffmanTables(tables);
+        for (i=0;i<intervals;i++){
+            if(i>0){
+                IO.writeRestartMarker(i-1);
+            }
+            if(parallel){
+                IO.getOutput().write(tasks.get(i).join());
+            }else{
+                entropy.reset();
+                encodeInterval(i,dct,entropy);
+                entropy.flushByte();
+            }
+        }
+    }
+
+    /**
+     * 量化并熵编码一个重启间隔内的所有块，DC差分从0开始
+     * @param interval 重启间隔序号
+     * @param dct 按目标量化表量化的DCT处理器
+     * @param entropy 熵编码处理器，可以只统计符号频率
+     * @throws IOException IO异常
+     */
+    private void encodeInterval(int interval,DCT dct,EntropyEncoder entropy) throws IOException {
+        encodeRows(interval*rowsPerInterval,Math.min((interval+1)*rowsPerInterval,MCURows),dct,entropy);
+    }
+
+    /**
+     * 量化并熵编码若干行MCU中的所有块
+     * @param yStart 起始MCU行（包含）
+     * @param yEnd 结束MCU行（不包含）
+     * @param dct 按目标量化表量化的DCT处理器
+     * @param entropy 熵编码处理器，可以只统计符号频率
+     * @throws IOException IO异常
+     */
+    private void encodeRows(int yStart,int yEnd,DCT dct,EntropyEncoder entropy) throws IOException {
+        int[] quantized=new int[blockSize];
+        int end=rowOffset(yEnd)/blockSize;
+        for (int block=rowOffset(yStart)/blockSize;block<end;block++){
+            int index=block%blocksPerMCU;
+            if(grayscale||index<4){
+                dct.quantize(coefficients,block*blockSize,DCT.component.luminance,quantized);
+                entropy.encodeBlock(quantized,EntropyEncoder.component.Y);
+            }else{
+                dct.quantize(coefficients,block*blockSize,DCT.component.chrominance,quantized);
+                entropy.encodeBlock(quantized,index==4?EntropyEncoder.component.Cb:EntropyEncoder.component.Cr);
+            }
+        }
+    }
+
+    /**
+     * 获取重启间隔数量，不使用重启间隔时整幅图像为一个间隔
+     * @return 重启间隔数量
+     */
+    private int intervalCount(){
+        return (MCURows+rowsPerInterval-1)/rowsPerInterval;
+    }
+
+    /**
+     * 只计数不保存数据的输出流
+     */
+    private static final class ByteCounter extends OutputStream {
+        long count;     //已写入的字节数
+
+        @Override
+        public void write(int b){
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len){
+            count+=len;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package moe._47saikyo;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 基于Vector API（jdk.incubator.vector）的色彩空间转换、AAN正变换和量化，每个8路向量对应块中的一行或一列<br/>
+ * 各向量通道上的运算顺序与{@link TableColorConverter}和{@link DCT}中的标量实现完全相同，且不使用FMA，因此输出逐位一致<br/>
+ * 所有float向量统一使用256位形状：同一向量类型混用多种形状会使C2的类型profile变为多态，向量操作无法内联为指令而退化为分配对象<br/>
+ * 只能在{@link VectorSupport#enabled}为true时调用，否则加载本类会因模块缺失而失败
+ */
+final class VectorKernels {
+    private static final VectorSpecies<Float>   F8=FloatVector.SPECIES_256;
+    private static final VectorSpecies<Integer> I8=IntVector.SPECIES_256;
+
+    private static final int MCULength=16;
+    private static final int blockLength=8;
+    private static final int blockSize=64;
+
+    //与TableColorConverter一致的16位小数定点系数
+    private static final int SCALEBITS=16;
+    private static final int ONE_HALF=1<<(SCALEBITS-1);
+    private static final int CBCR_OFFSET=128<<SCALEBITS;
+    private static final int FIX_R_Y=FIX(0.29900);
+    private static final int FIX_G_Y=FIX(0.58700);
+    private static final int FIX_B_Y=FIX(0.11400);
+    private static final int FIX_R_CB=FIX(0.16874);
+    private static final int FIX_G_CB=FIX(0.33126);
+    private static final int FIX_HALF=FIX(0.50000);
+    private static final int FIX_G_CR=FIX(0.41869);
+    private static final int FIX_B_CR=FIX(0.08131);
+
+    private static final VectorMask<Float> lowHalf=VectorMask.fromLong(F8,0x0F);   //8路float向量的低4个通道
+    private static final LongVector chromaBias=LongVector.fromArray(LongVector.SPECIES_256,new long[]{1,2,1,2},0);   //jcsample的舍入偏置
+
+    private VectorKernels(){
+    }
+
+    /**
+     * 判断CPU是否支持8路float向量，不支持时Vector API会退化为更慢的Java实现
+     * @return 是否支持
+     */
+    static boolean supported(){
+        return FloatVector.SPECIES_PREFERRED.length()>=8;
+    }
+
+    private static int FIX(double x){
+        return (int) (x*(1L<<SCALEBITS)+0.5);
+    }
+
+    /**
+     * 与{@link TableColorConverter#convertMCU(int[], float[])}相同的定点转换和2x2平均色度抽样<br/>
+     * 查表改为等价的定点乘法；每次处理上下两行各8个像素，Y直接写入，Cb/Cr先纵向相加，
+     * 再将相邻两个int通道重新解释为一个long通道（低32位为偶数列、高32位为奇数列）完成横向相加，避免跨通道重排，
+     * 得到的4个色度值转换为float后只写入低4个通道<br/>
+     * 向量只在循环体内使用且不经过方法参数和返回值传递，保证C2能够消除向量对象的分配
+     * @param pixels 按行存储的256个0xRRGGBB格式像素
+     * @param blocks 长度为6*64的输出数组，依次为Y1、Y2、Y3、Y4、Cb、Cr
+     */
+    static void convertMCU(int[] pixels,float[] blocks){
+        for (int r=0;r<MCULength;r+=2){
+            for (int pc=0;pc<MCULength;pc+=blockLength){
+                IntVector top=IntVector.fromArray(I8,pixels,r*MCULength+pc);
+                IntVector bottom=IntVector.fromArray(I8,pixels,(r+1)*MCULength+pc);
+                IntVector R0=top.lanewise(VectorOperators.ASHR,16).and(0xff);
+                IntVector G0=top.lanewise(VectorOperators.ASHR,8).and(0xff);
+                IntVector B0=top.and(0xff);
+                IntVector R1=bottom.lanewise(VectorOperators.ASHR,16).and(0xff);
+                IntVector G1=bottom.lanewise(VectorOperators.ASHR,8).and(0xff);
+                IntVector B1=bottom.and(0xff);
+
+                //所在的Y块序号为(r/8)*2+(c/8)
+                int YOffset=((r/blockLength)*2+pc/blockLength)*blockSize+(r%blockLength)*blockLength;
+                ((FloatVector) R0.mul(FIX_R_Y).add(G0.mul(FIX_G_Y)).add(B0.mul(FIX_B_Y).add(ONE_HALF))
+                        .lanewise(VectorOperators.ASHR,SCALEBITS).convert(VectorOperators.I2F,0)).intoArray(blocks,YOffset);
+                ((FloatVector) R1.mul(FIX_R_Y).add(G1.mul(FIX_G_Y)).add(B1.mul(FIX_B_Y).add(ONE_HALF))
+                        .lanewise(VectorOperators.ASHR,SCALEBITS).convert(VectorOperators.I2F,0)).intoArray(blocks,YOffset+blockLength);
+
+                IntVector Cb=R0.mul(-FIX_R_CB).add(G0.mul(-FIX_G_CB)).add(B0.mul(FIX_HALF)).add(CBCR_OFFSET+ONE_HALF-1).lanewise(VectorOperators.ASHR,SCALEBITS)
+                        .add(R1.mul(-FIX_R_CB).add(G1.mul(-FIX_G_CB)).add(B1.mul(FIX_HALF)).add(CBCR_OFFSET+ONE_HALF-1).lanewise(VectorOperators.ASHR,SCALEBITS));
+                IntVector Cr=R0.mul(FIX_HALF).add(G0.mul(-FIX_G_CR)).add(B0.mul(-FIX_B_CR)).add(CBCR_OFFSET+ONE_HALF-1).lanewise(VectorOperators.ASHR,SCALEBITS)
+                        .add(R1.mul(FIX_HALF).add(G1.mul(-FIX_G_CR)).add(B1.mul(-FIX_B_CR)).add(CBCR_OFFSET+ONE_HALF-1).lanewise(VectorOperators.ASHR,SCALEBITS));
+                LongVector CbPairs=Cb.reinterpretAsLongs();
+                LongVector CrPairs=Cr.reinterpretAsLongs();
+
+                int chromaOffset=(r/2)*blockLength+pc/2;
+                ((FloatVector) CbPairs.and(0xFFFFFFFFL).add(CbPairs.lanewise(VectorOperators.LSHR,32)).add(chromaBias)
+                        .lanewise(VectorOperators.ASHR,2).convert(VectorOperators.L2F,0)).intoArray(blocks,4*blockSize+chromaOffset,lowHalf);
+                ((FloatVector) CrPairs.and(0xFFFFFFFFL).add(CrPairs.lanewise(VectorOperators.LSHR,32)).add(chromaBias)
+                        .lanewise(VectorOperators.ASHR,2).convert(VectorOperators.L2F,0)).intoArray(blocks,5*blockSize+chromaOffset,lowHalf);
+            }
+        }
+    }
+
+    /**
+     * 与{@link DCT#transform(float[], int, DCT.component, int[])}的fast模式相同的AAN正变换和量化<br/>
+     * 第一遍将样本转置存入transposed，按行读入后每个向量对应原块中的一列、通道对应一行，逐通道完成行变换，结果按行写入workspace；
+     * 第二遍将workspace转置回transposed，每个向量对应一行、通道对应一列，逐通道完成列变换，
+     * 最后乘以量化乘数并用{@link Math#round(float)}取整，取整使用标量循环，交给C2自动向量化<br/>
+     * 转置使用普通的数组读写而不是gather：部分JDK版本的C2中，gather读取不能保证排在同一数组之前的向量写入之后
+     * @param samples 平铺存储的YCbCr通道数据，范围0~255
+     * @param offset 该块在samples中的起始下标
+     * @param divisors AAN量化乘数表
+     * @param workspace 64位的工作区
+     * @param transposed 64位的转置工作区
+     * @param out 按行平铺的64位量化结果
+     */
+    static void forwardDCT(float[] samples,int offset,float[] divisors,float[] workspace,float[] transposed,int[] out){
+        forwardAAN(samples,offset,workspace,transposed);
+        for (int i=0;i<blockSize;i++){
+            out[i]=Math.round(workspace[i]*divisors[i]);
+        }
+    }
+
+    /**
+     * {@link #forwardDCT}中量化之前的部分，带AAN缩放的频域系数按行平铺留在workspace中
+     * @param samples 平铺存储的YCbCr通道数据，范围0~255
+     * @param offset 该块在samples中的起始下标
+     * @param workspace 64位的工作区，返回时为频域系数
+     * @param transposed 64位的转置工作区
+     */
+    static void forwardAAN(float[] samples,int offset,float[] workspace,float[] transposed){
+        int r,k;
+        for (r=0;r<blockLength;r++){
+            for (k=0;k<blockLength;k++){
+                transposed[k*blockLength+r]=samples[offset+r*blockLength+k]-128;
+            }
+        }
+        AAN(transposed,workspace);
+        for (r=0;r<blockLength;r++){
+            for (k=0;k<blockLength;k++){
+                transposed[r*blockLength+k]=workspace[k*blockLength+r];
+            }
+        }
+        AAN(transposed,workspace);
+    }
+
+    /**
+     * 对source的8行逐通道进行一维AAN变换，第k个输出写入target的第k行，运算与{@link DCT}中标量实现的单行变换相同
+     * @param source 按行平铺的8个输入向量
+     * @param target 按行平铺的8个输出向量
+     */
+    private static void AAN(float[] source,float[] target){
+        FloatVector d0=FloatVector.fromArray(F8,source,0);
+        FloatVector d1=FloatVector.fromArray(F8,source,blockLength);
+        FloatVector d2=FloatVector.fromArray(F8,source,2*blockLength);
+        FloatVector d3=FloatVector.fromArray(F8,source,3*blockLength);
+        FloatVector d4=FloatVector.fromArray(F8,source,4*blockLength);
+        FloatVector d5=FloatVector.fromArray(F8,source,5*blockLength);
+        FloatVector d6=FloatVector.fromArray(F8,source,6*blockLength);
+        FloatVector d7=FloatVector.fromArray(F8,source,7*blockLength);
+
+        FloatVector tmp0=d0.add(d7);
+        FloatVector tmp7=d0.sub(d7);
+        FloatVector tmp1=d1.add(d6);
+        FloatVector tmp6=d1.sub(d6);
+        FloatVector tmp2=d2.add(d5);
+        FloatVector tmp5=d2.sub(d5);
+        FloatVector tmp3=d3.add(d4);
+        FloatVector tmp4=d3.sub(d4);
+
+        //偶数部分
+        FloatVector tmp10=tmp0.add(tmp3);
+        FloatVector tmp13=tmp0.sub(tmp3);
+        FloatVector tmp11=tmp1.add(tmp2);
+        FloatVector tmp12=tmp1.sub(tmp2);
+
+        tmp10.add(tmp11).intoArray(target,0);
+        tmp10.sub(tmp11).intoArray(target,4*blockLength);
+
+        FloatVector z1=tmp12.add(tmp13).mul(0.707106781f);
+        tmp13.add(z1).intoArray(target,2*blockLength);
+        tmp13.sub(z1).intoArray(target,6*blockLength);
+
+        //奇数部分
+        tmp10=tmp4.add(tmp5);
+        tmp11=tmp5.add(tmp6);
+        tmp12=tmp6.add(tmp7);
+
+        FloatVector z5=tmp10.sub(tmp12).mul(0.382683433f);
+        FloatVector z2=tmp10.mul(0.541196100f).add(z5);
+        FloatVector z4=tmp12.mul(1.306562965f).add(z5);
+        FloatVector z3=tmp11.mul(0.707106781f);
+
+        FloatVector z11=tmp7.add(z3);
+        FloatVector z13=tmp7.sub(z3);
+
+        z13.add(z2).intoArray(target,5*blockLength);
+        z13.sub(z2).intoArray(target,3*blockLength);
+        z11.add(z4).intoArray(target,blockLength);
+        z11.sub(z4).intoArray(target,7*blockLength);
+    }
+}
@@ -0,0 +1,32 @@
+package moe._47saikyo;
+
+/**
+ * 判断是否使用{@link VectorKernels}中基于Vector API的向量化实现<br/>
+ * 需要同时满足：启动参数中加入了--add-modules jdk.incubator.vector，CPU支持8路float向量，
+ * 且系统属性moe._47saikyo.vector不为false；否则使用原有的标量实现，两者输出完全一致<br/>
+ * 本类不引用jdk.incubator.vector中的类型，模块缺失时也可以正常加载
+ */
+final class VectorSupport {
+    static final boolean enabled=detect();
+
+    private VectorSupport(){
+    }
+
+    /**
+     * 检测向量化实现是否可用
+     * @return 是否可用
+     */
+    private static boolean detect(){
+        if(!Boolean.parseBoolean(System.getProperty("moe._47saikyo.vector","true"))){
+            return false;
+        }
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()){
+            return false;
+        }
+        try {
+            return VectorKernels.supported();
+        }catch (LinkageError e){
+            return false;
+        }
+    }
+}
@@ -1,15 +1,45 @@
 package moe._47saikyo.test;
+import moe._47saikyo.BatchCompressor;
+import moe._47saikyo.BlockStatistics;
+import moe._47saikyo.ColorConverter;
+import moe._47saikyo.CompressionListener;
+import moe._47saikyo.EncoderSession;
 import moe._47saikyo.JpegCompressor;
+import moe._47saikyo.JpegDecoder;
+import moe._47saikyo.JpegSink;
+import moe._47saikyo.JpegStreamCompressor;
+import moe._47saikyo.JpegTranscoder;
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Random;
 
 public class JpegCompressorTest {
     private static JpegCompressor comp;
@@ -45,51 +75,876 @@ public class JpegCompressorTest {
     }
 
     @Test
-    public void downSamplingTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException, NoSuchFieldException {
-        Method getMCUBlock = JpegCompressor.class.getDeclaredMethod("getMCUBlock", int.class, int.class);
-        getMCUBlock.setAccessible(true);
-        float[][][] Array;
+    public void fastDCTTest() throws IOException {
+        //AAN快速DCT与按定义式计算的参考实现应得到完全一致的量化结果，两者的速度对比见StageBenchmark
+        ByteArrayOutputStream fastOutput=new ByteArrayOutputStream();
+        ByteArrayOutputStream referenceOutput=new ByteArrayOutputStream();
+        JpegCompressor fastComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),fastOutput);
+        JpegCompressor referenceComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),referenceOutput);
+        referenceComp.setFastDCT(false);
+
+        fastComp.doCompress();
+        referenceComp.doCompress();
+        Assert.assertArrayEquals(referenceOutput.toByteArray(),fastOutput.toByteArray());
+    }
+
+    @Test
+    public void bitWriterTest() throws IOException {
+        //res/knowledge-reference.jpg为改用64位比特寄存器之前逐位写入的输出（浮点色彩空间转换），之后的输出应与其一致
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        JpegCompressor floatComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),output);
+        floatComp.setFixedPointColor(false);
+        floatComp.doCompress();
+        assertReferenceOutput(output.toByteArray());
+    }
+
+    @Test
+    public void rasterReaderTest() throws IOException {
+        //直接读取各种布局的底层数组（包括子图像的偏移）与改动之前通过getRGB读取像素的输出逐字节一致
+        BufferedImage source=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        int width=source.getWidth();
+        int height=source.getHeight();
+        int[] types={BufferedImage.TYPE_3BYTE_BGR,BufferedImage.TYPE_4BYTE_ABGR,BufferedImage.TYPE_INT_RGB,BufferedImage.TYPE_INT_ARGB,BufferedImage.TYPE_INT_BGR};
+        for (int type:types){
+            BufferedImage image=new BufferedImage(width+5,height+3,type);
+            image.getGraphics().drawImage(source,5,3,null);
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            JpegCompressor floatComp=new JpegCompressor(image.getSubimage(5,3,width,height),output);
+            floatComp.setFixedPointColor(false);
+            floatComp.doCompress();
+            assertReferenceOutput(output.toByteArray());
+        }
+    }
+
+    /**
+     * 与res/knowledge-reference.jpg比较：除EOI前的最后一个字节外应逐字节一致，
+     * 该字节不足8位的部分在改用64位比特寄存器之后按标准补1而不是补0
+     * @param actual 浮点色彩空间转换下编码res/knowledge.bmp的输出
+     * @throws IOException IO异常
+     */
+    private static void assertReferenceOutput(byte[] actual) throws IOException {
+        byte[] expected=Files.readAllBytes(Path.of("res/knowledge-reference.jpg"));
+        Assert.assertEquals(expected.length,actual.length);
+        int last=expected.length-3;
+        Assert.assertArrayEquals(Arrays.copyOf(expected,last),Arrays.copyOf(actual,last));
+        Assert.assertEquals(expected[last],(byte) (expected[last]&actual[last]));
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected,last+1,expected.length),Arrays.copyOfRange(actual,last+1,actual.length));
+    }
+
+    @Test
+    public void entropyCoderTest() throws IOException, NoSuchAlgorithmException {
+        //查表熵编码与改动之前逐个计算VLI位深、分别写入霍夫曼码字和VLI码的输出逐字节一致
+        //下面是改动之前按各质量编码res/knowledge.bmp的SHA-256，质量5有大量ZRL，质量100的系数覆盖到最大的位深
+        int[] qualities={5,50,75,100};
+        String[] digests={
+                "fbee75d262501b84fafae8a5c4a9346a1624de963cd23f676178f9dbeef17c8b",
+                "cef505890b872d34f7c5375e98ad9127f6d39e6ca286bae45e6099d605f3d77a",
+                "2ccd6988bf6f9ffdc6a2648cb12c4fa43d364367e95a5bae95617de1fe647c11",
+                "06b437683ea16d4fa50c6b711141b23b09c4630675398768665a3a563c8d6ff0"
+        };
+        for (int i=0;i<qualities.length;i++){
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            JpegCompressor qualityComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),output);
+            qualityComp.setQuality(qualities[i]);
+            qualityComp.doCompress();
+            byte[] digest=MessageDigest.getInstance("SHA-256").digest(output.toByteArray());
+            Assert.assertEquals(digests[i],HexFormat.of().formatHex(digest));
+        }
+    }
+
+    @Test
+    public void colorConverterTest() throws ReflectiveOperationException {
+        //查表定点转换与浮点转换的差异不超过±1
+        //浮点实现的色度为单点采样，而查表实现取2x2平均，因此每个2x2像素取同一颜色，两者的色度才可比较
+        ColorConverter table=newColorConverter("moe._47saikyo.TableColorConverter");
+        ColorConverter reference=newColorConverter("moe._47saikyo.FloatColorConverter");
+        Random random=new Random(47);
+        int[] pixels=new int[MCULength*MCULength];
+        float[] tableBlocks=new float[6*blockLength*blockLength];
+        float[] referenceBlocks=new float[6*blockLength*blockLength];
+        for (int n=0;n<1000;n++){
+            for (int r=0;r<MCULength;r+=2){
+                for (int c=0;c<MCULength;c+=2){
+                    int rgb=random.nextInt(1<<24);
+                    pixels[r*MCULength+c]=rgb;
+                    pixels[r*MCULength+c+1]=rgb;
+                    pixels[(r+1)*MCULength+c]=rgb;
+                    pixels[(r+1)*MCULength+c+1]=rgb;
+                }
+            }
+            //每隔一轮改为逐像素随机，只比较Y
+            int compared=tableBlocks.length;
+            if(n%2==1){
+                for (int i=0;i<pixels.length;i++){
+                    pixels[i]=random.nextInt(1<<24);
+                }
+                compared=4*blockLength*blockLength;
+            }
+            table.convertMCU(pixels,tableBlocks);
+            reference.convertMCU(pixels,referenceBlocks);
+            for (int i=0;i<compared;i++){
+                Assert.assertEquals(referenceBlocks[i],tableBlocks[i],1.0f);
+            }
+        }
+    }
+
+    private static ColorConverter newColorConverter(String className) throws ReflectiveOperationException {
+        Constructor<?> constructor=Class.forName(className).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return (ColorConverter) constructor.newInstance();
+    }
+
+    @Test
+    public void parallelTest() throws IOException {
+        //并行编码与相同重启间隔下的串行编码应得到完全一致的输出
+        ByteArrayOutputStream parallelOutput=new ByteArrayOutputStream();
+        ByteArrayOutputStream serialOutput=new ByteArrayOutputStream();
+        JpegCompressor parallelComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),parallelOutput);
+        JpegCompressor serialComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),serialOutput);
+        parallelComp.setRestartInterval(1);
+        parallelComp.setParallel(true);
+        serialComp.setRestartInterval(1);
+        parallelComp.doCompress();
+        serialComp.doCompress();
+        Assert.assertArrayEquals(serialOutput.toByteArray(),parallelOutput.toByteArray());
+    }
+
+    @Test
+    public void streamTest() throws IOException {
+        //流式编码的推送模式（每次推送的行数不是16的倍数）和拉取模式都应与JpegCompressor的输出逐字节一致
+        byte[] source=Files.readAllBytes(Path.of("res/knowledge.bmp"));
+        BufferedImage image=ImageIO.read(new ByteArrayInputStream(source));
+        int width=image.getWidth();
+        int height=image.getHeight();
+        for (int quality:new int[]{50,85}){
+            ByteArrayOutputStream expected=new ByteArrayOutputStream();
+            JpegCompressor reference=new JpegCompressor(new ByteArrayInputStream(source),expected);
+            reference.setQuality(quality);
+            reference.doCompress();
+
+            ByteArrayOutputStream pushOutput=new ByteArrayOutputStream();
+            JpegStreamCompressor push=new JpegStreamCompressor(width,height,pushOutput);
+            push.setQuality(quality);
+            int[] rows=new int[width*7];
+            for (int y=0;y<height;y+=7){
+                int count=Math.min(7,height-y);
+                image.getRGB(0,y,width,count,rows,0,width);
+                push.writeRows(rows,0,width,count);
+            }
+            push.finish();
+            Assert.assertArrayEquals(expected.toByteArray(),pushOutput.toByteArray());
+        }
+
+        ByteArrayOutputStream expected=new ByteArrayOutputStream();
+        new JpegCompressor(new ByteArrayInputStream(source),expected).doCompress();
+        ByteArrayOutputStream pullOutput=new ByteArrayOutputStream();
+        JpegStreamCompressor.compress(new ByteArrayInputStream(source),pullOutput);
+        Assert.assertArrayEquals(expected.toByteArray(),pullOutput.toByteArray());
+    }
+
+    @Test
+    public void qualityTest() throws IOException {
+        //质量50即JPEG标准量化表，应与默认输出一致；质量越高文件越大
+        int[] qualities={10,50,75,95};
+        int[] sizes=new int[qualities.length];
+        ByteArrayOutputStream defaultOutput=new ByteArrayOutputStream();
+        new JpegCompressor(new FileInputStream("res/knowledge.bmp"),defaultOutput).doCompress();
+        for (int i=0;i<qualities.length;i++){
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            JpegCompressor qualityComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),output);
+            qualityComp.setQuality(qualities[i]);
+            qualityComp.doCompress();
+            sizes[i]=output.size();
+            if(qualities[i]==50){
+                Assert.assertArrayEquals(defaultOutput.toByteArray(),output.toByteArray());
+            }
+            if(i>0){
+                Assert.assertTrue(sizes[i]>sizes[i-1]);
+            }
+        }
+    }
+
+    @Test
+    public void optimizeHuffmanTest() throws IOException {
+        //优化霍夫曼表只改变熵编码，解码结果应与标准表完全一致，且文件更小
+        ByteArrayOutputStream standardOutput=new ByteArrayOutputStream();
+        ByteArrayOutputStream optimizedOutput=new ByteArrayOutputStream();
+        new JpegCompressor(new FileInputStream("res/knowledge.bmp"),standardOutput).doCompress();
+        JpegCompressor optimizedComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),optimizedOutput);
+        optimizedComp.setOptimizeHuffman(true);
+        optimizedComp.doCompress();
+        Assert.assertTrue(optimizedOutput.size()<standardOutput.size());
+
+        BufferedImage standardImage=ImageIO.read(new ByteArrayInputStream(standardOutput.toByteArray()));
+        BufferedImage optimizedImage=ImageIO.read(new ByteArrayInputStream(optimizedOutput.toByteArray()));
+        int width=standardImage.getWidth();
+        int height=standardImage.getHeight();
+        Assert.assertArrayEquals(standardImage.getRGB(0,0,width,height,null,0,width),optimizedImage.getRGB(0,0,width,height,null,0,width));
+
+        //同一个编码器先用优化表压缩，再改质量并关闭优化，输出应与新建的编码器一致
+        ByteArrayOutputStream expected=new ByteArrayOutputStream();
+        JpegCompressor freshComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),expected);
+        freshComp.setQuality(100);
+        freshComp.doCompress();
+        JpegCompressor reusedComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),new ByteArrayOutputStream());
+        reusedComp.setQuality(10);
+        reusedComp.setOptimizeHuffman(true);
+        reusedComp.doCompress();
+        ByteArrayOutputStream reusedOutput=new ByteArrayOutputStream();
+        reusedComp.setOutput(reusedOutput);
+        reusedComp.setQuality(100);
+        reusedComp.setOptimizeHuffman(false);
+        reusedComp.doCompress();
+        Assert.assertArrayEquals(expected.toByteArray(),reusedOutput.toByteArray());
+    }
+
+    @Test
+    public void optimizeHuffmanEmptyTableTest() throws IOException, ReflectiveOperationException {
+        //灰度图像单通道编码时色度表没有任何符号，优化霍夫曼表不应出错，解码结果与标准表一致
+        Method optimal=Class.forName("moe._47saikyo.HuffmanTable").getDeclaredMethod("optimal",int.class,long[].class);
+        optimal.setAccessible(true);
+        for (int classId:new int[]{0x00,0x01,0x10,0x11}){
+            Assert.assertNotNull(optimal.invoke(null,classId,new long[257]));
+        }
+
+        BufferedImage color=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        BufferedImage gray=new BufferedImage(color.getWidth(),color.getHeight(),BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(color,0,0,null);
+        ByteArrayOutputStream standardOutput=new ByteArrayOutputStream();
+        new JpegCompressor(gray,standardOutput).doCompress();
+        ByteArrayOutputStream optimizedOutput=new ByteArrayOutputStream();
+        JpegCompressor optimizedComp=new JpegCompressor(gray,optimizedOutput);
+        optimizedComp.setOptimizeHuffman(true);
+        optimizedComp.doCompress();
+        Assert.assertTrue(optimizedOutput.size()<standardOutput.size());
+
+        BufferedImage standardImage=ImageIO.read(new ByteArrayInputStream(standardOutput.toByteArray()));
+        BufferedImage optimizedImage=ImageIO.read(new ByteArrayInputStream(optimizedOutput.toByteArray()));
+        int width=gray.getWidth();
+        int height=gray.getHeight();
+        Assert.assertArrayEquals(standardImage.getRaster().getSamples(0,0,width,height,0,(int[]) null),
+                optimizedImage.getRaster().getSamples(0,0,width,height,0,(int[]) null));
+    }
+
+    @Test
+    public void progressiveTest() throws IOException {
+        //渐进式编码与baseline使用相同的量化系数，解码结果应完全一致
+        ByteArrayOutputStream baselineOutput=new ByteArrayOutputStream();
+        ByteArrayOutputStream progressiveOutput=new ByteArrayOutputStream();
+        new JpegCompressor(new FileInputStream("res/knowledge.bmp"),baselineOutput).doCompress();
+        JpegCompressor progressiveComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),progressiveOutput);
+        progressiveComp.setProgressive(true);
+        progressiveComp.doCompress();
+
+        BufferedImage baselineImage=ImageIO.read(new ByteArrayInputStream(baselineOutput.toByteArray()));
+        BufferedImage progressiveImage=ImageIO.read(new ByteArrayInputStream(progressiveOutput.toByteArray()));
+        int width=baselineImage.getWidth();
+        int height=baselineImage.getHeight();
+        Assert.assertArrayEquals(baselineImage.getRGB(0,0,width,height,null,0,width),progressiveImage.getRGB(0,0,width,height,null,0,width));
+
+        //同一个编码器渐进式压缩后关闭渐进式，输出应与baseline逐字节一致
+        ByteArrayOutputStream reusedOutput=new ByteArrayOutputStream();
+        progressiveComp.setOutput(reusedOutput);
+        progressiveComp.setProgressive(false);
+        progressiveComp.doCompress();
+        Assert.assertArrayEquals(baselineOutput.toByteArray(),reusedOutput.toByteArray());
+    }
+
+    @Test
+    public void batchTest() throws IOException, InterruptedException {
+        //批量编码的每张输出都应与单独编码一致
+        ByteArrayOutputStream singleOutput=new ByteArrayOutputStream();
+        new JpegCompressor(new FileInputStream("res/knowledge.bmp"),singleOutput).doCompress();
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        ByteArrayOutputStream[] outputs=new ByteArrayOutputStream[4];
+        BatchCompressor.Report report;
+        try (BatchCompressor batch=new BatchCompressor(2)){
+            for (int i=0;i<outputs.length;i++){
+                outputs[i]=new ByteArrayOutputStream();
+                batch.add("knowledge-"+i,image,outputs[i]);
+            }
+            report=batch.run();
+        }
+        Assert.assertEquals(outputs.length,report.succeeded);
+        Assert.assertEquals(0,report.failed);
+        try (BatchCompressor batch=new BatchCompressor(1)){
+            Assert.assertThrows(IllegalArgumentException.class,()->batch.setQuality(0));
+            Assert.assertThrows(IllegalArgumentException.class,()->batch.setQuality(101));
+        }
+        Assert.assertEquals(outputs.length,report.results.size());
+        Assert.assertEquals((long) outputs.length*image.getWidth()*image.getHeight(),report.pixels);
+        Assert.assertEquals((long) outputs.length*singleOutput.size(),report.outputBytes);
+        Assert.assertTrue(report.wallNanos>0);
+        for (int i=0;i<outputs.length;i++){
+            BatchCompressor.Result result=report.results.get(i);
+            Assert.assertEquals("knowledge-"+i,result.name);
+            Assert.assertNull(result.error);
+            Assert.assertEquals(image.getWidth(),result.width);
+            Assert.assertEquals(image.getHeight(),result.height);
+            Assert.assertEquals(singleOutput.size(),result.outputBytes);
+            Assert.assertArrayEquals(singleOutput.toByteArray(),outputs[i].toByteArray());
+        }
+
+        //虚拟线程池在当前JDK不可用时抛出UnsupportedOperationException，可用时结果同样与单独编码一致
+        BatchCompressor virtualBatch;
+        try {
+            virtualBatch=BatchCompressor.withVirtualThreads();
+        }catch (UnsupportedOperationException e){
+            Assume.assumeNoException(e);
+            return;
+        }
+        ByteArrayOutputStream virtualOutput=new ByteArrayOutputStream();
+        try (BatchCompressor batch=virtualBatch){
+            batch.add("knowledge-virtual",image,virtualOutput);
+            report=batch.run();
+        }
+        Assert.assertEquals(1,report.succeeded);
+        Assert.assertArrayEquals(singleOutput.toByteArray(),virtualOutput.toByteArray());
+    }
+
+    @Test
+    public void sessionTest() throws IOException {
+        //同一个会话连续编码多张图像，以及同一个JpegCompressor重复压缩，结果都应与首次编码一致
+        ByteArrayOutputStream singleOutput=new ByteArrayOutputStream();
+        JpegCompressor repeatComp=new JpegCompressor(new FileInputStream("res/knowledge.bmp"),singleOutput);
+        repeatComp.doCompress();
+        byte[] expected=singleOutput.toByteArray();
+        singleOutput.reset();
+        repeatComp.doCompress();
+        Assert.assertArrayEquals(expected,singleOutput.toByteArray());
+
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        EncoderSession session=new EncoderSession();
+        for (int i=0;i<3;i++){
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            session.encode(image,output);
+            Assert.assertArrayEquals(expected,output.toByteArray());
+        }
+    }
+
+    @Test
+    public void sinkTest() throws IOException {
+        //写入堆内缓冲区、直接缓冲区、字节数组和文件通道的结果都应与写入字节流一致
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        ByteArrayOutputStream streamOutput=new ByteArrayOutputStream();
+        new JpegCompressor(image,streamOutput).doCompress();
+        byte[] expected=streamOutput.toByteArray();
+
+        for (ByteBuffer buffer:new ByteBuffer[]{ByteBuffer.allocate(expected.length+16),ByteBuffer.allocateDirect(expected.length+16)}){
+            JpegSink sink=JpegSink.of(buffer);
+            new JpegCompressor(image,sink).doCompress();
+            Assert.assertEquals(expected.length,sink.written());
+            byte[] actual=new byte[buffer.flip().remaining()];
+            buffer.get(actual);
+            Assert.assertArrayEquals(expected,actual);
+        }
+
+        byte[] array=new byte[expected.length+32];
+        JpegSink arraySink=JpegSink.of(array,32,expected.length);
+        EncoderSession.forCurrentThread().encode(image,arraySink);
+        Assert.assertArrayEquals(expected,Arrays.copyOfRange(array,32,array.length));
+
+        try {
+            new JpegCompressor(image,JpegSink.of(ByteBuffer.allocate(expected.length/2))).doCompress();
+            Assert.fail("overflow should be reported");
+        }catch (IOException ignored){
+        }
+
+        Path file=Files.createTempFile("sink",".jpg");
+        try (FileChannel channel=FileChannel.open(file,StandardOpenOption.WRITE)){
+            JpegCompressor channelComp=new JpegCompressor(image,JpegSink.of(channel));
+            channelComp.setParallel(true);
+            channelComp.setRestartInterval(16);
+            channelComp.doCompress();
+            ByteArrayOutputStream parallelOutput=new ByteArrayOutputStream();
+            JpegCompressor parallelComp=new JpegCompressor(image,parallelOutput);
+            parallelComp.setParallel(true);
+            parallelComp.setRestartInterval(16);
+            parallelComp.doCompress();
+            Assert.assertArrayEquals(parallelOutput.toByteArray(),Files.readAllBytes(file));
+        }finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void listenerTest() throws IOException {
+        //注册统计回调后输出不变，且每个经过的阶段都有耗时
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        ByteArrayOutputStream plainOutput=new ByteArrayOutputStream();
+        new JpegCompressor(image,plainOutput).doCompress();
+
+        for (boolean parallel:new boolean[]{false,true}){
+            Map<CompressionListener.stage,Long> stages=new EnumMap<>(CompressionListener.stage.class);
+            long[] imageNanos=new long[1];
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            JpegCompressor listenedComp=new JpegCompressor(image,output);
+            listenedComp.setCompressionListener(new CompressionListener() {
+                @Override
+                public void stageCompleted(stage name,long nanos,long allocatedBytes){
+                    stages.put(name,nanos);
+                }
+
+                @Override
+                public void imageCompleted(int width,int height,long nanos,long allocatedBytes){
+                    imageNanos[0]=nanos;
+                }
+            });
+            listenedComp.setParallel(parallel);
+            listenedComp.doCompress();
+            if(!parallel){
+                Assert.assertArrayEquals(plainOutput.toByteArray(),output.toByteArray());
+            }
+            for (CompressionListener.stage stage:new CompressionListener.stage[]{CompressionListener.stage.header,CompressionListener.stage.color,
+                    CompressionListener.stage.DCT,CompressionListener.stage.entropy,CompressionListener.stage.flush}){
+                Assert.assertTrue(stage+" not reported",stages.getOrDefault(stage,0L)>0);
+            }
+            Assert.assertTrue(imageNanos[0]>0);
+            //未开启优化霍夫曼表时不经过频率统计遍历
+            Assert.assertFalse(stages.containsKey(CompressionListener.stage.optimize));
+            if(!parallel){
+                //串行时各阶段依次打点，累计耗时不超过总耗时；并行时各线程的耗时相加，可能超过墙钟耗时
+                long sum=0;
+                for (long nanos:stages.values()){
+                    sum+=nanos;
+                }
+                Assert.assertTrue(sum<=imageNanos[0]);
+            }
+        }
+    }
+
+    @Test
+    public void vectorTest() throws IOException, InterruptedException {
+        //向量化实现与标量实现的输出逐字节一致
+        //VectorSupport.enabled在类加载时确定，因此两种实现分别在子进程中运行
+        Path vectorOutput=Files.createTempFile("vector",".bin");
+        Path scalarOutput=Files.createTempFile("scalar",".bin");
+        try {
+            Assert.assertEquals(VectorChild.scalar,runVectorChild(false,scalarOutput));
+            Assume.assumeTrue("Vector API is not supported on this CPU",runVectorChild(true,vectorOutput)==VectorChild.vector);
+            Assert.assertArrayEquals(Files.readAllBytes(scalarOutput),Files.readAllBytes(vectorOutput));
+        }finally {
+            Files.deleteIfExists(vectorOutput);
+            Files.deleteIfExists(scalarOutput);
+        }
+    }
+
+    /**
+     * 在加入jdk.incubator.vector模块的子进程中运行{@link VectorChild}
+     * @param vector 系统属性moe._47saikyo.vector的值
+     * @param output 子进程的输出文件
+     * @return 子进程的退出码
+     */
+    private static int runVectorChild(boolean vector,Path output) throws IOException, InterruptedException {
+        Process process=new ProcessBuilder(Path.of(System.getProperty("java.home"),"bin","java").toString(),
+                "--add-modules","jdk.incubator.vector","-Dmoe._47saikyo.vector="+vector,
+                "-cp",System.getProperty("java.class.path"),VectorChild.class.getName(),"res/knowledge.bmp",output.toString())
+                .redirectErrorStream(true)
+                .start();
+        String log=new String(process.getInputStream().readAllBytes());
+        int exitCode=process.waitFor();
+        Assert.assertTrue(log,exitCode==VectorChild.vector||exitCode==VectorChild.scalar);
+        return exitCode;
+    }
+
+    /**
+     * {@link #vectorTest()}的子进程：按会用到向量化实现的几种模式依次编码同一张图像，输出拼接后写入文件，
+     * 退出码表示是否启用了向量化实现
+     */
+    public static class VectorChild {
+        static final int vector=10;     //启用了向量化实现
+        static final int scalar=11;     //使用标量实现
+
+        public static void main(String[] args) throws IOException, ReflectiveOperationException {
+            ByteArrayOutputStream output=new ByteArrayOutputStream();
+            BufferedImage image=ImageIO.read(new FileInputStream(args[0]));
+            for (int mode=0;mode<4;mode++){
+                JpegCompressor modeComp=new JpegCompressor(image,output);
+                switch (mode){
+                    case 1 -> modeComp.setOptimizeHuffman(true);
+                    case 2 -> modeComp.setProgressive(true);
+                    case 3 -> modeComp.setTargetSize(20000);
+                }
+                modeComp.doCompress();
+            }
+            Files.write(Path.of(args[1]),output.toByteArray());
+            Field enabled=Class.forName("moe._47saikyo.VectorSupport").getDeclaredField("enabled");
+            enabled.setAccessible(true);
+            System.exit(enabled.getBoolean(null)?vector:scalar);
+        }
+    }
+
+    @Test
+    public void grayscaleTest() throws IOException {
+        //灰度图像按单通道编码，解码结果与三通道编码的亮度一致；渐进式与baseline的解码结果完全一致
+        BufferedImage color=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        Assert.assertFalse(new JpegCompressor(color,new ByteArrayOutputStream()).isGrayscale());
+        BufferedImage gray=new BufferedImage(color.getWidth(),color.getHeight(),BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(color,0,0,null);
+
+        ByteArrayOutputStream grayOutput=new ByteArrayOutputStream();
+        JpegCompressor grayComp=new JpegCompressor(gray,grayOutput);
+        Assert.assertTrue(grayComp.isGrayscale());
+        grayComp.doCompress();
+        ByteArrayOutputStream colorOutput=new ByteArrayOutputStream();
+        JpegCompressor colorComp=new JpegCompressor(gray,colorOutput);
+        colorComp.setGrayscaleDetection(false);
+        colorComp.doCompress();
+        ByteArrayOutputStream progressiveOutput=new ByteArrayOutputStream();
+        JpegCompressor progressiveComp=new JpegCompressor(gray,progressiveOutput);
+        progressiveComp.setProgressive(true);
+        progressiveComp.doCompress();
+        Assert.assertTrue(grayOutput.size()<colorOutput.size());
+
+        BufferedImage grayImage=ImageIO.read(new ByteArrayInputStream(grayOutput.toByteArray()));
+        BufferedImage colorImage=ImageIO.read(new ByteArrayInputStream(colorOutput.toByteArray()));
+        BufferedImage progressiveImage=ImageIO.read(new ByteArrayInputStream(progressiveOutput.toByteArray()));
+        Assert.assertEquals(1,grayImage.getRaster().getNumBands());
+        int width=gray.getWidth();
+        int height=gray.getHeight();
+        int[] graySamples=grayImage.getRaster().getSamples(0,0,width,height,0,(int[]) null);
+        int[] colorSamples=colorImage.getRaster().getSamples(0,0,width,height,0,(int[]) null);
+        for (int i=0;i<graySamples.length;i++){
+            Assert.assertTrue(Math.abs(graySamples[i]-colorSamples[i])<=2);
+        }
+        Assert.assertArrayEquals(graySamples,progressiveImage.getRaster().getSamples(0,0,width,height,0,(int[]) null));
+    }
+
+    @Test
+    public void planarTest() throws IOException {
+        //平面模式只改变色彩空间转换的执行方式，各种编码方式下的输出应与非平面模式逐字节一致
+        BufferedImage color=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        BufferedImage gray=new BufferedImage(color.getWidth(),color.getHeight(),BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(color,0,0,null);
+        for (BufferedImage image:new BufferedImage[]{color,gray}){
+            for (int mode=0;mode<4;mode++){
+                ByteArrayOutputStream[] outputs={new ByteArrayOutputStream(),new ByteArrayOutputStream()};
+                for (int i=0;i<2;i++){
+                    JpegCompressor planarComp=new JpegCompressor(image,outputs[i]);
+                    planarComp.setPlanar(i==1);
+                    planarComp.setOptimizeHuffman(mode==1);
+                    planarComp.setProgressive(mode==2);
+                    planarComp.setParallel(mode==3);
+                    planarComp.doCompress();
+                }
+                Assert.assertArrayEquals(outputs[0].toByteArray(),outputs[1].toByteArray());
+            }
+        }
+
+        //非并行模式下平面转换只在调用线程中进行
+        Thread caller=Thread.currentThread();
+        boolean[] otherThread=new boolean[1];
+        JpegCompressor serialComp=new JpegCompressor(color,new ByteArrayOutputStream());
+        serialComp.setColorConverter((pixels,blocks)->{
+            otherThread[0]|=Thread.currentThread()!=caller;
+            Arrays.fill(blocks,128);
+        });
+        serialComp.setPlanar(true);
+        serialComp.doCompress();
+        Assert.assertFalse(otherThread[0]);
+    }
+
+    @Test
+    public void targetSizeTest() throws IOException {
+        //目标大小模式选出的质量不超过预算且质量+1超出预算，输出与直接按该质量压缩逐字节一致
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        for (boolean optimize:new boolean[]{false,true}){
+            for (long target:new long[]{25000,50000,1000}){
+                ByteArrayOutputStream targetOutput=new ByteArrayOutputStream();
+                JpegCompressor targetComp=new JpegCompressor(image,targetOutput);
+                targetComp.setOptimizeHuffman(optimize);
+                targetComp.setTargetSize(target);
+                targetComp.doCompress();
+                int quality=targetComp.getCompressedQuality();
+                //查找不改变设置的质量
+                Assert.assertEquals(50,targetComp.getQuality());
+
+                ByteArrayOutputStream qualityOutput=new ByteArrayOutputStream();
+                JpegCompressor qualityComp=new JpegCompressor(image,qualityOutput);
+                qualityComp.setOptimizeHuffman(optimize);
+                qualityComp.setQuality(quality);
+                qualityComp.doCompress();
+                Assert.assertArrayEquals(qualityOutput.toByteArray(),targetOutput.toByteArray());
+                if(quality>1){
+                    Assert.assertTrue(targetOutput.size()<=target);
+                }
+                ByteArrayOutputStream nextOutput=new ByteArrayOutputStream();
+                JpegCompressor nextComp=new JpegCompressor(image,nextOutput);
+                nextComp.setOptimizeHuffman(optimize);
+                nextComp.setQuality(quality+1);
+                nextComp.doCompress();
+                Assert.assertTrue(nextOutput.size()>target);
+            }
+        }
+
+        //目标大小压缩之后，同一个编码器关闭目标大小再压缩，仍按原来设置的质量输出
+        ByteArrayOutputStream expected=new ByteArrayOutputStream();
+        JpegCompressor qualityComp=new JpegCompressor(image,expected);
+        qualityComp.setQuality(75);
+        qualityComp.doCompress();
+        JpegCompressor reusedComp=new JpegCompressor(image,new ByteArrayOutputStream());
+        reusedComp.setQuality(75);
+        reusedComp.setTargetSize(25000);
+        reusedComp.doCompress();
+        Assert.assertEquals(75,reusedComp.getQuality());
+        ByteArrayOutputStream reusedOutput=new ByteArrayOutputStream();
+        reusedComp.setOutput(reusedOutput);
+        reusedComp.setTargetSize(0);
+        reusedComp.doCompress();
+        Assert.assertEquals(75,reusedComp.getCompressedQuality());
+        Assert.assertArrayEquals(expected.toByteArray(),reusedOutput.toByteArray());
+
+        //目标大小模式生成的优化霍夫曼表同样只用于那一次输出
+        reusedComp.setOptimizeHuffman(true);
+        reusedComp.setTargetSize(25000);
+        reusedComp.doCompress();
+        reusedOutput.reset();
+        reusedComp.setOptimizeHuffman(false);
+        reusedComp.setTargetSize(0);
+        reusedComp.doCompress();
+        Assert.assertArrayEquals(expected.toByteArray(),reusedOutput.toByteArray());
+    }
+
+    @Test
+    public void blockShortcutTest() throws IOException {
+        //纯色背景和重复图案的图像大部分块走平坦块捷径或命中缓存，输出与关闭捷径时逐字节一致
+        BufferedImage image=new BufferedImage(640,480,BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics=image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0,0,640,480);
+        graphics.setColor(Color.DARK_GRAY);
+        for (int y=20;y<480;y+=64){
+            for (int x=20;x<600;x+=96){
+                graphics.drawString("label",x,y);
+            }
+        }
+        graphics.dispose();
+        for (BufferedImage source:new BufferedImage[]{image,ImageIO.read(new FileInputStream("res/knowledge.bmp"))}){
+            ByteArrayOutputStream shortcutOutput=new ByteArrayOutputStream();
+            JpegCompressor shortcutComp=new JpegCompressor(source,shortcutOutput);
+            shortcutComp.doCompress();
+            ByteArrayOutputStream fullOutput=new ByteArrayOutputStream();
+            JpegCompressor fullComp=new JpegCompressor(source,fullOutput);
+            fullComp.setBlockShortcuts(false);
+            fullComp.doCompress();
+            Assert.assertArrayEquals(fullOutput.toByteArray(),shortcutOutput.toByteArray());
+            BlockStatistics statistics=shortcutComp.getBlockStatistics();
+            Assert.assertEquals(fullComp.getBlockStatistics().getBlocks(),statistics.getBlocks());
+            Assert.assertEquals(0,fullComp.getBlockStatistics().getFlatBlocks());
+            Assert.assertTrue(statistics.getBlocks()>0);
+            Assert.assertTrue(statistics.getFlatBlocks()<=statistics.getBlocks());
+            Assert.assertTrue(statistics.getCacheHits()<=statistics.getCacheLookups());
+            Assert.assertTrue(statistics.getHitRate()>=0&&statistics.getHitRate()<=1);
+            if(source==image){
+                Assert.assertTrue(statistics.getFlatBlocks()>statistics.getBlocks()/2);
+                Assert.assertTrue(statistics.getCacheHits()>0);
+            }
+        }
+    }
+
+    @Test
+    public void transcodeTest() throws IOException {
+        //系数域重新优化不改变量化系数，解码结果与原文件逐像素一致且文件更小；渐进式文件不支持
+        BufferedImage color=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        BufferedImage gray=new BufferedImage(color.getWidth(),color.getHeight(),BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(color,0,0,null);
+        ByteArrayOutputStream imageIOOutput=new ByteArrayOutputStream();
+        ImageIO.write(color,"jpeg",imageIOOutput);
+        ByteArrayOutputStream[] sources={new ByteArrayOutputStream(),new ByteArrayOutputStream(),new ByteArrayOutputStream(),imageIOOutput};
+        JpegCompressor colorComp=new JpegCompressor(color,sources[0]);
+        colorComp.doCompress();
+        JpegCompressor restartComp=new JpegCompressor(color,sources[1]);
+        restartComp.setRestartInterval(2);
+        restartComp.setQuality(90);
+        restartComp.doCompress();
+        new JpegCompressor(gray,sources[2]).doCompress();
+
+        JpegTranscoder transcoder=new JpegTranscoder();
+        for (int i=0;i<sources.length;i++){
+            byte[] source=sources[i].toByteArray();
+            transcoder.setParallel(i==1);
+            byte[] optimized=transcoder.optimize(source);
+            Assert.assertTrue(optimized.length<source.length);
+            BufferedImage sourceImage=ImageIO.read(new ByteArrayInputStream(source));
+            BufferedImage optimizedImage=ImageIO.read(new ByteArrayInputStream(optimized));
+            int width=sourceImage.getWidth();
+            int height=sourceImage.getHeight();
+            Assert.assertArrayEquals(sourceImage.getRaster().getPixels(0,0,width,height,(int[]) null),optimizedImage.getRaster().getPixels(0,0,width,height,(int[]) null));
+        }
+
+        ByteArrayOutputStream progressiveOutput=new ByteArrayOutputStream();
+        JpegCompressor progressiveComp=new JpegCompressor(color,progressiveOutput);
+        progressiveComp.setProgressive(true);
+        progressiveComp.doCompress();
+        Assert.assertThrows(IOException.class,()->transcoder.optimize(progressiveOutput.toByteArray()));
+    }
+
+    @Test
+    public void transformTest() throws IOException {
+        //旋转4次、翻转2次还原为原图；按MCU裁剪出的图块拼接后与原图逐字节一致；翻转裁掉不完整的MCU，转置交换宽高
+        ByteArrayOutputStream sourceOutput=new ByteArrayOutputStream();
+        new JpegCompressor(ImageIO.read(new FileInputStream("res/knowledge.bmp")),sourceOutput).doCompress();
+        byte[] source=sourceOutput.toByteArray();
+        BufferedImage sourceImage=ImageIO.read(new ByteArrayInputStream(source));
+        int width=sourceImage.getWidth();
+        int height=sourceImage.getHeight();
+        JpegTranscoder transcoder=new JpegTranscoder();
+
+        BufferedImage flipped=ImageIO.read(new ByteArrayInputStream(transcoder.transform(source,JpegTranscoder.transform.flipHorizontal)));
+        Assert.assertEquals(width/16*16,flipped.getWidth());
+        BufferedImage transposed=ImageIO.read(new ByteArrayInputStream(transcoder.transform(source,JpegTranscoder.transform.transpose)));
+        Assert.assertEquals(height,transposed.getWidth());
+        Assert.assertEquals(width,transposed.getHeight());
+
+        byte[] aligned=transcoder.crop(source,0,0,width/16*16,height/16*16);
+        byte[] rotated=aligned;
+        for (int i=0;i<4;i++){
+            rotated=transcoder.transform(rotated,JpegTranscoder.transform.rotate90);
+        }
+        byte[] mirrored=transcoder.transform(transcoder.transform(aligned,JpegTranscoder.transform.flipVertical),JpegTranscoder.transform.flipVertical);
+        Assert.assertArrayEquals(aligned,rotated);
+        Assert.assertArrayEquals(aligned,mirrored);
+
+        int tileWidth=width/2/16*16;
+        int tileHeight=height/2/16*16;
+        byte[][] tiles={
+                transcoder.crop(source,0,0,tileWidth,tileHeight),
+                transcoder.crop(source,tileWidth,0,width-tileWidth,tileHeight),
+                transcoder.crop(source,0,tileHeight,tileWidth,height-tileHeight),
+                transcoder.crop(source,tileWidth,tileHeight,width-tileWidth,height-tileHeight)
+        };
+        Assert.assertArrayEquals(transcoder.optimize(source),transcoder.stitch(tiles,2));
+        Assert.assertThrows(IllegalArgumentException.class,()->transcoder.crop(source,8,0,64,64));
+    }
+
+    @Test
+    public void requantizeTest() throws IOException {
+        //系数域重新量化的大小接近直接按目标质量压缩，高于源文件的目标质量不改变量化系数，结果与无损优化一致
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        ByteArrayOutputStream sourceOutput=new ByteArrayOutputStream();
+        JpegCompressor sourceComp=new JpegCompressor(image,sourceOutput);
+        sourceComp.setQuality(90);
+        sourceComp.doCompress();
+        byte[] source=sourceOutput.toByteArray();
+        ByteArrayOutputStream directOutput=new ByteArrayOutputStream();
+        JpegCompressor directComp=new JpegCompressor(image,directOutput);
+        directComp.setQuality(50);
+        directComp.setOptimizeHuffman(true);
+        directComp.doCompress();
+
+        JpegTranscoder transcoder=new JpegTranscoder();
+        byte[] requantized=transcoder.requantize(source,50);
+        //质量90降到50，系数域重新量化后的文件应明显变小
+        Assert.assertTrue(requantized.length<source.length/2);
+        Assert.assertTrue(Math.abs(requantized.length-directOutput.size())<directOutput.size()/10);
+        Assert.assertArrayEquals(transcoder.optimize(source),transcoder.requantize(source,95));
+
+        BufferedImage sourceImage=ImageIO.read(new ByteArrayInputStream(source));
+        BufferedImage requantizedImage=ImageIO.read(new ByteArrayInputStream(requantized));
+        int width=image.getWidth();
+        int height=image.getHeight();
+        int[] expected=sourceImage.getRaster().getPixels(0,0,width,height,(int[]) null);
+        int[] actual=requantizedImage.getRaster().getPixels(0,0,width,height,(int[]) null);
+        long difference=0;
+        for (int i=0;i<expected.length;i++){
+            difference+=Math.abs(expected[i]-actual[i]);
+        }
+        Assert.assertTrue((double) difference/expected.length<4);
+    }
+
+    @Test
+    public void decoderTest() throws IOException {
+        //解码结果与ImageIO（libjpeg）在舍入误差以内一致，并行解码各重启间隔的结果与串行相同，渐进式文件抛出IOException
+        BufferedImage image=ImageIO.read(new FileInputStream("res/knowledge.bmp"));
+        ByteArrayOutputStream defaultOutput=new ByteArrayOutputStream();
+        new JpegCompressor(image,defaultOutput).doCompress();
+        ByteArrayOutputStream restartOutput=new ByteArrayOutputStream();
+        JpegCompressor restartComp=new JpegCompressor(image,restartOutput);
+        restartComp.setRestartInterval(1);
+        restartComp.setQuality(97);
+        restartComp.doCompress();
+        BufferedImage gray=new BufferedImage(image.getWidth()-3,image.getHeight()-5,BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(image,0,0,null);
+        ByteArrayOutputStream grayOutput=new ByteArrayOutputStream();
+        JpegCompressor grayComp=new JpegCompressor(gray,grayOutput);
+        grayComp.setGrayscaleDetection(true);
+        grayComp.doCompress();
+
+        JpegDecoder decoder=new JpegDecoder();
+        for (byte[] jpeg:new byte[][]{defaultOutput.toByteArray(),restartOutput.toByteArray(),grayOutput.toByteArray()}){
+            BufferedImage expected=ImageIO.read(new ByteArrayInputStream(jpeg));
+            int width=expected.getWidth();
+            int height=expected.getHeight();
+            int[] samples=expected.getRaster().getPixels(0,0,width,height,(int[]) null);
+            int bands=expected.getRaster().getNumBands();
+
+            decoder.setParallel(false);
+            int[] pixels=decoder.decode(jpeg);
+            Assert.assertEquals(width,decoder.getWidth());
+            Assert.assertEquals(height,decoder.getHeight());
+            long difference=0;
+            for (int i=0;i<pixels.length;i++){
+                Assert.assertEquals(0xFF,pixels[i]>>>24);
+                for (int b=0;b<bands;b++){
+                    int sample=(pixels[i]>>(bands==1?0:16-8*b))&0xFF;
+                    int delta=Math.abs(sample-samples[i*bands+b]);
+                    Assert.assertTrue(delta<=4);
+                    difference+=delta;
+                }
+            }
+            Assert.assertTrue((double) difference/samples.length<0.1);
+
+            decoder.setParallel(true);
+            Assert.assertArrayEquals(pixels,decoder.decode(jpeg));
+            BufferedImage decoded=decoder.decodeImage(jpeg);
+            Assert.assertEquals(BufferedImage.TYPE_INT_ARGB,decoded.getType());
+            Assert.assertEquals(pixels[pixels.length-1],decoded.getRGB(width-1,height-1));
+        }
+
+        ByteArrayOutputStream progressiveOutput=new ByteArrayOutputStream();
+        JpegCompressor progressiveComp=new JpegCompressor(image,progressiveOutput);
+        progressiveComp.setProgressive(true);
+        progressiveComp.doCompress();
+        Assert.assertThrows(IOException.class,()->decoder.decode(progressiveOutput.toByteArray()));
+    }
+
+    @Test
+    public void downSamplingTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        Method readMCUBlocks = JpegCompressor.class.getDeclaredMethod("readMCUBlocks", int.class, int.class);
+        readMCUBlocks.setAccessible(true);
+        float[] blocks;
         int x,y;
         //分块序号，x和y标记当前行/列的第几个MCU
         for(y=0;y*MCULength+MCULength<=completionHeight;y++){
             for (x=0;x*MCULength+MCULength<=completionWidth;x++){
 
-                Array= (float[][][]) getMCUBlock.invoke(comp,x,y);
-                deBugWrite(Array,x,y);
+                blocks= (float[]) readMCUBlocks.invoke(comp,x,y);
+                deBugWrite(blocks,x,y);
             }
         }
         comp.deBugWrite("res/downSampling-out.bmp");
     }
 
     @Test
-    public void DCTTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException, NoSuchFieldException {
-        Method DCTComp_L = JpegCompressor.class.getDeclaredMethod("DCTComp_L", float[][].class);
-        Method DCTComp_C = JpegCompressor.class.getDeclaredMethod("DCTComp_C", float[][].class);
-        Method IDCT_L = JpegCompressor.class.getDeclaredMethod("IDCT_L", int[][].class);
-        Method IDCT_C = JpegCompressor.class.getDeclaredMethod("IDCT_C", int[][].class);
-        Method getMCUBlock = JpegCompressor.class.getDeclaredMethod("getMCUBlock", int.class, int.class);
-        getMCUBlock.setAccessible(true);
-        DCTComp_C.setAccessible(true);
-        DCTComp_L.setAccessible(true);
-        IDCT_C.setAccessible(true);
-        IDCT_L.setAccessible(true);
-        float[][][] Array;
-        int[][] tmp;
+    public void DCTTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException, ClassNotFoundException {
+        Class<?> componentClass = Class.forName("moe._47saikyo.DCT$component");
+        Method reconstructBlock = JpegCompressor.class.getDeclaredMethod("reconstructBlock", float[].class, int.class, componentClass);
+        Method readMCUBlocks = JpegCompressor.class.getDeclaredMethod("readMCUBlocks", int.class, int.class);
+        readMCUBlocks.setAccessible(true);
+        reconstructBlock.setAccessible(true);
+        Object luminance = componentClass.getEnumConstants()[0];
+        Object chrominance = componentClass.getEnumConstants()[1];
+        float[] blocks;
         int x,y;
         //分块序号，x和y标记当前行/列的第几个MCU
         for(y=0;y*MCULength+MCULength<=completionHeight;y++){
             for (x=0;x*MCULength+MCULength<=completionWidth;x++){
 
-                Array= (float[][][]) getMCUBlock.invoke(comp,x,y);
-                for (int i=0;i<4;i++){
-                    tmp= (int[][]) DCTComp_L.invoke(comp, (Object) Array[i]);
-                    Array[i]= (float[][]) IDCT_L.invoke(comp, (Object) tmp);
+                blocks= (float[]) readMCUBlocks.invoke(comp,x,y);
+                for (int i=0;i<6;i++){
+                    reconstructBlock.invoke(comp,blocks,i*blockLength*blockLength,i<4?luminance:chrominance);
                 }
-                tmp=(int[][])DCTComp_C.invoke(comp, (Object) Array[4]);
-                Array[4]=(float[][])IDCT_C.invoke(comp, (Object) tmp);
-                tmp=(int[][])DCTComp_C.invoke(comp, (Object) Array[5]);
-                Array[5]=(float[][])IDCT_C.invoke(comp, (Object) tmp);
-                deBugWrite(Array,x,y);
+                deBugWrite(blocks,x,y);
             }
         }
         comp.deBugWrite("res/DCT-out.bmp");
@@ -97,57 +952,49 @@ public class JpegCompressorTest {
 
     @Test
     public void luminanceTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method getMCUBlock = JpegCompressor.class.getDeclaredMethod("getMCUBlock", int.class, int.class);
-        getMCUBlock.setAccessible(true);
-        float[][][] Array;
+        Method readMCUBlocks = JpegCompressor.class.getDeclaredMethod("readMCUBlocks", int.class, int.class);
+        readMCUBlocks.setAccessible(true);
+        float[] blocks;
         int x,y;
         //分块序号，x和y标记当前行/列的第几个MCU
         for(y=0;y*MCULength+MCULength<=completionHeight;y++){
             for (x=0;x*MCULength+MCULength<=completionWidth;x++){
 
-                Array= (float[][][]) getMCUBlock.invoke(comp,x,y);
-                for (int i=4;i<6;i++){
-                    for (int r=0;r<blockLength;r++){
-                        for (int c=0;c<blockLength;c++){
-                            Array[i][r][c]=128;
-                        }
-                    }
-                }
-                deBugWrite(Array,x,y);
+                blocks= (float[]) readMCUBlocks.invoke(comp,x,y);
+                Arrays.fill(blocks,4*blockLength*blockLength,6*blockLength*blockLength,128);
+                deBugWrite(blocks,x,y);
             }
         }
         comp.deBugWrite("res/luminance-out.bmp");
     }
     @Test
     public void chrominanceTest() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method getMCUBlock = JpegCompressor.class.getDeclaredMethod("getMCUBlock", int.class, int.class);
-        getMCUBlock.setAccessible(true);
-        float[][][] Array;
+        Method readMCUBlocks = JpegCompressor.class.getDeclaredMethod("readMCUBlocks", int.class, int.class);
+        readMCUBlocks.setAccessible(true);
+        float[] blocks;
         int x,y;
         //分块序号，x和y标记当前行/列的第几个MCU
         for(y=0;y*MCULength+MCULength<=completionHeight;y++){
             for (x=0;x*MCULength+MCULength<=completionWidth;x++){
 
-                Array= (float[][][]) getMCUBlock.invoke(comp,x,y);
-                for (int i=0;i<4;i++){
-                    for (int r=0;r<blockLength;r++){
-                        for (int c=0;c<blockLength;c++){
-                            Array[i][r][c]=128;
-                        }
-                    }
-                }
-                deBugWrite(Array,x,y);
+                blocks= (float[]) readMCUBlocks.invoke(comp,x,y);
+                Arrays.fill(blocks,0,4*blockLength*blockLength,128);
+                deBugWrite(blocks,x,y);
             }
         }
         comp.deBugWrite("res/chrominance-out.bmp");
     }
 
-    public void deBugWrite(float[][][] Array,int x,int y) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+    /**
+     * 把一个MCU的6个连续存放的块（4个Y块、Cb块、Cr块，每块行优先64个值）转回RGB写入图像
+     */
+    public void deBugWrite(float[] blocks,int x,int y) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         Method setRGB = JpegCompressor.class.getDeclaredMethod("setRGB", int.class, int.class, float[].class);
         setRGB.setAccessible(true);
+        int blockSize=blockLength*blockLength;
         float[] RGB=new float[3];
         float[] YCC=new float[3];
-        int i,xOffset,yOffset,r,c,MCU_r_offset,MCU_c_offset;
+        int i,xOffset,yOffset,r,c,MCU_r_offset,MCU_c_offset,chromaIndex;
         for (i=0;i<4;i++){
             //根据序号获取块的起始偏移值
             xOffset=x*MCULength;
@@ -167,9 +1014,10 @@ public class JpegCompressorTest {
                     if(xOffset+c>=imageWidth||yOffset+r>=imageHeight){
                         continue;
                     }
-                    YCC[0]=Array[i][r][c];
-                    YCC[1]=Array[4][(r+MCU_r_offset)/2][(c+MCU_c_offset)/2];
-                    YCC[2]=Array[5][(r+MCU_r_offset)/2][(c+MCU_c_offset)/2];
+                    chromaIndex=(r+MCU_r_offset)/2*blockLength+(c+MCU_c_offset)/2;
+                    YCC[0]=blocks[i*blockSize+r*blockLength+c];
+                    YCC[1]=blocks[4*blockSize+chromaIndex];
+                    YCC[2]=blocks[5*blockSize+chromaIndex];
                     RGB[0]=(float) (YCC[0] + 1.402 * (YCC[2] - 128));
                     RGB[1]=(float) (YCC[0] - 0.34414 * (YCC[1] - 128) - 0.71414 * (YCC[2] - 128));
                     RGB[2]= (float) (YCC[0] + 1.772 * (YCC[1] - 128));